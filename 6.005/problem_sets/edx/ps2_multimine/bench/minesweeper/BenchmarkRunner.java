@@ -0,0 +1,62 @@
+package minesweeper;
+
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.results.format.ResultFormatFactory;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.FileNotFoundException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Runs every benchmark, and ContentionBenchmark with each of THREAD_COUNTS threads,
+ * then writes all their results to one JSON file, which can be kept to compare later
+ * runs against (for example at https://jmh.morethan.io).
+ *
+ * Usage: java minesweeper.BenchmarkRunner [RESULTS_FILE]
+ *
+ * with the bench and src folders compiled, and the JMH jars in lib/ on the classpath
+ * and annotation processor path. RESULTS_FILE is jmh-results.json if not given.
+ *
+ * A single benchmark can also be run on its own with JMH's own main, for example:
+ *   java org.openjdk.jmh.Main BoardBenchmark.floodFill -p size=1000
+ */
+public class BenchmarkRunner {
+
+    /** The numbers of threads ContentionBenchmark is run with. */
+    private static final int[] THREAD_COUNTS = {1, 2, 4, 8, 16, 32, 64};
+    private static final String DEFAULT_RESULTS_FILE = "jmh-results.json";
+
+    public static void main(String[] args) throws RunnerException, FileNotFoundException {
+        final String results_file = (args.length > 0) ? args[0] : DEFAULT_RESULTS_FILE;
+        final String contention = ContentionBenchmark.class.getName();
+        final List<RunResult> results = new ArrayList<>();
+
+        // Everything single-threaded first.
+        final Options single = new OptionsBuilder()
+                .include("minesweeper\\..*Benchmark")
+                .exclude(contention)
+                .shouldFailOnError(true)
+                .build();
+        results.addAll(new Runner(single).run());
+
+        for (int threads : THREAD_COUNTS) {
+            final Options contended = new OptionsBuilder()
+                    .include(contention)
+                    .threads(threads)
+                    .shouldFailOnError(true)
+                    .build();
+            results.addAll(new Runner(contended).run());
+        }
+
+        try (PrintStream out = new PrintStream(results_file)) {
+            ResultFormatFactory.getInstance(ResultFormatType.JSON, out).writeOut(results);
+        }
+        System.out.println("Results written to " + results_file);
+    }
+}
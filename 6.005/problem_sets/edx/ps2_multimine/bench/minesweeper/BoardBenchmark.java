@@ -0,0 +1,202 @@
+package minesweeper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single-threaded costs of the Board operations a server leans on, at several board
+ * sizes. See ContentionBenchmark for many threads sharing one board, and
+ * BenchmarkRunner for running everything and keeping the results.
+ *
+ * Benchmarks that need a board in a particular state get a fresh one before every
+ * invocation, which JMH doesn't time, and do a whole board's worth of work in it, so
+ * their scores are per board rather than per square.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BoardBenchmark {
+
+    /** The width and height of the board. */
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    // The same randomly mined board as a text file and as a binary file.
+    private File text_file;
+    private File binary_file;
+    // A board with a mine on every square whose coordinates are both even, so every
+    // other square has a mined neighbor and digging it reveals nothing else.
+    private File sparse_file;
+    // A board without mines, so digging any square floods the whole board.
+    private File empty_file;
+
+    // A board whose squares have all been dug.
+    private Board dug_board;
+    // A board whose squares are all untouched, apart from flags being churned.
+    private Board untouched_board;
+    // The next square to work on, counting across each row, then down.
+    private int next_square = 0;
+
+    @Setup(Level.Trial)
+    public void writeBoardFiles() throws IOException {
+        final Random random = new Random(6005);
+        this.text_file = writeBoardFile((x, y) -> random.nextDouble() < 0.25);
+        this.binary_file = File.createTempFile("board", ".bin");
+        this.binary_file.deleteOnExit();
+        BoardFile.convert(this.text_file, this.binary_file);
+        this.sparse_file = writeBoardFile((x, y) -> x % 2 == 0 && y % 2 == 0);
+        this.empty_file = writeBoardFile((x, y) -> false);
+
+        // Without mines, digging one square digs them all.
+        this.dug_board = new Board(this.empty_file);
+        this.dug_board.dig(0, 0);
+        this.untouched_board = new Board(this.text_file);
+    }
+
+    /** Decides whether the square at (x, y) of a board file is mined. */
+    private interface MineLayout {
+        boolean isMined(int x, int y);
+    }
+
+    private File writeBoardFile(MineLayout mines) throws IOException {
+        final File file = File.createTempFile("board", ".txt");
+        file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(file, "US-ASCII")) {
+            out.println(this.size + " " + this.size);
+            for (int y = 0; y < this.size; y++) {
+                final StringBuilder row = new StringBuilder();
+                for (int x = 0; x < this.size; x++) {
+                    row.append(x > 0 ? " " : "").append(mines.isMined(x, y) ? '1' : '0');
+                }
+                out.println(row);
+            }
+        }
+        return file;
+    }
+
+    private static int digEverySafeSquare(Board board) {
+        int num_revealed = 0;
+        for (int y = 0; y < board.getY_size(); y++) {
+            for (int x = 0; x < board.getX_size(); x++) {
+                if (!board.hasMine(x, y)) {
+                    num_revealed += board.dig(x, y);
+                }
+            }
+        }
+        return num_revealed;
+    }
+
+    /** A random board, mined by Math.random(). */
+    @Benchmark
+    public Board constructRandom() {
+        return new Board(this.size, this.size);
+    }
+
+    /** A board read from a text board file. */
+    @Benchmark
+    public Board constructFromTextFile() {
+        return new Board(this.text_file);
+    }
+
+    /** A board read from a binary board file. */
+    @Benchmark
+    public Board constructFromBinaryFile() {
+        return new Board(this.binary_file);
+    }
+
+    /**
+     * Dig every safe square of a fresh board, one square at a time, none of which
+     * spreads to its neighbors. The score is for the whole board.
+     */
+    @Benchmark
+    public int digCold(SparseBoard fresh) {
+        return digEverySafeSquare(fresh.board);
+    }
+
+    /** Dig one square that's already dug, which changes nothing. */
+    @Benchmark
+    public int digWarm() {
+        final int square = nextSquare();
+        return this.dug_board.dig(square % this.size, square / this.size);
+    }
+
+    /**
+     * Dig the corner of a fresh board without mines, which floods every square. The
+     * score is for the whole board.
+     */
+    @Benchmark
+    public int floodFill(EmptyBoard fresh) {
+        return fresh.board.dig(0, 0);
+    }
+
+    /** Flag a square, then deflag it, one square after another. */
+    @Benchmark
+    public void flagDeflag() {
+        final int square = nextSquare();
+        this.untouched_board.flag(square % this.size, square / this.size);
+        this.untouched_board.deflag(square % this.size, square / this.size);
+    }
+
+    /** Look at a board that hasn't changed since the last look. */
+    @Benchmark
+    public String look() {
+        return this.untouched_board.toString();
+    }
+
+    /** Flag a square, then look at the board, so each look shows a new version. */
+    @Benchmark
+    public void flagThenLook(Blackhole blackhole) {
+        final int square = nextSquare();
+        final int x = square % this.size;
+        final int y = square / this.size;
+        if (this.untouched_board.isFlagged(x, y)) {
+            this.untouched_board.deflag(x, y);
+        } else {
+            this.untouched_board.flag(x, y);
+        }
+        blackhole.consume(this.untouched_board.toString());
+    }
+
+    /** Look at a board run-length encoded, which is encoded afresh every time. */
+    @Benchmark
+    public String lookCompressed() {
+        return this.untouched_board.toCompressedString();
+    }
+
+    private int nextSquare() {
+        final int square = this.next_square;
+        this.next_square = (square + 1 == this.size * this.size) ? 0 : square + 1;
+        return square;
+    }
+
+    /** A fresh copy of the sparse board for each invocation. */
+    @State(Scope.Thread)
+    public static class SparseBoard {
+        Board board;
+
+        @Setup(Level.Invocation)
+        public void setUp(BoardBenchmark benchmark) {
+            this.board = new Board(benchmark.sparse_file);
+        }
+    }
+
+    /** A fresh copy of the empty board for each invocation. */
+    @State(Scope.Thread)
+    public static class EmptyBoard {
+        Board board;
+
+        @Setup(Level.Invocation)
+        public void setUp(BoardBenchmark benchmark) {
+            this.board = new Board(benchmark.empty_file);
+        }
+    }
+}
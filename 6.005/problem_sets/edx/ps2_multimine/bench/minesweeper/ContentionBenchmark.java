@@ -0,0 +1,106 @@
+package minesweeper;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Many threads working on the same board, the way a server's players do. Run with
+ * JMH's -t option, or see BenchmarkRunner, which runs these with 1 to 64 threads.
+ *
+ * Each thread picks squares at random, so threads collide about as often as players
+ * spread over the whole board would. The board is replaced at the start of every
+ * iteration, so digging still finds untouched squares for a while.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ContentionBenchmark {
+
+    /** The width and height of the board. */
+    @Param({"10", "100", "1000"})
+    public int size;
+
+    // The board every thread shares.
+    private Board board;
+
+    @Setup(Level.Iteration)
+    public void createBoard() {
+        this.board = new Board(this.size, this.size);
+    }
+
+    /** Flag a random square, then deflag it. */
+    @Benchmark
+    public void flagDeflag() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int x = random.nextInt(this.size);
+        final int y = random.nextInt(this.size);
+        this.board.flag(x, y);
+        this.board.deflag(x, y);
+    }
+
+    /** Dig a random square, which may set off a mine or flood its neighbors. */
+    @Benchmark
+    public int dig() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return this.board.dig(random.nextInt(this.size), random.nextInt(this.size));
+    }
+
+    /**
+     * Look at the board while the other threads do the same. Looks share the stripe
+     * locks, so this should scale with the number of threads, up to the number of
+     * cores.
+     */
+    @Benchmark
+    public String look() {
+        return this.board.toString();
+    }
+
+    /** Look at a random window of the board, at most 32 x 32 squares. */
+    @Benchmark
+    public String lookWindow() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return this.board.toString(random.nextInt(this.size), random.nextInt(this.size),
+                32, 32);
+    }
+
+    /** Check a random square, which never locks. */
+    @Benchmark
+    public boolean isFlagged() {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        return this.board.isFlagged(random.nextInt(this.size), random.nextInt(this.size));
+    }
+
+    /**
+     * Something like a game in progress: mostly flags and digs, with a look for every
+     * ten moves.
+     */
+    @Benchmark
+    public void play(Blackhole blackhole) {
+        final ThreadLocalRandom random = ThreadLocalRandom.current();
+        final int x = random.nextInt(this.size);
+        final int y = random.nextInt(this.size);
+        switch (random.nextInt(11)) {
+            case 0:
+                blackhole.consume(this.board.toString());
+                break;
+            case 1:
+            case 2:
+            case 3:
+                blackhole.consume(this.board.dig(x, y));
+                break;
+            default:
+                if (this.board.isFlagged(x, y)) {
+                    this.board.deflag(x, y);
+                } else {
+                    this.board.flag(x, y);
+                }
+                break;
+        }
+    }
+}
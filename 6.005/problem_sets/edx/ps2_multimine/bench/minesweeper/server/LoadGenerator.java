@@ -0,0 +1,413 @@
+package minesweeper.server;
+
+import minesweeper.Board;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Plays many players against a Minesweeper server at once, and reports how many requests
+ * it answered and how long they took, for planning capacity and for checking changes to
+ * the server end to end.
+ *
+ * Each player has its own connection and thread. It sends a burst of requests in one
+ * write, picked at random from a weighted mix of commands on random squares, reads
+ * every response, thinks for a while, and repeats until time is up. A request's latency
+ * is from the write of its burst until its whole response has been read, so with bursts
+ * of more than one it includes waiting behind the requests ahead of it, as a pipelining
+ * client would.
+ *
+ * Usage:
+ *   LoadGenerator [--host HOST] [--port PORT | --local [--nio] [--size SIZE_X,SIZE_Y]]
+ *                 [--connections N] [--duration SECONDS] [--mix COMMAND=WEIGHT,...]
+ *                 [--think MS] [--burst N] [--diff] [--compress] [--seed SEED]
+ *
+ * --local starts a server in this JVM, in debug mode so players survive BOOM, with a
+ * random SIZE_X by SIZE_Y board (100 by 100 by default) made from SEED, and prints its
+ * own statistics at the end too; --nio makes it a MinesweeperNioServer. Otherwise the
+ * server at HOST:PORT (127.0.0.1:4444 by default) is played, which should be in debug
+ * mode too: players who are blown up reconnect, and are counted as disconnects.
+ * COMMAND is look, dig, flag or deflag; the mix defaults to look=1,dig=2,flag=5,deflag=2.
+ * --diff turns on diff mode for every player, so responses only hold what changed.
+ * --compress turns on compression for every player, so boards are run-length encoded.
+ *
+ * E.g. "LoadGenerator --local --nio --connections 1000 --burst 8 --duration 30"
+ */
+public class LoadGenerator {
+
+    private static final String[] COMMANDS = {"look", "dig", "flag", "deflag"};
+    private static final Pattern BOARD_SIZE =
+            Pattern.compile("Board: (\\d+) columns by (\\d+) rows");
+
+    private final String host;
+    private final int port;
+    private final int num_connections;
+    // The relative weight of each of COMMANDS, and their total.
+    private final int[] weights;
+    private final int total_weight;
+    private final long think_nanos;
+    private final int burst;
+    private final boolean diff;
+    private final boolean compress;
+    private final long seed;
+
+    // The latency of each of COMMANDS, in nanoseconds.
+    private final ServerStats.Histogram[] latencies =
+            new ServerStats.Histogram[COMMANDS.length];
+    // The number of times a player lost its connection, or couldn't make one.
+    private final LongAdder disconnects = new LongAdder();
+
+    /**
+     * Make a load generator.
+     *
+     * @param host the server's host
+     * @param port the server's port
+     * @param num_connections the number of players, requires num_connections >= 1
+     * @param weights the relative weight of each of COMMANDS, all >= 0, at least one > 0
+     * @param think_ms how long each player waits after each burst, in ms, >= 0
+     * @param burst the number of requests in each burst, requires burst >= 1
+     * @param diff whether players should turn on diff mode
+     * @param compress whether players should turn on compression
+     * @param seed the seed the players' random choices are made from
+     */
+    LoadGenerator(String host, int port, int num_connections, int[] weights, long think_ms,
+                  int burst, boolean diff, boolean compress, long seed) {
+        this.host = host;
+        this.port = port;
+        this.num_connections = num_connections;
+        this.weights = weights.clone();
+        this.total_weight = Arrays.stream(weights).sum();
+        this.think_nanos = TimeUnit.MILLISECONDS.toNanos(think_ms);
+        this.burst = burst;
+        this.diff = diff;
+        this.compress = compress;
+        this.seed = seed;
+        for (int i = 0; i < COMMANDS.length; i++) {
+            this.latencies[i] = new ServerStats.Histogram();
+        }
+    }
+
+    /**
+     * Play every player against the server until the time is up, then print a report.
+     *
+     * @param duration_seconds how long to play for, requires duration_seconds >= 1
+     * @throws InterruptedException if interrupted while waiting for the players
+     */
+    void run(long duration_seconds) throws InterruptedException {
+        final long start = System.nanoTime();
+        final long deadline = start + TimeUnit.SECONDS.toNanos(duration_seconds);
+        final List<Thread> players = new ArrayList<>();
+        for (int i = 0; i < this.num_connections; i++) {
+            final int id = i;
+            final Thread player = new Thread(() -> play(id, deadline), "load-player-" + id);
+            player.setDaemon(true);
+            players.add(player);
+            player.start();
+        }
+        for (Thread player : players) {
+            player.join();
+        }
+        report(System.nanoTime() - start);
+    }
+
+    /**
+     * Play one player until the deadline, reconnecting whenever the connection is lost.
+     *
+     * @param id the player's number, 0 <= id < num_connections
+     * @param deadline System.nanoTime() when the player should stop
+     */
+    private void play(int id, long deadline) {
+        final SplittableRandom random = new SplittableRandom(this.seed + id);
+        final int[] kinds = new int[this.burst];
+        while (System.nanoTime() < deadline) {
+            try (Socket socket = new Socket(this.host, this.port)) {
+                final BufferedReader in = new BufferedReader(new InputStreamReader(
+                        socket.getInputStream(), StandardCharsets.US_ASCII));
+                final OutputStream out = socket.getOutputStream();
+
+                final Matcher welcome = BOARD_SIZE.matcher(String.valueOf(in.readLine()));
+                if (!welcome.find()) {
+                    throw new IOException("unexpected welcome message");
+                }
+                final int x_size = Integer.parseInt(welcome.group(1));
+                final int y_size = Integer.parseInt(welcome.group(2));
+                if (this.diff) {
+                    out.write("diff on\n".getBytes(StandardCharsets.US_ASCII));
+                    readResponse(in, y_size);
+                }
+                if (this.compress) {
+                    out.write("compress on\n".getBytes(StandardCharsets.US_ASCII));
+                    readResponse(in, y_size);
+                }
+
+                while (System.nanoTime() < deadline) {
+                    final StringBuilder requests = new StringBuilder();
+                    for (int i = 0; i < this.burst; i++) {
+                        kinds[i] = pickCommand(random);
+                        requests.append(COMMANDS[kinds[i]]);
+                        if (kinds[i] > 0) {
+                            requests.append(' ').append(random.nextInt(x_size))
+                                    .append(' ').append(random.nextInt(y_size));
+                        }
+                        requests.append('\n');
+                    }
+                    final long sent = System.nanoTime();
+                    out.write(requests.toString().getBytes(StandardCharsets.US_ASCII));
+                    for (int i = 0; i < this.burst; i++) {
+                        readResponse(in, y_size);
+                        this.latencies[kinds[i]].record(System.nanoTime() - sent);
+                    }
+                    if (this.think_nanos > 0) {
+                        LockSupport.parkNanos(this.think_nanos);
+                    }
+                }
+                out.write("bye\n".getBytes(StandardCharsets.US_ASCII));
+            } catch (IOException ioe) {
+                this.disconnects.increment();
+            }
+        }
+    }
+
+    /**
+     * Pick a command at random, according to the weights.
+     *
+     * @param random the player's random numbers
+     * @return the index in COMMANDS of the command
+     */
+    private int pickCommand(SplittableRandom random) {
+        int choice = random.nextInt(this.total_weight);
+        int command = 0;
+        while (choice >= this.weights[command]) {
+            choice -= this.weights[command];
+            command++;
+        }
+        return command;
+    }
+
+    /**
+     * Read one whole response. The protocol doesn't say how long a response is, but its
+     * first line does: a "DIFF V N" line has N lines after it, a "BOARD V" line has the
+     * whole board, BOOM! stands alone, and anything else is the first row of a board.
+     *
+     * @param in the stream from the server
+     * @param y_size the number of rows on the board
+     * @throws IOException if the connection is lost
+     */
+    private static void readResponse(BufferedReader in, int y_size) throws IOException {
+        final String first = readLine(in);
+        final int num_lines;
+        if (first.startsWith("DIFF ")) {
+            num_lines = Integer.parseInt(first.substring(first.lastIndexOf(' ') + 1));
+        } else if (first.startsWith("BOARD ")) {
+            num_lines = y_size;
+        } else if (first.equals(MinesweeperProtocol.MESSAGE_BOOM)) {
+            num_lines = 0;
+        } else {
+            num_lines = y_size - 1;
+        }
+        for (int i = 0; i < num_lines; i++) {
+            readLine(in);
+        }
+    }
+
+    private static String readLine(BufferedReader in) throws IOException {
+        final String line = in.readLine();
+        if (line == null) {
+            throw new IOException("connection closed");
+        }
+        return line;
+    }
+
+    /**
+     * Print the throughput, and each command's latency percentiles in microseconds.
+     *
+     * @param elapsed_nanos how long the players played for
+     */
+    private void report(long elapsed_nanos) {
+        long num_requests = 0;
+        for (ServerStats.Histogram histogram : this.latencies) {
+            num_requests += histogram.count();
+        }
+        final double seconds = elapsed_nanos / 1e9;
+        System.out.printf("%d connections, %d requests in %.1f s: %.0f requests/s,"
+                        + " %d disconnects%n", this.num_connections, num_requests, seconds,
+                num_requests / seconds, this.disconnects.sum());
+        System.out.printf("%-8s %10s %10s %10s %10s %10s%n",
+                "command", "count", "p50_us", "p90_us", "p99_us", "max_us");
+        for (int i = 0; i < COMMANDS.length; i++) {
+            final ServerStats.Histogram histogram = this.latencies[i];
+            System.out.printf("%-8s %10d %10d %10d %10d %10d%n", COMMANDS[i],
+                    histogram.count(),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.percentile(50)),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.percentile(90)),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.percentile(99)),
+                    TimeUnit.NANOSECONDS.toMicros(histogram.max()));
+        }
+    }
+
+    /**
+     * Run a load test with the given arguments, as described above.
+     *
+     * @param args arguments as described
+     * @throws IOException if a local server can't be started
+     * @throws InterruptedException if interrupted while the load test is running
+     */
+    public static void main(String[] args) throws IOException, InterruptedException {
+        String host = "127.0.0.1";
+        int port = 4444;
+        boolean local = false;
+        boolean nio = false;
+        int size_x = 100;
+        int size_y = 100;
+        int connections = 100;
+        long duration = 10;
+        int[] weights = {1, 2, 5, 2};
+        long think_ms = 0;
+        int burst = 1;
+        boolean diff = false;
+        boolean compress = false;
+        long seed = 6005;
+
+        final Queue<String> arguments = new LinkedList<>(Arrays.asList(args));
+        try {
+            while (!arguments.isEmpty()) {
+                final String flag = arguments.remove();
+                try {
+                    if (flag.equals("--host")) {
+                        host = arguments.remove();
+                    } else if (flag.equals("--port")) {
+                        port = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--local")) {
+                        local = true;
+                    } else if (flag.equals("--nio")) {
+                        nio = true;
+                    } else if (flag.equals("--size")) {
+                        final String[] sizes = arguments.remove().split(",");
+                        size_x = Integer.parseInt(sizes[0]);
+                        size_y = Integer.parseInt(sizes[1]);
+                    } else if (flag.equals("--connections")) {
+                        connections = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--duration")) {
+                        duration = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--mix")) {
+                        weights = parseMix(arguments.remove());
+                    } else if (flag.equals("--think")) {
+                        think_ms = Long.parseLong(arguments.remove());
+                    } else if (flag.equals("--burst")) {
+                        burst = Integer.parseInt(arguments.remove());
+                    } else if (flag.equals("--diff")) {
+                        diff = true;
+                    } else if (flag.equals("--compress")) {
+                        compress = true;
+                    } else if (flag.equals("--seed")) {
+                        seed = Long.parseLong(arguments.remove());
+                    } else {
+                        throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
+                    }
+                } catch (NoSuchElementException nsee) {
+                    throw new IllegalArgumentException("missing argument for " + flag);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IllegalArgumentException("unable to parse number for " + flag);
+                }
+            }
+            if (connections < 1 || duration < 1 || think_ms < 0 || burst < 1
+                    || size_x < 1 || size_y < 1) {
+                throw new IllegalArgumentException("numbers out of range");
+            }
+        } catch (IllegalArgumentException iae) {
+            System.err.println(iae.getMessage());
+            System.err.println("usage: LoadGenerator [--host HOST] [--port PORT | --local [--nio]"
+                    + " [--size SIZE_X,SIZE_Y]] [--connections N] [--duration SECONDS]"
+                    + " [--mix COMMAND=WEIGHT,...] [--think MS] [--burst N] [--diff]"
+                    + " [--compress] [--seed SEED]");
+            return;
+        }
+
+        if (!local) {
+            new LoadGenerator(host, port, connections, weights, think_ms, burst, diff, compress,
+                    seed).run(duration);
+            return;
+        }
+
+        final Board board = new Board(size_x, size_y, seed);
+        if (nio) {
+            final MinesweeperNioServer server = new MinesweeperNioServer(0, true, board,
+                    Runtime.getRuntime().availableProcessors());
+            final Thread serving = startServing(server::serve);
+            new LoadGenerator("127.0.0.1", server.port(), connections, weights, think_ms,
+                    burst, diff, compress, seed).run(duration);
+            System.out.println(server.stats().report());
+            server.shutdown();
+            serving.join();
+        } else {
+            final MinesweeperServer server = new MinesweeperServer(0, true, board,
+                    MinesweeperServer.Workers.VIRTUAL, connections);
+            final Thread serving = startServing(server::serve);
+            new LoadGenerator("127.0.0.1", server.port(), connections, weights, think_ms,
+                    burst, diff, compress, seed).run(duration);
+            System.out.println(server.stats().report());
+            server.shutdown();
+            serving.join();
+        }
+    }
+
+    /** A server's serve() method. */
+    private interface Serve {
+        void serve() throws IOException;
+    }
+
+    /**
+     * Serve on a new thread.
+     *
+     * @param serve the server's serve() method
+     * @return the thread, which finishes once the server is shut down
+     */
+    private static Thread startServing(Serve serve) {
+        final Thread serving = new Thread(() -> {
+            try {
+                serve.serve();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }, "load-server");
+        serving.start();
+        return serving;
+    }
+
+    /**
+     * Parse a command mix, such as "look=1,dig=2,flag=5,deflag=2". Commands left out
+     * have a weight of 0.
+     *
+     * @param mix the mix
+     * @return the weight of each of COMMANDS
+     * @throws IllegalArgumentException if the mix isn't valid, or every weight is 0
+     */
+    private static int[] parseMix(String mix) {
+        final int[] weights = new int[COMMANDS.length];
+        for (String part : mix.split(",")) {
+            final String[] command_weight = part.split("=");
+            final int command = Arrays.asList(COMMANDS).indexOf(command_weight[0]);
+            if (command_weight.length != 2 || command < 0) {
+                throw new IllegalArgumentException("unknown command in mix: \"" + part + "\"");
+            }
+            weights[command] = Integer.parseInt(command_weight[1]);
+            if (weights[command] < 0) {
+                throw new IllegalArgumentException("negative weight in mix: \"" + part + "\"");
+            }
+        }
+        if (Arrays.stream(weights).sum() == 0) {
+            throw new IllegalArgumentException("every weight in the mix is 0");
+        }
+        return weights;
+    }
+}
@@ -0,0 +1,92 @@
+package minesweeper.server;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares parsing request lines with Request against the regular expression, split
+ * and parseInt that the protocol used before. Each invocation parses one line from a
+ * mix shaped like bot traffic: mostly flags and digs, some looks, a few invalid lines.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestBenchmark {
+
+    private static final String REGEX = "(look)|(help)|(bye)|(look since \\d{1,18})|"
+            + "(diff (on|off))|(watch)|(unwatch)|"
+            + "(join [\\w-]{1,32})|(create [\\w-]{1,32} \\d{1,4} \\d{1,4})|"
+            + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+
+    private static final String[] LINES = {
+        "flag 12 7", "flag 13 7", "dig 4 19", "deflag 12 7", "flag 250 -3", "look",
+        "dig 1023 1023", "flag 0 0", "look since 81723", "dig -1 5", "flag 14 7",
+        "dag 1 2", "dig 3 3", "flag 99 100", "deflag 99 100", "help",
+    };
+
+    private final Request request = new Request();
+    private final MinesweeperNioServer.AsciiLine view =
+            new MinesweeperNioServer.AsciiLine();
+    private ByteBuffer buffer;
+    private int[] starts;
+    private int next = 0;
+
+    @Setup
+    public void setUp() {
+        // Every line laid out in one direct buffer, the way the NIO server reads them.
+        this.buffer = ByteBuffer.allocateDirect(1024);
+        this.starts = new int[LINES.length + 1];
+        for (int i = 0; i < LINES.length; i++) {
+            this.starts[i] = this.buffer.position();
+            this.buffer.put(LINES[i].getBytes(StandardCharsets.US_ASCII));
+        }
+        this.starts[LINES.length] = this.buffer.position();
+    }
+
+    private int nextLine() {
+        final int line = this.next;
+        this.next = (line + 1 == LINES.length) ? 0 : line + 1;
+        return line;
+    }
+
+    /** The old path: match, split, then parse each coordinate. */
+    @Benchmark
+    public void regex(Blackhole blackhole) {
+        final String line = LINES[nextLine()];
+        if (!line.matches(REGEX)) {
+            blackhole.consume(false);
+            return;
+        }
+        final String[] tokens = line.split(" ");
+        blackhole.consume(tokens[0]);
+        if (tokens.length == 3 && !tokens[0].equals("look")) {
+            blackhole.consume(Integer.parseInt(tokens[1]));
+            blackhole.consume(Integer.parseInt(tokens[2]));
+        }
+    }
+
+    /** Request parsing a line that has already been read into a String. */
+    @Benchmark
+    public void parseString(Blackhole blackhole) {
+        blackhole.consume(this.request.parse(LINES[nextLine()]));
+        blackhole.consume(this.request.getX());
+        blackhole.consume(this.request.getY());
+    }
+
+    /** Request parsing a line straight out of the read buffer, as the NIO server does. */
+    @Benchmark
+    public void parseBuffer(Blackhole blackhole) {
+        final int line = nextLine();
+        this.view.reset(this.buffer, this.starts[line], this.starts[line + 1]);
+        blackhole.consume(this.request.parse(this.view));
+        blackhole.consume(this.request.getX());
+        blackhole.consume(this.request.getY());
+    }
+}
@@ -4,28 +4,116 @@
 package minesweeper;
 
 import java.io.*;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
 import java.util.*;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.concurrent.locks.StampedLock;
+import java.util.stream.IntStream;
 
 /**
  * A threadsafe multiplayer minesweeper board, a grid of squares with X_SIZE x Y_SIZE
  * squares in it, each of which may or may not conceal a mine.
- * Squares are mined with a probability of 25%.
+ * Unless a board file or the number of mines is given, squares are mined with a
+ * probability of 25%. A random board created with a seed is the same every time.
  *
  * Squares are numbered starting from the top left, which is (0,0).
  * The bottom right square would be at (X_SIZE - 1, Y_SIZE - 1).
+ *
+ * Each square is stored as a single byte, so a board costs about one byte per square.
+ * Digging a square with no mined neighbors digs every safe, untouched square connected
+ * to it.
  */
-public class Board {
+public class Board implements MinesweeperBoard {
     /*
-    * X_SIZE >= 1, Y_SIZE >= 1
+    * X_SIZE >= 1, Y_SIZE >= 1, X_SIZE * Y_SIZE <= Integer.MAX_VALUE
+    *
+    * Representation:
+    *   cells holds the state of every square, packed as described in Square, row by row:
+    *   the square at (x, y) is cells[y * X_SIZE + x].
+    *   version counts every change ever made to a square in cells.
+    *   rendering, once it exists, is the board as toString() shows it, kept up to date
+    *   square by square: each row is ROW_LENGTH = 2 * X_SIZE + 1 bytes, the symbol for
+    *   (x, y) is at rendering[y * ROW_LENGTH + 2 * x], followed by a space, and each row
+    *   ends in a newline. rendered, if not null, holds the text of rendering as it was
+    *   at some version, and that version.
+    *   change_log remembers the most recent changes to squares: the change that brought
+    *   the board to version v is packed into change_log[v % change_log.length], tagged
+    *   with the low bits of v so an entry that has been overwritten can be recognized.
+    *   subscriptions holds every subscription that hasn't been cancelled.
+    *   snapshot, if not null, is a copy of cells as they were at some version.
     *
     * Thread safety:
-    *   All methods which mutate or depend upon the rep are synchronized. Only one thread
-    *   can change the grid at any given time.
+    *   Every square changes by compare-and-set on its byte in cells, from one state to
+    *   the next: untouched to flagged, flagged to untouched, untouched to dug, or a new
+    *   mined neighbor count. A change that loses a race rereads the square and decides
+    *   again, so each square moves through valid states one step at a time, and
+    *   single-square commands (flag, deflag, and digging a square with mined neighbors)
+    *   never take a lock at all.
+    *   Single-square observers (isDug, isFlagged, hasMine, isUntouched, getSquare) are
+    *   a single volatile read of the square's byte, so they never lock either.
+    *   Changes that span several squares, the flood fill and the explosion that feeds
+    *   it, also need their squares' neighbor counts to hold still. The grid is
+    *   partitioned into square stripes of STRIPE_SIZE x STRIPE_SIZE squares, each with
+    *   its own read-write lock, and only a thread holding a square's stripe for writing
+    *   may change its count or dig it as part of a flood. Whenever a thread needs more
+    *   than one stripe, it acquires them in ascending stripe order, which makes deadlock
+    *   impossible. A dig whose flood fill reaches stripes it doesn't hold releases
+    *   everything and starts over with the larger set of stripes, before changing any
+    *   squares. Flags are removed without a lock, though, so a deflag can open a way
+    *   out of the stripes a flood locked after it looked. The flood never digs past
+    *   the stripes it holds; the dig carries on from where it stopped in the same way,
+    *   once it holds the stripes beyond. Holding every stripe, even for reading,
+    *   therefore shows a board with no flood half done, unless a deflag raced it,
+    *   though single-square changes carry on meanwhile. Looks and other whole-board
+    *   reads only need that, so they hold stripes for reading, and any number of them
+    *   proceed in parallel, waiting only for floods.
+    *   The stripe locks are StampedLocks, used through their read and write lock views.
+    *   They aren't reentrant, so no thread ever locks a stripe it already holds.
+    *   The mine counter is a LongAdder, so flags on distant squares don't contend on it.
+    *   Its sum can be briefly off while changes are in flight, so it's read as at least 0.
+    *   After a square changes, the changing thread patches rendering, then increments
+    *   version, then records the change in change_log and publishes it to subscriptions.
+    *   So anyone who reads version and then rendering sees every change counted in that
+    *   version, which keeps rendered from going stale. Each step reads the square's
+    *   state afresh instead of trusting the state it set, so when two changes to a square
+    *   race, whichever finishes last leaves the latest state behind:
+    *     - rendering is patched by writing a symbol, then checking the square still
+    *       shows it, until it does.
+    *     - the change_log entry with the highest version for a square was read after
+    *       every change to that square counted in a lower version.
+    *     - subscriptions only queue squares, and read their state when polled.
+    *   rendering is volatile and created while holding every stripe for reading and
+    *   rendering_lock, so it's only created once. It's published before its symbols are
+    *   filled in, with the same checks as patching, so no change that races with its
+    *   creation is lost. rendered is volatile and immutable, so readers check it without
+    *   locking, and is only replaced while holding every stripe and rendering_lock.
+    *   change_log is only read with every stripe held, but single-square changes may
+    *   still be between counting themselves in version and writing their entry. The tag
+    *   tells the reader when an entry isn't there yet, or was overwritten by a writer a
+    *   whole lap of the log ahead, and the reader falls back to the whole board.
+    *   snapshot is volatile and immutable, so spectators read it without locking. It's
+    *   only replaced while holding snapshot_lock, so only one thread copies the board at
+    *   a time, and its copy is made while holding every stripe for reading.
+    *   subscriptions is replaced rather than changed, while holding subscriptions_lock,
+    *   and is volatile, so publishing a change reads a consistent array without locking.
+    *   Boards no larger than STRIPE_SIZE x STRIPE_SIZE have a single stripe, which
+    *   behaves exactly like one read-write lock on the whole board.
     *
     * Operations:
     *
     *   Creators
-    *       Constructors : with input file (deterministic), without input file (random)
+    *       Constructors : with input file (deterministic), without input file (random,
+    *                      or reproducible from a seed, with a mine probability or an
+    *                      exact number of mines),
+    *                      from a saved state (see BoardJournal)
     *   Producers
     *       None?
     *   Mutators
@@ -34,6 +122,19 @@ public class Board {
     *       deflag: Deflag a square
     *   Observers
     *       look: Display the grid
+    *       toString: int x, int y, int width, int height -> String: Display a window of
+    *                                                               the grid
+    *       toCompressedString: [int x, int y, int width, int height] -> String: Display
+    *                           the grid, or a window of it, run-length encoded
+    *       version -> long: Get the number of changes made to squares so far.
+    *       numLockWaits, lockWaitNanos -> long: Get how often, and for how long in
+    *                                            total, threads have had to wait for
+    *                                            another thread's stripe.
+    *       changesSince: long -> BoardChanges: Get the squares that changed after the
+    *                                           given version, or the whole grid.
+    *       subscribe: int, Runnable -> BoardSubscription: Start receiving every change
+    *                                                      to the grid as it happens.
+    *       snapshot: long -> BoardSnapshot: Get a recent immutable copy of the grid.
     *       isDug: int x, int y -> boolean: Return true if the Square at the given X and Y
     *                                       has been dug.
     *       isFlagged: int x, int y -> boolean: Return true if the Square at the given X
@@ -44,24 +145,76 @@ public class Board {
     *                                 remaining.
     *       hasMinesRemaining -> boolean: Return true if there are undiscovered/unexploded
     *                                  mines remaining on the board.
-    *       getNeighbors: int x, int y -> List<Squares>: Get all neighbors of the Square
-    *                                                    at the given X and Y.
+    *       getSquare: int x, int y -> Square: Get a view of the Square at the given X
+    *                                          and Y.
+    *       neighborsOf: int square, int[] -> int: Write the positions in cells of all
+    *                                              neighbors of the square into the
+    *                                              given array, and count them.
     */
 
     private final int y_size;
     private final int x_size;
     // The current number of undiscovered/unexploded mines remaining on the grid.
-    private int num_mines_remaining;
+    private final LongAdder num_mines_remaining = new LongAdder();
     // The number of mines the grid had when it was created.
     private int total_num_mines;
-    private final ArrayList<ArrayList<Square>> grid;
-    // The probability of a mine appearing in any given square when the board is created.
-    private final double MINE_PROBABILITY = 0.25;
-    private final String UNTOUCHED_SQUARE_SYMBOL = "- ";
-    private final String FLAGGED_SQUARE_SYMBOL = "F ";
-    private final String DUG_SQUARE_NO_BOMB_SYMBOL = "  ";
-    // A cache of squares, mapped to their neighbors.
-    private final Map<String, List<Square>> neighbors;
+    // The state of every square on the board, one byte each. See Square for the layout.
+    private final byte[] cells;
+    // Atomic access to the elements of cells and rendering.
+    private static final VarHandle BYTES =
+            MethodHandles.arrayElementVarHandle(byte[].class);
+    // The probability of a mine appearing in any given square when a random board is
+    // created, unless another probability or the number of mines is given.
+    private static final double MINE_PROBABILITY = 0.25;
+    // Neighbor counts are calculated in parallel, in bands of rows with about this many
+    // squares in each.
+    private static final int COUNT_BAND_SIZE = 1 << 16;
+    private static final byte UNTOUCHED_SQUARE_SYMBOL = '-';
+    private static final byte FLAGGED_SQUARE_SYMBOL = 'F';
+    private static final byte DUG_SQUARE_NO_BOMB_SYMBOL = ' ';
+    // Run-length encoded boards separate runs with spaces, so show these squares as '.'.
+    private static final byte COMPRESSED_NO_BOMB_SYMBOL = '.';
+    // The number of changes that have been made to squares since the board was created.
+    private final AtomicLong version = new AtomicLong();
+    // The board as text, patched as squares change. Created the first time it's needed,
+    // since it's twice the size of cells.
+    private volatile byte[] rendering = null;
+    // The last board text handed out by toString(), and the version it shows.
+    private volatile RenderedText rendered = null;
+    // Held while creating rendering or replacing rendered, so that looks proceeding in
+    // parallel do each only once.
+    private final Object rendering_lock = new Object();
+    // The most recent changes to squares, as described above. Its length is a power of
+    // two, and never more than a quarter of the number of squares, since a list of
+    // changes longer than that is no cheaper to send than the whole board.
+    private final AtomicLongArray change_log;
+    private static final int MIN_CHANGE_LOG_SIZE = 16;
+    private static final int MAX_CHANGE_LOG_SIZE = 1 << 16;
+    // Layout of a change log entry: the new state in bits 0-7, the square's position in
+    // cells in bits 8-38, and the low bits of the version in bits 39-63.
+    private static final int CHANGE_SQUARE_SHIFT = 8;
+    private static final int CHANGE_TAG_SHIFT = 39;
+    private static final long CHANGE_TAG_MASK = (1L << (64 - CHANGE_TAG_SHIFT)) - 1;
+    // The latest copy of the board handed out by snapshot(), or null if none yet, and
+    // the lock held while making a new one.
+    private volatile BoardSnapshot snapshot = null;
+    private final ReentrantLock snapshot_lock = new ReentrantLock();
+    // Everyone watching the board's changes.
+    private volatile BoardSubscription[] subscriptions = new BoardSubscription[0];
+    private final Object subscriptions_lock = new Object();
+    // The most neighbors a square can have.
+    private static final int MAX_NEIGHBORS = 8;
+    // The width and height of each lock stripe, in squares.
+    private static final int STRIPE_SIZE = 16;
+    // The number of stripes across the board (X) and down the board (Y).
+    private final int stripes_x;
+    private final int stripes_y;
+    // One lock per stripe, numbered across each row of stripes, then down.
+    private final StampedLock[] stripes;
+    // The number of times a thread has found a stripe already locked, and the total time
+    // spent waiting for one, for finding out whether the locks are a bottleneck.
+    private final LongAdder num_lock_waits = new LongAdder();
+    private final LongAdder lock_wait_nanos = new LongAdder();
 
     /**
      * Create a new multiplayer minesweeper board, with a number of squares equal to
@@ -70,11 +223,40 @@ public class Board {
      * @param x_size int >= 1, representing the number of x_size in the board.
      */
     public Board(int x_size, int y_size) {
+        this(x_size, y_size, ThreadLocalRandom.current().nextLong());
+    }
+
+    /**
+     * Create a new multiplayer minesweeper board, with a number of squares equal to
+     * ROWS x COLUMNS and mines placed at random, but the same way every time for the
+     * same seed.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param seed The seed the mines are placed from.
+     */
+    public Board(int x_size, int y_size, long seed) {
+        this(x_size, y_size, seed, MINE_PROBABILITY);
+    }
+
+    /**
+     * Create a new multiplayer minesweeper board, with a number of squares equal to
+     * ROWS x COLUMNS, each mined with the given probability, the same way every time for
+     * the same seed.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param seed The seed the mines are placed from.
+     * @param mine_probability 0 <= mine_probability <= 1, the probability of each square
+     *                         being mined.
+     */
+    public Board(int x_size, int y_size, long seed, double mine_probability) {
         this.y_size = y_size;
         this.x_size = x_size;
+        this.stripes_x = numStripes(x_size);
+        this.stripes_y = numStripes(y_size);
+        this.stripes = createStripes();
+        this.change_log = createChangeLog();
         // Create a grid and place mines randomly.
-        this.grid = createGrid(true);
-        this.neighbors = new HashMap<>();
+        this.cells = MineGenerator.withProbability(x_size * y_size, mine_probability, seed);
         // Calculate neighbor counts for all squares without mines.
         calculateMinedNeighborCounts();
 
@@ -84,16 +266,41 @@ public class Board {
         checkRep();
     }
 
+    /**
+     * Create a new multiplayer minesweeper board, with a number of squares equal to
+     * ROWS x COLUMNS and exactly the given number of mines, placed at random but the
+     * same way every time for the same seed.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param seed The seed the mines are placed from.
+     * @param num_mines 0 <= num_mines <= x_size * y_size, the number of mines.
+     */
+    public Board(int x_size, int y_size, long seed, int num_mines) {
+        this.y_size = y_size;
+        this.x_size = x_size;
+        this.stripes_x = numStripes(x_size);
+        this.stripes_y = numStripes(y_size);
+        this.stripes = createStripes();
+        this.change_log = createChangeLog();
+        // Create a grid and place exactly num_mines mines.
+        this.cells = MineGenerator.withCount(x_size * y_size, num_mines, seed);
+        // Calculate neighbor counts for all squares without mines.
+        calculateMinedNeighborCounts();
+
+        checkRep();
+    }
+
     private void checkRep() {
         assert this.y_size >= 0;
         assert this.x_size >= 0;
-        assert this.num_mines_remaining >= 0;
+        assert this.num_mines_remaining.sum() >= 0;
     }
 
     /**
      * Create a new multiplayer minesweeper board matching the given board file.
-     * @param board_file The properly-formatted board file to use to generate the board.
-     *                   The file format for board files is:
+     * @param board_file The properly-formatted board file to use to generate the board,
+     *                   in either the binary format described in BoardFile or the text
+     *                   format, which is:
      *                   FILE ::= BOARD LINE+
      *                   BOARD := X SPACE Y NEWLINE
      *                   LINE ::= (VAL SPACE)* VAL NEWLINE
@@ -105,110 +312,176 @@ public class Board {
      *                   INT ::= [0-9]+
      */
     public Board(File board_file) {
-        try (BufferedReader file = new BufferedReader(new FileReader(board_file))) {
-            // Grab the first line, which should be the X and Y size of the board as
-            // integers.
-            String line = file.readLine();
-            final String[] board_size = line.split(" ");
-            this.x_size = Integer.valueOf(board_size[0]);
-            this.y_size = Integer.valueOf(board_size[1]);
-
-            // Create the grid, without random mines.
-            this.grid = createGrid(false);
-
-            // Read in the rest of the board, placing mines where necessary.
-            for (int y = 0; y < this.y_size; y++) {
-                final String[] current_row = file.readLine().split(" ");
-                for (int x = 0; x < current_row.length; x++) {
-                    if (current_row[x].equals("1")) {
-                        // Mine the square where the 1 appears.
-                        this.grid.get(x).get(y).mine();
-                    }
-                }
-            }
-        } catch (FileNotFoundException fe) {
-            throw new RuntimeException("Specified file not found." +
-                    fe.getMessage());
-        } catch (IOException ioe) {
-            throw new RuntimeException("Board file not properly formatted." +
-                    ioe.getMessage());
-        }
+        this(BoardFile.read(board_file));
+    }
+
+    /**
+     * Create a new multiplayer minesweeper board with the size and mines read from a
+     * board file.
+     * @param board_file The contents of the board file. The board takes ownership of its
+     *                   cells.
+     */
+    private Board(BoardFile board_file) {
+        this.x_size = board_file.x_size;
+        this.y_size = board_file.y_size;
+        this.stripes_x = numStripes(this.x_size);
+        this.stripes_y = numStripes(this.y_size);
+        this.stripes = createStripes();
+        this.change_log = createChangeLog();
+        this.cells = board_file.cells;
 
         // Calculate neighbor counts for all squares without mines.
-        this.neighbors = new HashMap<>();
         calculateMinedNeighborCounts();
 
         checkRep();
     }
 
     /**
-     * Creates a new grid of size X_SIZE x Y_SIZE, placing mines randomly with a
-     * probability equal to MINE_PROBABILITY.
-     * @param random_mines Whether or not the board should be populated with random mines.
-     * @return The newly created grid, with mines if random_mines=true, but without mined
-     * neighbor counts.
+     * Restore a multiplayer minesweeper board exactly as it was saved by BoardJournal,
+     * with every square in the given state.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param cells The state of every square, x_size * y_size of them, packed as
+     *              described in Square, with neighbor counts already calculated. The
+     *              board takes ownership of the array.
      */
-    private ArrayList<ArrayList<Square>> createGrid(boolean random_mines) {
-        final ArrayList<ArrayList<Square>> temp_grid = new ArrayList<>();
+    Board(int x_size, int y_size, byte[] cells) {
+        this.x_size = x_size;
+        this.y_size = y_size;
+        this.stripes_x = numStripes(this.x_size);
+        this.stripes_y = numStripes(this.y_size);
+        this.stripes = createStripes();
+        this.change_log = createChangeLog();
+        this.cells = cells;
 
-        // Columns are X coordinates because the grid is numbered starting from (0,0) at
-        // the top left.
-        for (int x = 0; x < this.x_size; x++) {
-            temp_grid.add(x, new ArrayList<>());
-            // Rows are Y coordinates.
-            for (int y = 0; y < this.y_size; y++) {
-                final Square current_square = new Square(x, y);
-
-                if (random_mines) {
-                    // Squares are mined randomly, with a probability of 25%.
-                    if (Math.random() <= MINE_PROBABILITY) {
-                        current_square.mine();
-                    }
+        // Exploded mines are no longer mines, and correctly flagged ones have been
+        // discovered, so every other mine is still undiscovered.
+        int total_mine_count = 0;
+        int remaining_mine_count = 0;
+        for (byte state : cells) {
+            if (Square.hasMine(state)) {
+                total_mine_count++;
+                if (!Square.isFlagged(state)) {
+                    remaining_mine_count++;
                 }
-
-                temp_grid.get(x).add(y, current_square);
             }
         }
+        this.num_mines_remaining.add(remaining_mine_count);
+        this.total_num_mines = total_mine_count;
 
-        return temp_grid;
+        checkRep();
+    }
+
+    /**
+     * Determine how many stripes are needed to cover the given number of squares.
+     * @param num_squares int >= 0, the number of squares along one side of the board.
+     * @return The number of stripes along that side, at least 1.
+     */
+    private static int numStripes(int num_squares) {
+        return Math.max(1, (num_squares + STRIPE_SIZE - 1) / STRIPE_SIZE);
+    }
+
+    /**
+     * Create one lock for each stripe on the board.
+     * @return An array of stripes_x * stripes_y unlocked locks.
+     */
+    private StampedLock[] createStripes() {
+        final StampedLock[] temp_stripes = new StampedLock[this.stripes_x * this.stripes_y];
+        for (int i = 0; i < temp_stripes.length; i++) {
+            temp_stripes[i] = new StampedLock();
+        }
+        return temp_stripes;
+    }
+
+    /**
+     * Create an empty change log sized for the board.
+     * @return An array of MIN_CHANGE_LOG_SIZE to MAX_CHANGE_LOG_SIZE zeros, a power of 2.
+     */
+    private AtomicLongArray createChangeLog() {
+        final long num_squares = (long) this.x_size * this.y_size;
+        final int size = (int) Math.min(MAX_CHANGE_LOG_SIZE,
+                Math.max(MIN_CHANGE_LOG_SIZE, num_squares / 4));
+        return new AtomicLongArray(Integer.highestOneBit(size));
     }
 
     /**
      * Count the number of mined neighbors for each square on the board.
+     *
+     * The rows are split into bands of about COUNT_BAND_SIZE squares, counted in
+     * parallel in the common fork/join pool. Each band only changes the counts of its
+     * own squares, but reads whether the squares in the rows either side of it are
+     * mined, while the bands those rows belong to may be writing their counts. Those
+     * reads race with the writes, but a byte is written whole and a count never changes
+     * whether its square is mined, so they read the same mines either way.
      */
     private void calculateMinedNeighborCounts() {
-        int total_mine_count = 0;
+        final int band_rows = Math.max(1, COUNT_BAND_SIZE / this.x_size);
+        final int num_bands = (this.y_size + band_rows - 1) / band_rows;
+        final int total_mine_count = IntStream.range(0, num_bands).parallel()
+                .map(band -> calculateMinedNeighborCounts(band * band_rows,
+                        (int) Math.min(this.y_size, (long) (band + 1) * band_rows)))
+                .sum();
 
-        // Step through all the squares on the grid.
-        for (ArrayList<Square> columns : this.grid) {
-            for (Square current_square : columns) {
-                // If the square has a mine, we'll count it toward the total number of
-                // mines on the board.
-                if (current_square.hasMine()) {
-                    total_mine_count++;
-                }
+        // Finally, we'll set the starting mine count for the entire grid.
+        this.num_mines_remaining.add(total_mine_count);
+        this.total_num_mines = total_mine_count;
 
-                // Get all neighbors of the current square.
-                final List<Square> current_neighbors =
-                        getNeighbors(current_square.getX(), current_square.getY());
+        checkRep();
+    }
 
-                // Count the number of neighbors with mines.
-                int current_mine_count = 0;
-                for (Square neighbor : current_neighbors) {
-                    if (neighbor.hasMine()) {
-                        current_mine_count++;
-                    }
+    /**
+     * Count the number of mined neighbors for each square in a band of rows.
+     *
+     * Rather than looking at each square's neighbors in turn, which reads every square
+     * nine times, each row is counted with a sliding window: first the mines in each
+     * column of the row and the rows above and below it are added up, then each square's
+     * count is the sum of its own column and the columns either side, less its own mine.
+     * Each pass is a simple loop over consecutive squares, which the JIT compiler can
+     * vectorize.
+     * @param first_y 0 <= first_y < board.y_size, the first row of the band.
+     * @param end_y first_y < end_y <= board.y_size, the row after the last row of the
+     *              band.
+     * @return The number of mined squares in the band.
+     */
+    private int calculateMinedNeighborCounts(int first_y, int end_y) {
+        int total_mine_count = 0;
+        // The number of mines in each column of the current row and its neighboring
+        // rows. Column x is at x + 1, so the columns off either edge of the board count
+        // as having no mines.
+        final int[] column_mines = new int[this.x_size + 2];
 
-                    current_square.setNeighborsWithMines(current_mine_count);
-                }
+        for (int y = first_y; y < end_y; y++) {
+            final int row = index(0, y);
+            Arrays.fill(column_mines, 0);
+            addMinesInRow(column_mines, row);
+            if (y > 0) {
+                addMinesInRow(column_mines, row - this.x_size);
+            }
+            if (y + 1 < this.y_size) {
+                addMinesInRow(column_mines, row + this.x_size);
             }
-        }
 
-        // Finally, we'll set the starting mine count for the entire grid.
-        this.num_mines_remaining = total_mine_count;
-        this.total_num_mines = total_mine_count;
+            for (int x = 0; x < this.x_size; x++) {
+                final byte state = this.cells[row + x];
+                final int mines = Square.numMines(state);
+                total_mine_count += mines;
+                this.cells[row + x] = Square.withNeighborsWithMines(state,
+                        column_mines[x] + column_mines[x + 1] + column_mines[x + 2] - mines);
+            }
+        }
+        return total_mine_count;
+    }
 
-        checkRep();
+    /**
+     * Add the mines in a row to a count of the mines in each column.
+     * @param column_mines The number of mines so far in each column x, at x + 1.
+     * @param row 0 <= row < cells.length, the position in cells of the first square in
+     *            the row.
+     */
+    private void addMinesInRow(int[] column_mines, int row) {
+        for (int x = 0; x < this.x_size; x++) {
+            column_mines[x + 1] += Square.numMines(this.cells[row + x]);
+        }
     }
 
     public int getX_size() {
@@ -219,12 +492,185 @@ public class Board {
         return this.y_size;
     }
 
+    /**
+     * Get the number of times a thread has had to wait for a stripe, because another
+     * thread had locked it.
+     * @return The number of waits since the board was created.
+     */
+    public long numLockWaits() {
+        return this.num_lock_waits.sum();
+    }
+
+    /**
+     * Get the total time threads have spent waiting for stripes that were locked by
+     * another thread.
+     * @return The total wait, in nanoseconds.
+     */
+    public long lockWaitNanos() {
+        return this.lock_wait_nanos.sum();
+    }
+
+    /**
+     * Get the board's version, which goes up every time a square changes, so two calls
+     * return the same version only if no square changed in between.
+     * @return The number of changes made to squares since the board was created.
+     */
+    public long version() {
+        return this.version.get();
+    }
+
+    /**
+     * Subscribe to the board's changes. Every change made from now on is queued for the
+     * subscription until it is polled or cancelled.
+     * @param capacity capacity >= 1, the most changed squares the subscription holds
+     *                 before it gives up on them and polls the whole board instead.
+     * @param listener Run, by whichever thread changed the board, whenever the
+     *                 subscription's queue stops being empty. It's run while the board
+     *                 is locked, so it must be quick and must not call the board.
+     * @return The new subscription.
+     */
+    public BoardSubscription subscribe(int capacity, Runnable listener) {
+        final BoardSubscription subscription =
+                new BoardSubscription(this, capacity, listener);
+        synchronized (this.subscriptions_lock) {
+            final BoardSubscription[] old_subscriptions = this.subscriptions;
+            final BoardSubscription[] new_subscriptions =
+                    Arrays.copyOf(old_subscriptions, old_subscriptions.length + 1);
+            new_subscriptions[old_subscriptions.length] = subscription;
+            this.subscriptions = new_subscriptions;
+        }
+        return subscription;
+    }
+
+    /**
+     * Forget a subscription, so no more changes are published to it.
+     * @param subscription The subscription, which has been cancelled.
+     */
+    void unsubscribe(BoardSubscription subscription) {
+        synchronized (this.subscriptions_lock) {
+            final BoardSubscription[] old_subscriptions = this.subscriptions;
+            for (int i = 0; i < old_subscriptions.length; i++) {
+                if (old_subscriptions[i] == subscription) {
+                    final BoardSubscription[] new_subscriptions =
+                            new BoardSubscription[old_subscriptions.length - 1];
+                    System.arraycopy(old_subscriptions, 0, new_subscriptions, 0, i);
+                    System.arraycopy(old_subscriptions, i + 1, new_subscriptions, i,
+                            new_subscriptions.length - i);
+                    this.subscriptions = new_subscriptions;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Find out what has changed on the board since the given version.
+     * @param since The version the caller last saw, as returned by version() or a
+     *              previous call to changesSince().
+     * @return The squares that changed after version since, oldest change first, up to
+     *         the current version. If the board no longer remembers all of them, or since
+     *         isn't a version the board has been at, the whole board instead.
+     */
+    public BoardChanges changesSince(long since) {
+        // The changes need a consistent view of the entire board.
+        readLockAllStripes();
+        try {
+            final long current_version = this.version.get();
+            if (since < 0 || since > current_version
+                    || current_version - since > this.change_log.length()) {
+                return BoardChanges.snapshot(current_version, renderedText());
+            }
+
+            final List<Square> changed_squares = new ArrayList<>();
+            for (long v = since + 1; v <= current_version; v++) {
+                final long change =
+                        this.change_log.get((int) (v & (this.change_log.length() - 1)));
+                if ((change >>> CHANGE_TAG_SHIFT) != (v & CHANGE_TAG_MASK)) {
+                    // The entry was overwritten by a writer that lapped the log.
+                    return BoardChanges.snapshot(current_version, renderedText());
+                }
+                final int square =
+                        (int) (change >>> CHANGE_SQUARE_SHIFT) & Integer.MAX_VALUE;
+                changed_squares.add(new Square(square % this.x_size, square / this.x_size,
+                        (byte) change));
+            }
+            return BoardChanges.changes(current_version, changed_squares);
+        } finally {
+            readUnlockAllStripes();
+        }
+    }
+
+    /**
+     * Get a recent immutable copy of the board, for players who only look, such as
+     * spectators. Looking at the copy takes no locks, so any number of spectators never
+     * hold up players, or each other.
+     *
+     * Copies are made on demand, and at most once every max_age_ms: if the latest copy
+     * is older than that and the board has changed since, the caller makes a new one,
+     * while holding every stripe for reading, so it never shows a flood half done.
+     * Callers that find another thread making one get the latest copy meanwhile, so
+     * however many spectators look, and however many changes are made, the board is
+     * copied at most once per interval, and never while it isn't being looked at.
+     * @param max_age_ms long >= 0, how out of date the copy may be, in milliseconds,
+     *                   unless no copy has been made since.
+     * @return A copy of the board, at most max_age_ms older than the board, give or
+     *         take the time another thread is taking to make a newer one.
+     */
+    public BoardSnapshot snapshot(long max_age_ms) {
+        final long max_age_nanos = TimeUnit.MILLISECONDS.toNanos(max_age_ms);
+        final BoardSnapshot latest = this.snapshot;
+        if (isRecent(latest, max_age_nanos)) {
+            return latest;
+        }
+        if (!this.snapshot_lock.tryLock()) {
+            if (latest != null) {
+                // Someone else is making a newer one; this one will do until then.
+                return latest;
+            }
+            // There's nothing to hand out yet, so we wait for the first copy.
+            this.snapshot_lock.lock();
+        }
+        try {
+            final BoardSnapshot current = this.snapshot;
+            if (isRecent(current, max_age_nanos)) {
+                return current;
+            }
+            final BoardSnapshot made;
+            readLockAllStripes();
+            try {
+                // The version is read before the copy, as for rendered, so the copy
+                // includes at least every change counted in it.
+                final long current_version = this.version.get();
+                made = new BoardSnapshot(this.x_size, this.y_size, current_version,
+                        copyCells(), System.nanoTime());
+            } finally {
+                readUnlockAllStripes();
+            }
+            this.snapshot = made;
+            return made;
+        } finally {
+            this.snapshot_lock.unlock();
+        }
+    }
+
+    /**
+     * Determine whether a copy of the board can still be handed out by snapshot().
+     * @param copy A copy of the board, or null.
+     * @param max_age_nanos How out of date the copy may be, in nanoseconds.
+     * @return true iff copy isn't null, and either the board hasn't changed since, or
+     *         it was made at most max_age_nanos ago.
+     */
+    private boolean isRecent(BoardSnapshot copy, long max_age_nanos) {
+        return copy != null && (copy.getVersion() == this.version.get()
+                || System.nanoTime() - copy.createdNanos() <= max_age_nanos);
+    }
+
     /**
      * Determine if the board has mines remaining.
      * @return true iff the board has undiscovered/unexploded mines remaining.
      */
     public boolean hasMinesRemaining() {
-        return this.num_mines_remaining > 0;
+        return numMinesRemaining() > 0;
     }
 
     /**
@@ -232,7 +678,7 @@ public class Board {
      * @return The number of undiscovered/unexploded mines remaining.
      */
     public int numMinesRemaining() {
-        return this.num_mines_remaining;
+        return (int) Math.max(0, this.num_mines_remaining.sum());
     }
 
     /**
@@ -241,20 +687,12 @@ public class Board {
      * @param y 0 <= y < board.y_size, the Y coordinate of the square to search.
      * @return true iff the given position contains a mine.
      */
-    public synchronized boolean hasMine(int x, int y) {
-        if (isValidPosition(x, y)) {
-            final Square target_square = this.grid.get(x).get(y);
-            return target_square.hasMine();
-        }
-        return false;
+    public boolean hasMine(int x, int y) {
+        return isValidPosition(x, y) && Square.hasMine(stateOf(index(x, y)));
     }
 
-    public synchronized boolean isUntouched(int x, int y) {
-        if (isValidPosition(x, y)) {
-            final Square target_square = this.grid.get(x).get(y);
-            return target_square.isUntouched();
-        }
-        return false;
+    public boolean isUntouched(int x, int y) {
+        return isValidPosition(x, y) && Square.isUntouched(stateOf(index(x, y)));
     }
 
     /**
@@ -263,12 +701,58 @@ public class Board {
      * @param y 0 <= y < board.y_size, the Y coordinate of the square to check.
      * @return true iff the square at the given position is flagged.
      */
-    public synchronized boolean isFlagged(int x, int y) {
-        if (isValidPosition(x, y)) {
-            final Square target_square = this.grid.get(x).get(y);
-            return target_square.isFlagged();
+    public boolean isFlagged(int x, int y) {
+        return isValidPosition(x, y) && Square.isFlagged(stateOf(index(x, y)));
+    }
+
+    /**
+     * Get a view of the square at the given position, as it is right now. Changing the
+     * returned Square doesn't change the board.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square to get.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square to get.
+     * @return A Square with the same state as the square at the given position.
+     */
+    public Square getSquare(int x, int y) {
+        if (!isValidPosition(x, y)) {
+            throw new IndexOutOfBoundsException(
+                    String.format("No square at (%d,%d).", x, y));
         }
-        return false;
+        return new Square(x, y, stateOf(index(x, y)));
+    }
+
+    /**
+     * Run an action while no flood fill is half done. Single-square changes carry on
+     * meanwhile; see the thread safety notes above.
+     * @param action The action to run. It must not call into the board, except to read
+     *               squares with stateOf() or copyCells(), since it holds every stripe.
+     */
+    void whileLocked(Runnable action) {
+        readLockAllStripes();
+        try {
+            action.run();
+        } finally {
+            readUnlockAllStripes();
+        }
+    }
+
+    /**
+     * Copy the state of every square. Squares that change during the copy may be copied
+     * in either state.
+     * @return The state of each square, row by row, packed as described in Square.
+     */
+    byte[] copyCells() {
+        // A plain copy is enough: any change that happened before the caller last
+        // polled a subscription shows up, and any later one is published again.
+        return this.cells.clone();
+    }
+
+    /**
+     * Get the current state of a square, without locking.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     * @return The square's packed state, as described in Square.
+     */
+    byte stateOf(int square) {
+        return (byte) BYTES.getVolatile(this.cells, square);
     }
 
     /**
@@ -277,15 +761,22 @@ public class Board {
      * @param x 0 <= x < board.x_size, the X coordinate of the square to flag.
      * @param y 0 <= y < board.y_size, the Y coordinate of the square to flag.
      */
-    public synchronized void flag(int x, int y) {
-        if ((isUntouched(x, y)) && (isValidPosition(x, y))) {
-            final Square target_square = this.grid.get(x).get(y);
-            target_square.flag();
-
-            // If we're flagging a mined square (that is, a CORRECT flag), then the number
-            // of undiscovered mines goes down by 1, because we've discovered a mine.
-            if (target_square.hasMine()) {
-                removeMine();
+    public void flag(int x, int y) {
+        if (isValidPosition(x, y)) {
+            final int target_square = index(x, y);
+            byte state = stateOf(target_square);
+            while (Square.isUntouched(state)) {
+                if (setState(target_square, state, (byte) (state | Square.FLAGGED))) {
+                    // If we're flagging a mined square (that is, a CORRECT flag), then
+                    // the number of undiscovered mines goes down by 1, because we've
+                    // discovered a mine.
+                    if (Square.hasMine(state)) {
+                        removeMine();
+                    }
+                    break;
+                }
+                // Someone else changed the square first, so we look again.
+                state = stateOf(target_square);
             }
         }
 
@@ -298,15 +789,21 @@ public class Board {
      * @param x 0 <= x < board.x_size, the X coordinate of the square to flag.
      * @param y 0 <= y < board.y_size, the Y coordinate of the square to flag.
      */
-    public synchronized void deflag(int x, int y) {
+    public void deflag(int x, int y) {
         if (isValidPosition(x, y)) {
-            final Square target_square = this.grid.get(x).get(y);
-            target_square.deflag();
-
-            // If we're removing a flag from a mined square (that is, a CORRECT flag), then
-            // the number of undiscovered mines goes up by 1.
-            if (target_square.hasMine()) {
-                addMine();
+            final int target_square = index(x, y);
+            byte state = stateOf(target_square);
+            while (Square.isFlagged(state)) {
+                if (setState(target_square, state, (byte) (state & ~Square.FLAGGED))) {
+                    // If we're removing a flag from a mined square (that is, a CORRECT
+                    // flag), then the number of undiscovered mines goes up by 1.
+                    if (Square.hasMine(state)) {
+                        addMine();
+                    }
+                    break;
+                }
+                // Someone else changed the square first, so we look again.
+                state = stateOf(target_square);
             }
         }
 
@@ -319,158 +816,596 @@ public class Board {
      * @param y 0 <= y < board.y_size, the Y coordinate of the square to check.
      * @return true iff the square at the given position has been dug.
      */
-    public synchronized boolean isDug(int x, int y) {
-        if (isValidPosition(x, y)) {
-            final Square target_square = this.grid.get(x).get(y);
-            return target_square.isDug();
-        }
-        return false;
+    public boolean isDug(int x, int y) {
+        return isValidPosition(x, y) && Square.isDug(stateOf(index(x, y)));
     }
 
     /**
-     * Dig the square at the given position, updating its neighboring squares recursively
-     * if necessary.
+     * Dig the square at the given position, updating its neighboring squares if
+     * necessary.
      * If the square has already been dug, does nothing.
      * @param x 0 <= x < board.x_size, the X coordinate of the square to dig.
      * @param y 0 <= y < board.y_size, the Y coordinate of the square to dig.
+     * @return The number of squares revealed by the dig, including the square itself,
+     *         or 0 if the dig did nothing.
      */
-    public synchronized void dig(int x, int y) {
+    public int dig(int x, int y) {
+        int num_revealed = 0;
         if (isValidPosition(x, y)) {
-            final Square target_square = this.grid.get(x).get(y);
-            boolean boom = false;
-
-            if (target_square.isUntouched()) {
-                target_square.dig();
+            // A square with mined neighbors doesn't spread to them, even if it explodes,
+            // so digging it changes nothing else and needs no lock.
+            final int target_square = index(x, y);
+            byte state = stateOf(target_square);
+            while (Square.isUntouched(state) && Square.numNeighborsWithMines(state) > 0) {
+                if (digSquare(target_square, state)) {
+                    return 1;
+                }
+                // Someone else changed the square first, so we look again.
+                state = stateOf(target_square);
+            }
+            if (!Square.isUntouched(state)) {
+                return 0;
+            }
 
-                if (target_square.hasMine()) {
-                    // The mine explodes! BOOM
-                    target_square.explode();
-                    boom = true;
-                    removeMine();
+            // Otherwise the dig touches the square's neighbors, so we start with the
+            // stripes around it. If the flood fill turns out to reach further, we drop
+            // our locks and try again with every stripe it needs, acquired in order.
+            final BitSet held = stripesAround(x, y);
+            // The squares the flood reached but had to leave alone, because a deflag
+            // opened a way into stripes we don't hold; null until the square is dug.
+            BitSet blocked = null;
+            boolean finished = false;
+            while (!finished) {
+                final BitSet missing;
+                lockStripes(held);
+                try {
+                    missing = (blocked == null) ? stripesForDig(x, y)
+                                                : stripesForFlood(blocked);
+                    missing.andNot(held);
+                    if (missing.isEmpty()) {
+                        final BitSet next_blocked = new BitSet();
+                        num_revealed += (blocked == null)
+                                ? digLocked(x, y, held, next_blocked)
+                                : continueFlood(blocked, held, next_blocked);
+                        blocked = next_blocked;
+                        finished = blocked.isEmpty();
+                    }
+                } finally {
+                    unlockStripes(held);
                 }
+                held.or(missing);
+            }
+        }
+
+        checkRep();
+        return num_revealed;
+    }
+
+    /**
+     * Dig the square at the given position, which must be valid. The caller must hold
+     * every stripe returned by stripesForDig(x, y).
+     * @param x 0 <= x < board.x_size, the X coordinate of the square to dig.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square to dig.
+     * @param held The stripes the caller holds for writing.
+     * @param blocked The set of squares to add the squares the flood couldn't dig to;
+     *                see updateNeighbors.
+     * @return The number of squares revealed, including the square itself.
+     */
+    private int digLocked(int x, int y, BitSet held, BitSet blocked) {
+        final int target_square = index(x, y);
+        int num_revealed = 0;
 
-                if (!(target_square.numNeighborsWithMines() > 0)) {
+        byte state = stateOf(target_square);
+        while (Square.isUntouched(state)) {
+            if (digSquare(target_square, state)) {
+                num_revealed++;
+                if (!(Square.numNeighborsWithMines(state) > 0)) {
                     // Update the mine counts and dig states of the square's neighbors.
-                    updateNeighbors(x, y, boom);
+                    num_revealed += updateNeighbors(x, y, Square.hasMine(state), held,
+                            blocked);
+                }
+                break;
+            }
+            // Someone flagged the square first, so we look again.
+            state = stateOf(target_square);
+        }
+        return num_revealed;
+    }
+
+    /**
+     * Dig a single untouched square, exploding its mine if it has one, without touching
+     * its neighbors.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     * @param state The state the square is expected to be in, which is untouched.
+     * @return true iff the square was still in the expected state, and has been dug.
+     */
+    private boolean digSquare(int square, byte state) {
+        byte dug_state = (byte) (state | Square.DUG);
+        if (Square.hasMine(state)) {
+            // The mine explodes! BOOM
+            dug_state &= ~Square.MINE;
+        }
+        if (!setState(square, state, dug_state)) {
+            return false;
+        }
+        if (Square.hasMine(state)) {
+            removeMine();
+        }
+        return true;
+    }
+
+    /**
+     * Carry on a flood that updateNeighbors had to leave, digging each of the given
+     * squares that is still safe and untouched and spreading from it. The caller must
+     * hold every stripe returned by stripesForFlood(starts).
+     * @param starts The positions in cells of the squares to carry on from.
+     * @param held The stripes the caller holds for writing.
+     * @param blocked The set of squares to add the squares the flood couldn't dig to;
+     *                see updateNeighbors.
+     * @return The number of squares dug.
+     */
+    private int continueFlood(BitSet starts, BitSet held, BitSet blocked) {
+        int num_dug = 0;
+        final IntQueue to_visit = new IntQueue();
+        for (int start = starts.nextSetBit(0); start >= 0;
+                start = starts.nextSetBit(start + 1)) {
+            byte state = stateOf(start);
+            while (Square.isUntouched(state) && !Square.hasMine(state)) {
+                if (setState(start, state, (byte) (state | Square.DUG))) {
+                    num_dug++;
+                    to_visit.add(start);
+                    break;
                 }
+                // Someone flagged the square first, so we look again.
+                state = stateOf(start);
             }
         }
+        return num_dug + flood(to_visit, held, blocked);
+    }
 
-        checkRep();
+    /**
+     * Find every stripe that digging the square at the given position would read or
+     * change, by walking the same squares updateNeighbors would, without changing any.
+     * The walk may read squares in stripes the caller doesn't hold; its answer can only
+     * be trusted if every stripe it returns was already held.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square to dig.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square to dig.
+     * @return The stripes that digging the square needs.
+     */
+    private BitSet stripesForDig(int x, int y) {
+        final BitSet needed = stripesAround(x, y);
+        final byte target_state = stateOf(index(x, y));
+
+        // If the square won't be dug, or won't spread to its neighbors, then we only need
+        // the stripes around it.
+        if (!Square.isUntouched(target_state)
+                || Square.numNeighborsWithMines(target_state) > 0) {
+            return needed;
+        }
+
+        // Otherwise, every safe, untouched square connected to it will be dug, and each
+        // of those will have its own neighbors checked.
+        final BitSet visited = new BitSet();
+        final IntQueue to_visit = new IntQueue();
+        visited.set(index(x, y));
+        to_visit.add(index(x, y));
+        addStripesForFlood(needed, to_visit, visited);
+        return needed;
     }
 
     /**
-     * Decreases the number of undiscovered/unexploded mines remaining on the board by 1,
-     * with a minimum of 0.
+     * Find every stripe that continueFlood(starts, ...) would read or change, in the
+     * same way as stripesForDig.
+     * @param starts The positions in cells of the squares the flood carries on from.
+     * @return The stripes that carrying on the flood needs.
      */
-    private void removeMine() {
-        if (this.num_mines_remaining > 0) {
-            this.num_mines_remaining--;
+    private BitSet stripesForFlood(BitSet starts) {
+        final BitSet needed = new BitSet(this.stripes.length);
+        final BitSet visited = new BitSet();
+        final IntQueue to_visit = new IntQueue();
+        for (int start = starts.nextSetBit(0); start >= 0;
+                start = starts.nextSetBit(start + 1)) {
+            final byte state = stateOf(start);
+            if (Square.isUntouched(state) && !Square.hasMine(state)) {
+                visited.set(start);
+                to_visit.add(start);
+            }
         }
+        addStripesForFlood(needed, to_visit, visited);
+        return needed;
+    }
+
+    /**
+     * Walk every safe, untouched square connected to the queued squares, adding the
+     * stripes around each square visited, queued ones included, to the given set.
+     * @param needed The set of indices of stripes to add to.
+     * @param to_visit The squares to walk from, which is emptied.
+     * @param visited The squares already queued, which gains every square visited.
+     */
+    private void addStripesForFlood(BitSet needed, IntQueue to_visit, BitSet visited) {
+        final int[] neighbors = new int[MAX_NEIGHBORS];
+        while (!to_visit.isEmpty()) {
+            final int current_square = to_visit.remove();
+            addStripesAround(needed, current_square % this.x_size,
+                    current_square / this.x_size);
+
+            final int num_neighbors = neighborsOf(current_square, neighbors);
+            for (int i = 0; i < num_neighbors; i++) {
+                final int neighbor = neighbors[i];
+                final byte neighbor_state = stateOf(neighbor);
+                if (Square.isUntouched(neighbor_state)
+                        && !Square.hasMine(neighbor_state) && !visited.get(neighbor)) {
+                    visited.set(neighbor);
+                    to_visit.add(neighbor);
+                }
+            }
+        }
+    }
+
+    /**
+     * Decreases the number of undiscovered/unexploded mines remaining on the board by 1.
+     */
+    private void removeMine() {
+        this.num_mines_remaining.decrement();
     }
 
     /**
      * Increases the number of undiscovered/unexploded mines remaining on the board by 1.
      */
     private void addMine() {
-        this.num_mines_remaining++;
+        this.num_mines_remaining.increment();
+    }
+
+    /**
+     * Find the stripes containing the square at the given position and its neighbors.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     * @return The set of indices of the stripes covering the square and its neighbors.
+     */
+    private BitSet stripesAround(int x, int y) {
+        final BitSet around = new BitSet(this.stripes.length);
+        addStripesAround(around, x, y);
+        return around;
+    }
+
+    /**
+     * Add the stripes containing the square at the given position and its neighbors to
+     * the given set of stripes.
+     * @param stripe_set The set of indices of stripes to add to.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     */
+    private void addStripesAround(BitSet stripe_set, int x, int y) {
+        final int first_column = Math.max(0, x - 1) / STRIPE_SIZE;
+        final int last_column = Math.min(this.x_size - 1, x + 1) / STRIPE_SIZE;
+        final int first_row = Math.max(0, y - 1) / STRIPE_SIZE;
+        final int last_row = Math.min(this.y_size - 1, y + 1) / STRIPE_SIZE;
+        for (int row = first_row; row <= last_row; row++) {
+            stripe_set.set(row * this.stripes_x + first_column,
+                    row * this.stripes_x + last_column + 1);
+        }
+    }
+
+    /**
+     * Lock the given stripes for writing, in ascending order, so that no two threads
+     * can ever wait on each other's stripes.
+     * @param to_lock The indices of the stripes to lock.
+     */
+    private void lockStripes(BitSet to_lock) {
+        for (int i = to_lock.nextSetBit(0); i >= 0; i = to_lock.nextSetBit(i + 1)) {
+            lockStripe(this.stripes[i].asWriteLock());
+        }
+    }
+
+    /**
+     * Unlock the given stripes, which must all be held for writing by the current
+     * thread.
+     * @param to_unlock The indices of the stripes to unlock.
+     */
+    private void unlockStripes(BitSet to_unlock) {
+        for (int i = to_unlock.nextSetBit(0); i >= 0; i = to_unlock.nextSetBit(i + 1)) {
+            this.stripes[i].asWriteLock().unlock();
+        }
+    }
+
+    /**
+     * Lock the given stripes for reading, in ascending order.
+     * @param to_lock The indices of the stripes to lock.
+     */
+    private void readLockStripes(BitSet to_lock) {
+        for (int i = to_lock.nextSetBit(0); i >= 0; i = to_lock.nextSetBit(i + 1)) {
+            lockStripe(this.stripes[i].asReadLock());
+        }
+    }
+
+    /**
+     * Unlock the given stripes, which must all be held for reading by the current
+     * thread.
+     * @param to_unlock The indices of the stripes to unlock.
+     */
+    private void readUnlockStripes(BitSet to_unlock) {
+        for (int i = to_unlock.nextSetBit(0); i >= 0; i = to_unlock.nextSetBit(i + 1)) {
+            this.stripes[i].asReadLock().unlock();
+        }
+    }
+
+    /**
+     * Lock every stripe on the board for reading, in ascending order.
+     */
+    private void readLockAllStripes() {
+        for (StampedLock stripe : this.stripes) {
+            lockStripe(stripe.asReadLock());
+        }
+    }
+
+    /**
+     * Lock one stripe, for reading or writing, counting the wait if another thread
+     * holds it. Only a lock that isn't free is timed, so an uncontended lock costs no
+     * more than it did.
+     * @param stripe The read or write view of the stripe to lock.
+     */
+    private void lockStripe(Lock stripe) {
+        if (stripe.tryLock()) {
+            return;
+        }
+        final long start = System.nanoTime();
+        stripe.lock();
+        this.lock_wait_nanos.add(System.nanoTime() - start);
+        this.num_lock_waits.increment();
+    }
+
+    /**
+     * Unlock every stripe on the board, which must all be held for reading by the
+     * current thread.
+     */
+    private void readUnlockAllStripes() {
+        for (StampedLock stripe : this.stripes) {
+            stripe.asReadLock().unlock();
+        }
     }
 
     /**
      * Updates the neighbors of the square at the given position, changing mine counts
      * and propagating the dug state as appropriate.
+     *
+     * The dug state spreads to every safe, untouched square connected to the given
+     * square through other safe, untouched squares. Rather than recursing once per
+     * square, which overflows the stack on large empty regions, the spread is a
+     * breadth-first walk with an explicit queue. A square is marked dug as soon as it is
+     * queued, so it is queued at most once, and the queue only holds the edge of the dug
+     * region rather than all of it.
+     *
+     * The caller locked the stripes the flood needed when it looked, but flags are
+     * removed without any lock, so a deflag may since have opened a way out of them.
+     * The flood never digs a square whose stripe isn't held; it adds such squares to
+     * blocked instead, for the caller to carry on from once it holds their stripes.
      * @param x 0 <= x < board.x_size The X coordinate of the square to update neighbors
      *          for.
      * @param y 0 <= y < board.y_size The Y coordinate of the square to update neighbors
      *          for.
      * @param mine_exploded Whether or not a mine exploded when the square at the given
      *                      X and Y coordinates was dug.
+     * @param held The stripes the caller holds for writing, which include the stripes
+     *             around the given square.
+     * @param blocked The set of squares to add the squares the flood couldn't dig to.
+     * @return The number of neighboring squares dug, not including the given square.
      */
-    private void updateNeighbors(int x, int y, boolean mine_exploded){
-        final List<Square> neighbors = getNeighbors(x, y);
-
+    private int updateNeighbors(int x, int y, boolean mine_exploded, BitSet held,
+            BitSet blocked) {
         // If a mine went off and was removed from the board, we need to update the mine
         // counts of its neighbors.
         if (mine_exploded) {
-            for (Square neighbor : neighbors) {
-//                System.out.println(
-//                        String.format(
-//                                "Mine BOOM, updating neighbor at (%d,%d)...",
-//                                neighbor.getX(),
-//                                neighbor.getY()));
-                final int old_num_mines = neighbor.numNeighborsWithMines();
-                neighbor.setNeighborsWithMines(old_num_mines - 1);
+            final int[] neighbors = new int[MAX_NEIGHBORS];
+            final int num_neighbors = neighborsOf(index(x, y), neighbors);
+            for (int i = 0; i < num_neighbors; i++) {
+                final int neighbor = neighbors[i];
+                byte neighbor_state;
+                do {
+                    neighbor_state = stateOf(neighbor);
+                } while (!setState(neighbor, neighbor_state, Square.withNeighborsWithMines(
+                        neighbor_state, Square.numNeighborsWithMines(neighbor_state) - 1)));
             }
         }
         // Otherwise, a safe square has been dug, and we need to propagate the dig to all
         // adjacent, safe, untouched squares.
-        for (Square neighbor : neighbors) {
-            if (neighbor.isUntouched() && neighbor.isSafe()) {
-//                System.out.println(
-//                        String.format(
-//                                "Safe square, updating neighbor at (%d,%d)...",
-//                                neighbor.getX(),
-//                                neighbor.getY()));
-                neighbor.dig();
-                updateNeighbors(neighbor.getX(), neighbor.getY(), false);
+        final IntQueue to_visit = new IntQueue();
+        to_visit.add(index(x, y));
+        return flood(to_visit, held, blocked);
+    }
+
+    /**
+     * Dig every safe, untouched square connected to the queued squares, which are
+     * already dug, through other safe, untouched squares; see updateNeighbors.
+     * @param to_visit The dug squares to spread from, which is emptied.
+     * @param held The stripes the caller holds for writing.
+     * @param blocked The set of squares to add the squares the flood couldn't dig to.
+     * @return The number of squares dug, not including the queued squares.
+     */
+    private int flood(IntQueue to_visit, BitSet held, BitSet blocked) {
+        final int[] neighbors = new int[MAX_NEIGHBORS];
+        int num_dug = 0;
+        while (!to_visit.isEmpty()) {
+            final int num_neighbors = neighborsOf(to_visit.remove(), neighbors);
+            for (int i = 0; i < num_neighbors; i++) {
+                final int neighbor = neighbors[i];
+                byte neighbor_state = stateOf(neighbor);
+                if (Square.isUntouched(neighbor_state) && !Square.hasMine(neighbor_state)
+                        && !held.get(stripeOf(neighbor))) {
+                    // Only a deflag since we looked can have let the flood out this far.
+                    blocked.set(neighbor);
+                    continue;
+                }
+                while (Square.isUntouched(neighbor_state)
+                        && !Square.hasMine(neighbor_state)) {
+                    if (setState(neighbor, neighbor_state,
+                            (byte) (neighbor_state | Square.DUG))) {
+                        num_dug++;
+                        to_visit.add(neighbor);
+                        break;
+                    }
+                    // Someone flagged or deflagged the square first.
+                    neighbor_state = stateOf(neighbor);
+                }
             }
         }
+        return num_dug;
+    }
 
+    /**
+     * Find the stripe containing a square.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     * @return The index of the square's stripe.
+     */
+    private int stripeOf(int square) {
+        return (square / this.x_size / STRIPE_SIZE) * this.stripes_x
+                + (square % this.x_size) / STRIPE_SIZE;
     }
 
     /**
-     * Get all neighbors of the Square at the given position.
-     * @param x 0 <= x < board.x_size, the X coordinate of the square to find neighbors
-     *         for.
-     * @param y 0 <= y < board.y_size, the Y coordinate of the square to find
-     *          neighbors for.
-     * @return List of Squares adjacent to the Square at the given position.
+     * Find all neighbors of a square, without allocating anything, so that the flood
+     * fill can visit the neighbors of a million squares for the cost of one array.
+     * A square away from the edges of the board, which is almost every square on a big
+     * board, has all eight neighbors, at fixed offsets from it in cells; only squares on
+     * an edge need their neighbors clipped to the board.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     * @param neighbors An array of at least MAX_NEIGHBORS elements, whose first elements
+     *                  are overwritten with the positions in cells of the square's
+     *                  neighbors.
+     * @return The number of neighbors written to neighbors, from 0 to MAX_NEIGHBORS.
      */
-    private List<Square> getNeighbors(int x, int y) {
-        // This appears to be the easiest way to use two numbers as a map key in Java.
-        // My kingdom for tuples from Python!
-        final String target_square = x + "," + y;
+    private int neighborsOf(int square, int[] neighbors) {
+        final int x = square % this.x_size;
+        final int y = square / this.x_size;
+        if (0 < x && x < this.x_size - 1 && 0 < y && y < this.y_size - 1) {
+            final int above = square - this.x_size;
+            final int below = square + this.x_size;
+            neighbors[0] = above - 1;
+            neighbors[1] = above;
+            neighbors[2] = above + 1;
+            neighbors[3] = square - 1;
+            neighbors[4] = square + 1;
+            neighbors[5] = below - 1;
+            neighbors[6] = below;
+            neighbors[7] = below + 1;
+            return MAX_NEIGHBORS;
+        }
 
-        // If we've calculated the given square's neighbors before, we'll look them up.
-        if (this.neighbors.containsKey(target_square)) {
-            return this.neighbors.get(target_square);
-        } else {
-            // Otherwise, we'll calculate neighbors for the first time and store them for
-            // later.
-            final List<Square> new_neighbors = new ArrayList<>();
-
-            // Get all the X coordinates which are adjacent to the given square.
-            final List<Integer> x_positions = new ArrayList<>();
-            for (int pos = x - 1; pos <= x + 1; pos++) {
-                if (isValidColumn(pos)) {
-                    x_positions.add(pos);
+        final int first_x = Math.max(0, x - 1);
+        final int last_x = Math.min(this.x_size - 1, x + 1);
+        final int first_y = Math.max(0, y - 1);
+        final int last_y = Math.min(this.y_size - 1, y + 1);
+        int num_neighbors = 0;
+        for (int y_pos = first_y; y_pos <= last_y; y_pos++) {
+            for (int x_pos = first_x; x_pos <= last_x; x_pos++) {
+                // The square itself is inside the range, but it can't be its own neighbor.
+                if (! ((x_pos == x) && (y_pos == y)) ) {
+                    neighbors[num_neighbors++] = index(x_pos, y_pos);
                 }
             }
+        }
+        return num_neighbors;
+    }
 
-            // Get all the Y coordinates which are adjacent to the given square.
-            final List<Integer> y_positions = new ArrayList<>();
-            for (int pos = y - 1; pos <= y + 1; pos++) {
-                if (isValidRow(pos)) {
-                    y_positions.add(pos);
-                }
-            }
+    /**
+     * Change the state of a square, if it's in the expected state. If it is, the change
+     * is counted in version, recorded in change_log, patched into rendering and published
+     * to every subscription, as described above. The caller must hold the square's
+     * stripe if the change is to its neighbor count or part of a flood.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     * @param old_state The state the square is expected to be in.
+     * @param new_state The square's new packed state, as described in Square.
+     * @return true iff the square was in old_state, and is now in new_state.
+     */
+    private boolean setState(int square, byte old_state, byte new_state) {
+        if (!BYTES.compareAndSet(this.cells, square, old_state, new_state)) {
+            return false;
+        }
+        final byte[] current_rendering = this.rendering;
+        if (current_rendering != null) {
+            patchRendering(current_rendering, square);
+        }
+        final long new_version = this.version.incrementAndGet();
+        this.change_log.set((int) (new_version & (this.change_log.length() - 1)),
+                ((new_version & CHANGE_TAG_MASK) << CHANGE_TAG_SHIFT)
+                        | ((long) square << CHANGE_SQUARE_SHIFT)
+                        | (stateOf(square) & 0xFF));
+        for (BoardSubscription subscription : this.subscriptions) {
+            subscription.publish(square);
+        }
+        return true;
+    }
 
-            // Add all the squares which are adjacent to the target square as neighbors.
-            for (int x_pos : x_positions) {
-                for (int y_pos : y_positions) {
-                    // A square can't be its own neighbor.
-                    if (! ((x_pos == x) && (y_pos == y)) ) {
-                        new_neighbors.add(this.grid.get(x_pos).get(y_pos));
-                    }
-                }
+    /**
+     * Make a square's symbol in the given rendering match the square's current state,
+     * even if other threads are changing and patching the square at the same time.
+     * @param text The rendering to patch.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     */
+    private void patchRendering(byte[] text, int square) {
+        final int position = renderingIndex(square);
+        byte symbol = symbolOf(stateOf(square));
+        while (true) {
+            BYTES.setVolatile(text, position, symbol);
+            // If the square changed since we looked, our symbol may have overwritten a
+            // newer one, so we write the newest one again.
+            final byte current_symbol = symbolOf(stateOf(square));
+            if (current_symbol == symbol) {
+                return;
             }
+            symbol = current_symbol;
+        }
+    }
 
-            // Store the list of neighbors for the given square.
-            this.neighbors.put(target_square, new_neighbors);
-            return new_neighbors;
+    /**
+     * Find the position in rendering of the symbol for a square.
+     * @param square 0 <= square < cells.length, the position in cells of the square.
+     * @return The index of the square's symbol in rendering.
+     */
+    private int renderingIndex(int square) {
+        final int x = square % this.x_size;
+        final int y = square / this.x_size;
+        return y * (2 * this.x_size + 1) + 2 * x;
+    }
+
+    /**
+     * Find the symbol displayed for a square with the given state.
+     * @param state The square's packed state, as described in Square.
+     * @return The ASCII symbol for the square.
+     */
+    static byte symbolOf(byte state) {
+        if (Square.isUntouched(state)) {
+            return UNTOUCHED_SQUARE_SYMBOL;
+        } else if (Square.isFlagged(state)) {
+            return FLAGGED_SQUARE_SYMBOL;
+        } else if (Square.numNeighborsWithMines(state) == 0) {
+            // Dug squares are blank if they have no neighbors with mines.
+            return DUG_SQUARE_NO_BOMB_SYMBOL;
+        } else {
+            // Otherwise, they display how many neighbors with mines they have.
+            return (byte) ('0' + Square.numNeighborsWithMines(state));
         }
     }
 
+    /**
+     * Find the symbol for a square with the given state in a run-length encoded board.
+     * @param state The square's packed state, as described in Square.
+     * @return The ASCII symbol for the square, never a space.
+     */
+    private static byte compressedSymbolOf(byte state) {
+        final byte symbol = symbolOf(state);
+        return (symbol == DUG_SQUARE_NO_BOMB_SYMBOL) ? COMPRESSED_NO_BOMB_SYMBOL : symbol;
+    }
+
+    /**
+     * Find the position in cells of the square at the given position.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     * @return The index of the square's state in cells.
+     */
+    private int index(int x, int y) {
+        return y * this.x_size + x;
+    }
+
     /**
      * Determine if the given position is a valid square on the board.
      * @param x The X coordinate of the space to check.
@@ -501,37 +1436,196 @@ public class Board {
     }
 
     @Override
-    public synchronized String toString() {
-        final StringBuilder s = new StringBuilder();
+    public String toString() {
+        // The text needs a consistent view of the entire board, which other looks can
+        // share.
+        readLockAllStripes();
+        try {
+            return renderedText();
+        } finally {
+            readUnlockAllStripes();
+        }
+    }
 
-        // We're working across each row, then down. Y coordinates are the rows.
-        for (int y = 0; y < this.y_size; y++) {
+    /**
+     * Display a window of the board, in the same format as toString(): a line per row,
+     * with a symbol for each square followed by a space, except after the last square
+     * of the last row.
+     *
+     * Only the stripes the window covers are locked, and only its squares are read, so
+     * the cost of a look, and how long it holds up flood fills, depends on the size of
+     * the window rather than the size of the board. As with toString(), no flood fill
+     * is half done inside the window.
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width int >= 1, the number of columns in the window.
+     * @param height int >= 1, the number of rows in the window.
+     * @return The window, cut down to the part that's on the board.
+     * @throws IndexOutOfBoundsException if no part of the window is on the board.
+     */
+    public String toString(int x, int y, int width, int height) {
+        final int[] window = BoardText.clipWindow(this.x_size, this.y_size,
+                x, y, width, height);
+        final BitSet window_stripes = stripesInWindow(window[0], window[1],
+                window[2], window[3]);
 
-            // Print a symbol for each square in the current row. Note that each symbol
-            // is followed by a single space.
-            for (int x = 0; x < this.x_size; x++) {
-                final Square current_square = this.grid.get(x).get(y);
-
-                if (current_square.isUntouched()) {
-                    s.append(UNTOUCHED_SQUARE_SYMBOL);
-                } else if (current_square.isFlagged()) {
-                    s.append(FLAGGED_SQUARE_SYMBOL);
-                } else if (current_square.isDug()) {
-                    // Dug squares are blank if they have no neighbors with mines.
-                    // Otherwise, they display how many neighbors with mines they have.
-                    if (current_square.numNeighborsWithMines() == 0) {
-                        s.append(DUG_SQUARE_NO_BOMB_SYMBOL);
-                    } else {
-                        s.append(current_square.numNeighborsWithMines())
-                                .append(" ");
+        readLockStripes(window_stripes);
+        try {
+            return BoardText.window(this.cells, this.x_size, this.y_size,
+                    x, y, width, height);
+        } finally {
+            readUnlockStripes(window_stripes);
+        }
+    }
+
+    /**
+     * Display the whole board run-length encoded, as described in
+     * toCompressedString(int, int, int, int).
+     * @return The board, one row per line, as runs of squares with the same symbol.
+     */
+    public String toCompressedString() {
+        return toCompressedString(0, 0, this.x_size, this.y_size);
+    }
+
+    /**
+     * Display a window of the board run-length encoded: a line per row, each a list of
+     * runs of squares with the same symbol, separated by single spaces. A run is its
+     * length, left out if it's 1, followed by its symbol, which is the symbol toString()
+     * shows, except that dug squares with no mined neighbors are '.' rather than a
+     * space. So the row "- - - - 2 1 " is "4- 2 1", and a row of a thousand untouched
+     * squares is "1000-".
+     *
+     * The text is built straight from the squares, without rendering the window first,
+     * and is never longer than toString()'s. Locking is as for
+     * toString(int, int, int, int).
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width int >= 1, the number of columns in the window.
+     * @param height int >= 1, the number of rows in the window.
+     * @return The window, cut down to the part that's on the board.
+     * @throws IndexOutOfBoundsException if no part of the window is on the board.
+     */
+    public String toCompressedString(int x, int y, int width, int height) {
+        final int[] window = BoardText.clipWindow(this.x_size, this.y_size,
+                x, y, width, height);
+        final int first_x = window[0];
+        final int first_y = window[1];
+        final int end_x = window[2];
+        final int end_y = window[3];
+        final BitSet window_stripes = stripesInWindow(first_x, first_y, end_x, end_y);
+
+        final StringBuilder text = new StringBuilder();
+        readLockStripes(window_stripes);
+        try {
+            for (int row = first_y; row < end_y; row++) {
+                if (row > first_y) {
+                    text.append('\n');
+                }
+                final int row_start = index(0, row);
+                int column = first_x;
+                while (column < end_x) {
+                    final byte symbol = compressedSymbolOf(stateOf(row_start + column));
+                    int run_end = column + 1;
+                    while (run_end < end_x
+                            && compressedSymbolOf(stateOf(row_start + run_end)) == symbol) {
+                        run_end++;
+                    }
+                    if (column > first_x) {
+                        text.append(' ');
+                    }
+                    if (run_end - column > 1) {
+                        text.append(run_end - column);
                     }
+                    text.append((char) symbol);
+                    column = run_end;
                 }
             }
-            // We're finished with the current row, so we add a newline so we can print
-            // the next row.
-            s.append("\n");
+        } finally {
+            readUnlockStripes(window_stripes);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Find the stripes covering a window of the board.
+     * @param first_x 0 <= first_x < end_x, the window's first column.
+     * @param first_y 0 <= first_y < end_y, the window's first row.
+     * @param end_x end_x <= board.x_size, the column after the window's last.
+     * @param end_y end_y <= board.y_size, the row after the window's last.
+     * @return The set of indices of the stripes covering the window.
+     */
+    private BitSet stripesInWindow(int first_x, int first_y, int end_x, int end_y) {
+        final BitSet window_stripes = new BitSet(this.stripes.length);
+        final int first_column = first_x / STRIPE_SIZE;
+        final int last_column = (end_x - 1) / STRIPE_SIZE;
+        for (int row = first_y / STRIPE_SIZE; row <= (end_y - 1) / STRIPE_SIZE; row++) {
+            window_stripes.set(row * this.stripes_x + first_column,
+                    row * this.stripes_x + last_column + 1);
+        }
+        return window_stripes;
+    }
+
+    /**
+     * Get the board as text. The caller must hold every stripe, for reading at least.
+     * @return The board, one row per line, with a symbol for each square.
+     */
+    private String renderedText() {
+        // Every look between two changes gets the same text, so the copy out of
+        // rendering is only made once per version. The version has to be read before
+        // the copy, so that the text includes at least every change counted in it.
+        final RenderedText cached = this.rendered;
+        if (cached != null && cached.version == this.version.get()) {
+            return cached.text;
+        }
+        synchronized (this.rendering_lock) {
+            // Another look may have made the copy while this one waited.
+            final long current_version = this.version.get();
+            final RenderedText latest = this.rendered;
+            if (latest != null && latest.version == current_version) {
+                return latest.text;
+            }
+            if (this.rendering == null) {
+                createRendering();
+            }
+            // The last row has no trailing space and no final newline.
+            final byte[] text = this.rendering;
+            final String rendered_text =
+                    new String(text, 0, text.length - 2, StandardCharsets.US_ASCII);
+            this.rendered = new RenderedText(current_version, rendered_text);
+            return rendered_text;
+        }
+    }
+
+    /** A board's text, and the version it shows. */
+    private static final class RenderedText {
+        private final long version;
+        private final String text;
+
+        private RenderedText(long version, String text) {
+            this.version = version;
+            this.text = text;
+        }
+    }
+
+    /**
+     * Create rendering, laid out as described above. The caller must hold every stripe,
+     * for reading at least, and rendering_lock.
+     */
+    private void createRendering() {
+        final int row_length = 2 * this.x_size + 1;
+        final byte[] text = new byte[row_length * this.y_size];
+
+        // Each symbol is followed by a single space, and each row by a newline.
+        Arrays.fill(text, (byte) ' ');
+        for (int y = 0; y < this.y_size; y++) {
+            text[y * row_length + row_length - 1] = '\n';
+        }
+
+        // From here on, every change patches the new rendering, so filling in each
+        // square's symbol the same way patching does can't miss one.
+        this.rendering = text;
+        for (int square = 0; square < this.cells.length; square++) {
+            patchRendering(text, square);
         }
-        s.replace(s.length() - 2, s.length(), "");
-        return s.toString();
     }
 }
@@ -0,0 +1,82 @@
+package minesweeper;
+
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * What changed on a board between one version and another. Either a list of the squares
+ * that changed, in the order they changed, or, if the board no longer remembers every
+ * change since the older version, the whole board as it is now.
+ */
+public class BoardChanges {
+    // The version the changes bring the board up to.
+    private final long version;
+    // The changed squares, or null if this is a whole board.
+    private final List<Square> changed_squares;
+    // The whole board as toString() shows it, or null if this is a list of changes.
+    private final String board;
+
+    private BoardChanges(long version, List<Square> changed_squares, String board) {
+        this.version = version;
+        this.changed_squares = changed_squares;
+        this.board = board;
+    }
+
+    /**
+     * Make a list of changes.
+     * @param version The version the changes bring the board up to.
+     * @param changed_squares Views of the squares that changed, oldest change first. A
+     *                        square may appear more than once; the last one wins.
+     * @return The changes.
+     */
+    static BoardChanges changes(long version, List<Square> changed_squares) {
+        return new BoardChanges(version, Collections.unmodifiableList(changed_squares),
+                null);
+    }
+
+    /**
+     * Make a whole board, for when the changes aren't known.
+     * @param version The version the board is at.
+     * @param board The board as toString() shows it.
+     * @return The whole board.
+     */
+    static BoardChanges snapshot(long version, String board) {
+        return new BoardChanges(version, null, board);
+    }
+
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Determine whether this is the whole board rather than a list of changes.
+     * @return true iff getBoard() should be used instead of getChangedSquares().
+     */
+    public boolean isSnapshot() {
+        return this.board != null;
+    }
+
+    /**
+     * Get the squares that changed.
+     * @return Views of the changed squares as they were after each change, oldest first.
+     * @throws IllegalStateException if this is a whole board.
+     */
+    public List<Square> getChangedSquares() {
+        if (isSnapshot()) {
+            throw new IllegalStateException("A snapshot has no list of changes.");
+        }
+        return this.changed_squares;
+    }
+
+    /**
+     * Get the whole board.
+     * @return The board as toString() showed it at getVersion().
+     * @throws IllegalStateException if this is a list of changes.
+     */
+    public String getBoard() {
+        if (!isSnapshot()) {
+            throw new IllegalStateException("A list of changes has no board.");
+        }
+        return this.board;
+    }
+}
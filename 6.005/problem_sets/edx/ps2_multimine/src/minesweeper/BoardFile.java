@@ -0,0 +1,276 @@
+package minesweeper;
+
+import java.io.*;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * The mines of a board, as stored in a board file. Board files come in two formats, and
+ * read() tells them apart by their first bytes.
+ *
+ * The text format is the one described in MinesweeperServer.main():
+ *   FILE ::= BOARD LINE+
+ *   BOARD ::= X SPACE Y NEWLINE
+ *   LINE ::= (VAL SPACE)* VAL NEWLINE
+ *   VAL ::= 0 | 1
+ *
+ * The binary format is a 12 byte header followed by a bitmap of the mines:
+ *   bytes 0-3:  the magic number "MSB1", in ASCII
+ *   bytes 4-7:  X, a big-endian int
+ *   bytes 8-11: Y, a big-endian int
+ *   bytes 12-:  ceil(X * Y / 8) bytes; the square at (x, y) is mined iff bit (i % 8),
+ *               counting from the least significant bit, of byte (i / 8) is set,
+ *               where i = y * X + x
+ * A binary file is memory-mapped and its mines are copied straight out of the bitmap,
+ * so loading it costs about one pass over memory, with no parsing per square. Use main()
+ * to convert a text file to a binary one.
+ */
+class BoardFile {
+    /*
+     * Rep invariant:
+     *   x_size >= 1, y_size >= 1, cells.length == x_size * y_size
+     *   every element of cells is either 0 or Square.MINE
+     */
+    private static final byte[] MAGIC = "MSB1".getBytes(StandardCharsets.US_ASCII);
+    private static final int HEADER_LENGTH = MAGIC.length + 8;
+    // How much of the bitmap is copied out of a mapped file at a time.
+    private static final int CHUNK_LENGTH = 1 << 16;
+
+    final int x_size;
+    final int y_size;
+    // The squares of the board, row by row, as Board stores them, with mines placed but
+    // no neighbor counts.
+    final byte[] cells;
+
+    private BoardFile(int x_size, int y_size, byte[] cells) {
+        this.x_size = x_size;
+        this.y_size = y_size;
+        this.cells = cells;
+    }
+
+    /**
+     * Read a board file in either format.
+     * @param board_file The board file.
+     * @return The board's size and mines.
+     * @throws RuntimeException if the file can't be found, or isn't properly formatted.
+     */
+    static BoardFile read(File board_file) {
+        try {
+            return isBinary(board_file) ? readBinary(board_file) : readText(board_file);
+        } catch (FileNotFoundException fe) {
+            throw new RuntimeException("Specified file not found." +
+                    fe.getMessage());
+        } catch (IOException | RuntimeException e) {
+            throw new RuntimeException("Board file not properly formatted." +
+                    e.getMessage());
+        }
+    }
+
+    /**
+     * Determine whether a board file is in the binary format.
+     * @param board_file The board file.
+     * @return true iff the file starts with the binary format's magic number.
+     * @throws IOException if the file can't be read.
+     */
+    static boolean isBinary(File board_file) throws IOException {
+        try (InputStream in = new FileInputStream(board_file)) {
+            final byte[] start = new byte[MAGIC.length];
+            int length = 0;
+            while (length < start.length) {
+                final int read = in.read(start, length, start.length - length);
+                if (read < 0) {
+                    return false;
+                }
+                length += read;
+            }
+            return Arrays.equals(start, MAGIC);
+        }
+    }
+
+    /**
+     * Read a board file in the text format.
+     * @param board_file The board file, in the text format.
+     * @return The board's size and mines.
+     * @throws IOException if the file can't be read, or isn't properly formatted.
+     */
+    private static BoardFile readText(File board_file) throws IOException {
+        try (BufferedReader file = new BufferedReader(new FileReader(board_file))) {
+            // Grab the first line, which should be the X and Y size of the board as
+            // integers.
+            String line = file.readLine();
+            final String[] board_size = line.split(" ");
+            final int x_size = Integer.valueOf(board_size[0]);
+            final int y_size = Integer.valueOf(board_size[1]);
+            final byte[] cells = new byte[checkedSize(x_size, y_size)];
+
+            // Read in the rest of the board, placing mines where necessary.
+            for (int y = 0; y < y_size; y++) {
+                final String[] current_row = file.readLine().split(" ");
+                if (current_row.length > x_size) {
+                    throw new IOException(String.format(
+                            "Row %d has more than %d squares.", y, x_size));
+                }
+                for (int x = 0; x < current_row.length; x++) {
+                    if (current_row[x].equals("1")) {
+                        // Mine the square where the 1 appears.
+                        cells[y * x_size + x] = Square.MINE;
+                    }
+                }
+            }
+            return new BoardFile(x_size, y_size, cells);
+        }
+    }
+
+    /**
+     * Read a board file in the binary format, by mapping it into memory.
+     * @param board_file The board file, in the binary format.
+     * @return The board's size and mines.
+     * @throws IOException if the file can't be read, or isn't properly formatted.
+     */
+    private static BoardFile readBinary(File board_file) throws IOException {
+        try (FileChannel channel =
+                     FileChannel.open(board_file.toPath(), StandardOpenOption.READ)) {
+            if (channel.size() < HEADER_LENGTH) {
+                throw new IOException("Header is too short.");
+            }
+            final MappedByteBuffer header =
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_LENGTH);
+            header.position(MAGIC.length);
+            final int x_size = header.getInt();
+            final int y_size = header.getInt();
+            final byte[] cells = new byte[checkedSize(x_size, y_size)];
+
+            final long bitmap_length = (cells.length + 7L) / 8;
+            if (channel.size() != HEADER_LENGTH + bitmap_length) {
+                throw new IOException("Expected " + bitmap_length + " bytes of mines.");
+            }
+            final MappedByteBuffer bitmap = channel.map(
+                    FileChannel.MapMode.READ_ONLY, HEADER_LENGTH, bitmap_length);
+
+            // Copy the bitmap out a chunk at a time, skipping the empty bytes that make
+            // up most of a typical board.
+            final byte[] chunk = new byte[(int) Math.min(CHUNK_LENGTH, bitmap_length)];
+            int square = 0;
+            while (bitmap.hasRemaining()) {
+                final int length = Math.min(chunk.length, bitmap.remaining());
+                bitmap.get(chunk, 0, length);
+                for (int i = 0; i < length; i++, square += 8) {
+                    int bits = chunk[i] & 0xFF;
+                    while (bits != 0) {
+                        final int bit = Integer.numberOfTrailingZeros(bits);
+                        if (square + bit >= cells.length) {
+                            throw new IOException("Mine outside the board.");
+                        }
+                        cells[square + bit] = Square.MINE;
+                        bits &= bits - 1;
+                    }
+                }
+            }
+            return new BoardFile(x_size, y_size, cells);
+        }
+    }
+
+    /**
+     * Check that a board's dimensions are valid, and find its number of squares.
+     * @param x_size The board's width.
+     * @param y_size The board's height.
+     * @return x_size * y_size.
+     * @throws IOException if either dimension is less than 1, or the board would have
+     *                     more than Integer.MAX_VALUE squares.
+     */
+    private static int checkedSize(int x_size, int y_size) throws IOException {
+        if (x_size < 1 || y_size < 1 || (long) x_size * y_size > Integer.MAX_VALUE) {
+            throw new IOException(
+                    String.format("Invalid board size %d x %d.", x_size, y_size));
+        }
+        return x_size * y_size;
+    }
+
+    /**
+     * Convert a board file from the text format to the binary format. The text file is
+     * read a row at a time, so neither file has to fit in memory.
+     * @param text_file The board file to convert, in the text format.
+     * @param binary_file Where to write the binary board file.
+     * @throws IOException if either file can't be used, or the text file isn't properly
+     *                     formatted.
+     */
+    static void convert(File text_file, File binary_file) throws IOException {
+        try (BufferedReader in = new BufferedReader(new FileReader(text_file));
+             DataOutputStream out = new DataOutputStream(
+                     new BufferedOutputStream(new FileOutputStream(binary_file)))) {
+            final String header = in.readLine();
+            if (header == null) {
+                throw new IOException("Empty board file.");
+            }
+            final String[] board_size = header.split(" ");
+            final int x_size = Integer.parseInt(board_size[0]);
+            final int y_size = Integer.parseInt(board_size[1]);
+            checkedSize(x_size, y_size);
+            out.write(MAGIC);
+            out.writeInt(x_size);
+            out.writeInt(y_size);
+
+            // Mines are packed into bits as they're read, and each byte written as soon
+            // as it's full.
+            int bits = 0;
+            int num_bits = 0;
+            for (int y = 0; y < y_size; y++) {
+                final String row = in.readLine();
+                if (row == null) {
+                    throw new IOException("Expected " + y_size + " rows, found " + y);
+                }
+                int x = 0;
+                for (int i = 0; i < row.length(); i++) {
+                    final char value = row.charAt(i);
+                    if (value == ' ') {
+                        continue;
+                    }
+                    if (x == x_size) {
+                        throw new IOException(String.format(
+                                "Row %d has more than %d squares.", y, x_size));
+                    }
+                    if (value == '1') {
+                        bits |= 1 << num_bits;
+                    }
+                    if (++num_bits == 8) {
+                        out.write(bits);
+                        bits = 0;
+                        num_bits = 0;
+                    }
+                    x++;
+                }
+                // Short rows are padded with squares without mines.
+                for (; x < x_size; x++) {
+                    if (++num_bits == 8) {
+                        out.write(bits);
+                        bits = 0;
+                        num_bits = 0;
+                    }
+                }
+            }
+            if (num_bits > 0) {
+                out.write(bits);
+            }
+        }
+    }
+
+    /**
+     * Convert a text board file to a binary one.
+     * <br> Usage: BoardFile TEXT_FILE BINARY_FILE
+     * @param args the text file to read and the binary file to write
+     */
+    public static void main(String[] args) {
+        if (args.length != 2) {
+            System.err.println("usage: BoardFile TEXT_FILE BINARY_FILE");
+            return;
+        }
+        try {
+            convert(new File(args[0]), new File(args[1]));
+        } catch (IOException | RuntimeException e) {
+            System.err.println("unable to convert " + args[0] + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,516 @@
+package minesweeper;
+
+import java.io.*;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.LockSupport;
+import java.util.zip.CRC32;
+
+/**
+ * Keeps a copy of a board on disk as it's played, so that a server that dies can be
+ * restarted with the board exactly as it was. The copy lives in a directory of its own,
+ * as two files:
+ *
+ * board.snapshot, the whole board at some moment:
+ *   bytes 0-3:   the magic number "MSS1", in ASCII
+ *   bytes 4-11:  the snapshot's generation, a big-endian long
+ *   bytes 12-15: X, a big-endian int
+ *   bytes 16-19: Y, a big-endian int
+ *   bytes 20-:   X * Y bytes, the state of each square as Board stores it
+ *   last 4:      the CRC-32 of every byte before it, a big-endian int
+ *
+ * board.journal, the changes made since that snapshot, appended as they're made:
+ *   bytes 0-3:   the magic number "MSJ1", in ASCII
+ *   bytes 4-11:  the generation of the snapshot it follows, a big-endian long
+ *   then batches, each:
+ *     4 bytes:   N, the number of changes in the batch, a big-endian int
+ *     4 bytes:   the CRC-32 of the batch's changes, a big-endian int
+ *     5N bytes:  N changes, each the square's position in the board's cells, a
+ *                big-endian int, followed by its new state
+ *
+ * Changes are written by a single flusher thread, fed by a subscription to the board,
+ * so players never wait for the disk. Everything that changed since the last batch
+ * goes into the next one, and each batch costs one write and one force, however many
+ * changes it holds: the busier the board, the bigger the batches, and the cost of
+ * forcing them is shared between more changes. A square that changes several times
+ * between batches is only written once, with its latest state.
+ * The journal records square states rather than the moves that caused them, since
+ * concurrent moves on the same squares race without locks, and replaying moves in a
+ * different order could leave a different board. A batch is taken while no flood fill
+ * is half done, so the board never restarts in the middle of one.
+ *
+ * Once the journal is as large as the board, or on a timer, or if the flusher falls
+ * too far behind, a new snapshot is written, and the journal starts again. Both files
+ * are written under temporary names and moved into place, so a crash always leaves a
+ * complete snapshot behind. A crash in the middle of a batch loses just that batch,
+ * which recover() recognizes by its length or CRC and ignores, along with anything
+ * after it.
+ *
+ * Journaling is asynchronous: a change is on disk a few milliseconds after it's made.
+ * Callers that need to know a change is safe can wait for it with sync().
+ */
+public class BoardJournal implements Closeable {
+    /*
+     * Rep invariant:
+     *   journal is open for appending to journal_file, whose header names generation
+     *   journal_length is the number of bytes in journal_file
+     *   synced_ticket <= next_ticket
+     *
+     * Thread safety:
+     *   Only the flusher thread touches journal, journal_length, generation and
+     *   last_snapshot_time, after start() has finished with them.
+     *   next_ticket, synced_ticket, failure and closed are guarded by this journal's
+     *   lock. sync() takes a ticket, and the flusher takes the latest ticket before it
+     *   polls the subscription, so once a flush has forced a batch, every change made
+     *   before any ticket it took is on disk.
+     */
+    private static final byte[] SNAPSHOT_MAGIC =
+            "MSS1".getBytes(StandardCharsets.US_ASCII);
+    private static final byte[] JOURNAL_MAGIC =
+            "MSJ1".getBytes(StandardCharsets.US_ASCII);
+    private static final int SNAPSHOT_HEADER_LENGTH = SNAPSHOT_MAGIC.length + 16;
+    private static final int JOURNAL_HEADER_LENGTH = JOURNAL_MAGIC.length + 8;
+    private static final int BATCH_HEADER_LENGTH = 8;
+    private static final int CHANGE_LENGTH = 5;
+    static final String SNAPSHOT_FILE_NAME = "board.snapshot";
+    static final String JOURNAL_FILE_NAME = "board.journal";
+    // The most changed squares queued between batches before the flusher gives up on
+    // them and takes a snapshot instead.
+    private static final int QUEUE_SIZE = 1 << 16;
+    // The longest the flusher lets a journal with changes in it go without a snapshot.
+    private static final long SNAPSHOT_INTERVAL_NANOS = TimeUnit.MINUTES.toNanos(10);
+    // The journal is never considered too long to replay below this many bytes, so a
+    // small board isn't snapshotted after every few changes.
+    private static final long MIN_JOURNAL_LENGTH = 1 << 20;
+
+    private final Board board;
+    private final File directory;
+    private final File snapshot_file;
+    private final File journal_file;
+    private final BoardSubscription subscription;
+    private final Thread flusher;
+    // Set whenever the flusher has something to do. Taking a stripe lock may park the
+    // flusher too, which can use up an unpark meant for us, so the flusher only parks
+    // while this is false.
+    private final AtomicBoolean wake_up = new AtomicBoolean();
+    private FileChannel journal;
+    private long journal_length;
+    private long generation;
+    private long last_snapshot_time;
+    private long next_ticket = 0;
+    private long synced_ticket = 0;
+    private IOException failure = null;
+    private boolean closed = false;
+
+    /**
+     * Make a journal for a board. The flusher isn't started.
+     * @param board The board to journal.
+     * @param directory The directory to keep the journal in.
+     */
+    private BoardJournal(Board board, File directory) {
+        this.board = board;
+        this.directory = directory;
+        this.snapshot_file = new File(directory, SNAPSHOT_FILE_NAME);
+        this.journal_file = new File(directory, JOURNAL_FILE_NAME);
+        this.flusher = new Thread(this::flushUntilClosed, "board journal");
+        this.flusher.setDaemon(true);
+        this.subscription =
+                board.subscribe(QUEUE_SIZE, this::wakeFlusher);
+    }
+
+    /**
+     * Restore the board saved in a directory.
+     * @param directory A directory that a BoardJournal has been kept in.
+     * @return The board as it was when its last change was journaled, or null if the
+     *         directory doesn't hold a snapshot.
+     * @throws IOException if the snapshot can't be read or is corrupt.
+     */
+    public static Board recover(File directory) throws IOException {
+        final File snapshot_file = new File(directory, SNAPSHOT_FILE_NAME);
+        if (!snapshot_file.isFile()) {
+            return null;
+        }
+
+        final ByteBuffer snapshot =
+                ByteBuffer.wrap(Files.readAllBytes(snapshot_file.toPath()));
+        if (snapshot.remaining() < SNAPSHOT_HEADER_LENGTH + 4
+                || !hasMagic(snapshot, SNAPSHOT_MAGIC)) {
+            throw new IOException("Snapshot header is corrupt.");
+        }
+        final long generation = snapshot.getLong();
+        final int x_size = snapshot.getInt();
+        final int y_size = snapshot.getInt();
+        if (x_size < 1 || y_size < 1
+                || (long) x_size * y_size != snapshot.remaining() - 4) {
+            throw new IOException(
+                    String.format("Snapshot isn't a %d x %d board.", x_size, y_size));
+        }
+        final byte[] cells = new byte[x_size * y_size];
+        snapshot.get(cells);
+        final CRC32 crc = new CRC32();
+        crc.update(snapshot.array(), 0, snapshot.position());
+        if ((int) crc.getValue() != snapshot.getInt()) {
+            throw new IOException("Snapshot checksum doesn't match.");
+        }
+
+        replay(new File(directory, JOURNAL_FILE_NAME), generation, cells);
+        return new Board(x_size, y_size, cells);
+    }
+
+    /**
+     * Apply the changes in a journal to a snapshot's squares, stopping at the first
+     * batch that wasn't completely written.
+     * @param journal_file The journal.
+     * @param generation The generation of the snapshot. A journal that follows any other
+     *                   snapshot is ignored.
+     * @param cells The snapshot's squares, which are changed in place.
+     * @throws IOException if the journal can't be read.
+     */
+    private static void replay(File journal_file, long generation, byte[] cells)
+            throws IOException {
+        if (!journal_file.isFile()) {
+            return;
+        }
+        try (DataInputStream in = new DataInputStream(
+                new BufferedInputStream(new FileInputStream(journal_file)))) {
+            final byte[] magic = new byte[JOURNAL_MAGIC.length];
+            in.readFully(magic);
+            if (!Arrays.equals(magic, JOURNAL_MAGIC) || in.readLong() != generation) {
+                return;
+            }
+
+            final CRC32 crc = new CRC32();
+            byte[] batch = new byte[0];
+            while (true) {
+                final int num_changes = in.readInt();
+                final int checksum = in.readInt();
+                // No batch holds more changes than the subscription can queue.
+                if (num_changes < 0 || num_changes > QUEUE_SIZE) {
+                    return;
+                }
+                final int length = num_changes * CHANGE_LENGTH;
+                if (batch.length < length) {
+                    batch = new byte[length];
+                }
+                in.readFully(batch, 0, length);
+                crc.reset();
+                crc.update(batch, 0, length);
+                if ((int) crc.getValue() != checksum) {
+                    return;
+                }
+
+                final ByteBuffer changes = ByteBuffer.wrap(batch, 0, length);
+                for (int i = 0; i < num_changes; i++) {
+                    final int square = changes.getInt();
+                    final byte state = changes.get();
+                    if (square < 0 || square >= cells.length) {
+                        throw new IOException("Journal changes a square off the board.");
+                    }
+                    cells[square] = state;
+                }
+            }
+        } catch (EOFException eofe) {
+            // The journal ends here, possibly part way through a batch that was being
+            // written when the server died.
+        }
+    }
+
+    /**
+     * Start journaling a board. Whatever was in the directory before is replaced by a
+     * snapshot of the board as it is now, so a board restored by recover() should be
+     * journaled to the same directory it came from.
+     * @param board The board to journal.
+     * @param directory The directory to keep the journal in, which is created if it
+     *                  doesn't exist.
+     * @return The journal, which keeps running until it's closed.
+     * @throws IOException if the directory or its files can't be written.
+     */
+    public static BoardJournal start(Board board, File directory) throws IOException {
+        if (!directory.isDirectory() && !directory.mkdirs()) {
+            throw new IOException("Unable to create journal directory " + directory);
+        }
+        final BoardJournal journal = new BoardJournal(board, directory);
+        try {
+            journal.generation = journal.lastGeneration();
+            journal.snapshot();
+        } catch (IOException | RuntimeException e) {
+            journal.subscription.cancel();
+            throw e;
+        }
+        journal.flusher.start();
+        return journal;
+    }
+
+    /**
+     * Wait until every change made to the board before this call is on disk.
+     * @throws IOException if the journal failed, or was closed first.
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public void sync() throws IOException, InterruptedException {
+        synchronized (this) {
+            final long ticket = ++this.next_ticket;
+            wakeFlusher();
+            while (this.synced_ticket < ticket) {
+                if (this.failure != null) {
+                    throw this.failure;
+                }
+                if (this.closed && !this.flusher.isAlive()) {
+                    throw new IOException("Journal closed.");
+                }
+                wait();
+            }
+        }
+    }
+
+    /**
+     * Stop journaling, after writing every change made before this call.
+     * @throws IOException if the journal failed.
+     */
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            this.closed = true;
+        }
+        wakeFlusher();
+        boolean interrupted = false;
+        while (this.flusher.isAlive()) {
+            try {
+                this.flusher.join();
+            } catch (InterruptedException ie) {
+                interrupted = true;
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        synchronized (this) {
+            if (this.failure != null) {
+                throw this.failure;
+            }
+        }
+    }
+
+    /**
+     * Ask the flusher for a flush. Called by the board while it's locked, so it does no
+     * more than that.
+     */
+    private void wakeFlusher() {
+        this.wake_up.set(true);
+        LockSupport.unpark(this.flusher);
+    }
+
+    /**
+     * The flusher thread's loop: write a batch whenever there are changes, until closed.
+     */
+    private void flushUntilClosed() {
+        try {
+            boolean finished = false;
+            while (!finished) {
+                // Anything that asks for a flush from here on gets another one.
+                this.wake_up.set(false);
+                final long ticket;
+                synchronized (this) {
+                    ticket = this.next_ticket;
+                    finished = this.closed;
+                }
+                flush();
+                synchronized (this) {
+                    this.synced_ticket = ticket;
+                    notifyAll();
+                }
+                if (!finished && !this.wake_up.get()) {
+                    // The subscription wakes us when a change comes in, and sync() and
+                    // close() wake us too. Otherwise we check in every so often, in case
+                    // a snapshot is due.
+                    LockSupport.parkNanos(this, SNAPSHOT_INTERVAL_NANOS);
+                }
+            }
+        } catch (IOException ioe) {
+            synchronized (this) {
+                this.failure = ioe;
+                notifyAll();
+            }
+            ioe.printStackTrace();
+        } finally {
+            this.subscription.cancel();
+            try {
+                this.journal.close();
+            } catch (IOException ioe) {
+                // Everything that could be written has been forced already.
+            }
+        }
+    }
+
+    /**
+     * Write whatever has changed since the last flush, as a batch or a new snapshot.
+     * Called by the flusher thread only.
+     * @throws IOException if the journal can't be written.
+     */
+    private void flush() throws IOException {
+        final boolean snapshot_due = this.journal_length > JOURNAL_HEADER_LENGTH
+                && System.nanoTime() - this.last_snapshot_time >= SNAPSHOT_INTERVAL_NANOS;
+        if (snapshot_due || this.journal_length >= maxJournalLength()) {
+            snapshot();
+            return;
+        }
+
+        // The squares are polled and read while no flood fill is half done, so a batch
+        // holds whole floods.
+        final int[][] changed = new int[1][];
+        final byte[][] states = new byte[1][];
+        this.board.whileLocked(() -> {
+            changed[0] = this.subscription.pollSquares();
+            if (changed[0] != null && changed[0] != BoardSubscription.OVERFLOWED) {
+                states[0] = new byte[changed[0].length];
+                for (int i = 0; i < changed[0].length; i++) {
+                    states[0][i] = this.board.stateOf(changed[0][i]);
+                }
+            }
+        });
+        if (changed[0] == null) {
+            return;
+        }
+        if (changed[0] == BoardSubscription.OVERFLOWED) {
+            snapshot();
+            return;
+        }
+
+        final int num_changes = changed[0].length;
+        final ByteBuffer batch =
+                ByteBuffer.allocate(BATCH_HEADER_LENGTH + num_changes * CHANGE_LENGTH);
+        batch.position(BATCH_HEADER_LENGTH);
+        for (int i = 0; i < num_changes; i++) {
+            batch.putInt(changed[0][i]).put(states[0][i]);
+        }
+        final CRC32 crc = new CRC32();
+        crc.update(batch.array(), BATCH_HEADER_LENGTH, num_changes * CHANGE_LENGTH);
+        batch.putInt(0, num_changes).putInt(4, (int) crc.getValue());
+        batch.flip();
+
+        writeFully(this.journal, batch);
+        this.journal.force(false);
+        this.journal_length += batch.limit();
+    }
+
+    /**
+     * Write a snapshot of the board as it is now, and start a new, empty journal after
+     * it. Called by the flusher thread, or by start() before the flusher runs.
+     * @throws IOException if either file can't be written.
+     */
+    private void snapshot() throws IOException {
+        // Everything that changed before the copy is in it, so the queued changes can
+        // be dropped, and anything that changes from here on is queued again.
+        final byte[][] cells = new byte[1][];
+        this.board.whileLocked(() -> {
+            this.subscription.pollSquares();
+            cells[0] = this.board.copyCells();
+        });
+        final long next_generation = this.generation + 1;
+
+        final ByteBuffer header = ByteBuffer.allocate(SNAPSHOT_HEADER_LENGTH);
+        header.put(SNAPSHOT_MAGIC).putLong(next_generation)
+                .putInt(this.board.getX_size()).putInt(this.board.getY_size());
+        header.flip();
+        final CRC32 crc = new CRC32();
+        crc.update(header.array(), 0, header.limit());
+        crc.update(cells[0]);
+        final ByteBuffer trailer = ByteBuffer.allocate(4).putInt(0, (int) crc.getValue());
+        writeAtomically(this.snapshot_file, header, ByteBuffer.wrap(cells[0]), trailer);
+
+        // A crash before the new journal is in place leaves the old one behind, which
+        // recover() ignores, since it follows the old generation.
+        final ByteBuffer journal_header = ByteBuffer.allocate(JOURNAL_HEADER_LENGTH);
+        journal_header.put(JOURNAL_MAGIC).putLong(next_generation);
+        journal_header.flip();
+        writeAtomically(this.journal_file, journal_header);
+
+        if (this.journal != null) {
+            this.journal.close();
+        }
+        this.journal = FileChannel.open(this.journal_file.toPath(),
+                StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.journal_length = JOURNAL_HEADER_LENGTH;
+        this.generation = next_generation;
+        this.last_snapshot_time = System.nanoTime();
+    }
+
+    /**
+     * Find the generation of the snapshot already in the directory, so the next one
+     * can follow it.
+     * @return The generation of the directory's snapshot, or 0 if it has none.
+     */
+    private long lastGeneration() {
+        try (DataInputStream in =
+                     new DataInputStream(new FileInputStream(this.snapshot_file))) {
+            final byte[] magic = new byte[SNAPSHOT_MAGIC.length];
+            in.readFully(magic);
+            return Arrays.equals(magic, SNAPSHOT_MAGIC) ? in.readLong() : 0;
+        } catch (IOException ioe) {
+            return 0;
+        }
+    }
+
+    /**
+     * Determine how long the journal may grow before a new snapshot is written. Beyond
+     * the size of the board, replaying the journal would take longer than reading a
+     * snapshot.
+     * @return The longest the journal should be, in bytes.
+     */
+    private long maxJournalLength() {
+        return Math.max(MIN_JOURNAL_LENGTH,
+                (long) this.board.getX_size() * this.board.getY_size());
+    }
+
+    /**
+     * Replace a file in the directory with the given contents, so that a crash leaves
+     * either the old file or the complete new one.
+     * @param file The file to replace.
+     * @param contents The new contents of the file.
+     * @throws IOException if the file can't be written.
+     */
+    private void writeAtomically(File file, ByteBuffer... contents) throws IOException {
+        final File temp_file = new File(this.directory, file.getName() + ".tmp");
+        try (FileChannel channel = FileChannel.open(temp_file.toPath(),
+                StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                StandardOpenOption.TRUNCATE_EXISTING)) {
+            for (ByteBuffer content : contents) {
+                writeFully(channel, content);
+            }
+            channel.force(true);
+        }
+        Files.move(temp_file.toPath(), file.toPath(),
+                StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write all of a buffer to a channel.
+     * @param channel The channel to write to.
+     * @param buffer The bytes to write, from its position to its limit.
+     * @throws IOException if the channel can't be written.
+     */
+    private static void writeFully(FileChannel channel, ByteBuffer buffer)
+            throws IOException {
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    /**
+     * Check that a buffer starts with a magic number, and skip past it.
+     * @param buffer The buffer, positioned at the start.
+     * @param magic The magic number.
+     * @return true iff the buffer starts with magic.
+     */
+    private static boolean hasMagic(ByteBuffer buffer, byte[] magic) {
+        final byte[] start = new byte[magic.length];
+        buffer.get(start);
+        return Arrays.equals(start, magic);
+    }
+}
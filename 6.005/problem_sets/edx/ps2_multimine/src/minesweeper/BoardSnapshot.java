@@ -0,0 +1,90 @@
+package minesweeper;
+
+/**
+ * An immutable copy of a board as it was at one version, for players who only look.
+ * See Board.snapshot().
+ *
+ * Threadsafe, since nothing about it changes: any number of threads may read one
+ * without locking.
+ */
+public final class BoardSnapshot {
+    private final int x_size;
+    private final int y_size;
+    // The version of the board copied.
+    private final long version;
+    // The state of every square, packed and laid out as in Board. Never changed.
+    private final byte[] cells;
+    // System.nanoTime() when the copy was made.
+    private final long created_nanos;
+    // The whole board as text, made the first time it's needed. Threads that race to
+    // make it make the same immutable String, so whichever is kept doesn't matter.
+    private String text = null;
+
+    /**
+     * Make a snapshot.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param version The version of the board copied.
+     * @param cells The board's squares, which no one else may change.
+     * @param created_nanos System.nanoTime() when the squares were copied.
+     */
+    BoardSnapshot(int x_size, int y_size, long version, byte[] cells, long created_nanos) {
+        this.x_size = x_size;
+        this.y_size = y_size;
+        this.version = version;
+        this.cells = cells;
+        this.created_nanos = created_nanos;
+    }
+
+    public int getX_size() {
+        return this.x_size;
+    }
+
+    public int getY_size() {
+        return this.y_size;
+    }
+
+    /**
+     * Get the version of the board the snapshot was copied from.
+     * @return The board's version() when it was copied.
+     */
+    public long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * Get when the snapshot was made.
+     * @return System.nanoTime() when the board was copied.
+     */
+    long createdNanos() {
+        return this.created_nanos;
+    }
+
+    /**
+     * Display the board as it was, as Board.toString() did.
+     * @return The board, one row per line, with a symbol for each square.
+     */
+    @Override
+    public String toString() {
+        String board_text = this.text;
+        if (board_text == null) {
+            board_text = toString(0, 0, this.x_size, this.y_size);
+            this.text = board_text;
+        }
+        return board_text;
+    }
+
+    /**
+     * Display a window of the board as it was, as Board.toString(int, int, int, int)
+     * did.
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width int >= 1, the number of columns in the window.
+     * @param height int >= 1, the number of rows in the window.
+     * @return The window, cut down to the part that's on the board.
+     * @throws IndexOutOfBoundsException if no part of the window is on the board.
+     */
+    public String toString(int x, int y, int width, int height) {
+        return BoardText.window(this.cells, this.x_size, this.y_size, x, y, width, height);
+    }
+}
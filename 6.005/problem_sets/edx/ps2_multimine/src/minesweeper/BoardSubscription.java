@@ -0,0 +1,191 @@
+package minesweeper;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * A subscription to the changes made to a board. The board publishes every change to
+ * each subscription's queue as it happens, without ever waiting for the subscriber.
+ *
+ * The queue holds at most one entry per square, and a square's state is only read when
+ * the queue is polled, so a square that changes many times between polls costs one
+ * entry and is always up to date. The queue holds a
+ * limited number of squares; once more than that have changed, it forgets them and the
+ * next poll returns the whole board instead. Either way, a slow subscriber costs the
+ * board a bounded amount of memory and never holds up a change.
+ *
+ * Threadsafe: the board publishes from whichever threads change it, while the subscriber
+ * polls from its own.
+ */
+public class BoardSubscription {
+    /*
+     * Rep invariant:
+     *   0 <= num_pending <= squares.length
+     *   pending squares are squares[0..num_pending-1], oldest first; no square appears
+     *   twice
+     *   index is an open addressing hash table, with linear probing, from square to
+     *   1 + that square's position in squares, or 0 for an empty slot;
+     *   index.length is a power of 2, at least twice squares.length
+     *   if overflowed, num_pending == 0
+     *
+     * Thread safety:
+     *   Every field other than board, listener and the final arrays' identities is
+     *   guarded by this subscription's lock. The lock is only ever held briefly and
+     *   never while calling into the board, except to read squares' states, which takes
+     *   no locks. So the board can publish while holding its own locks without risk of
+     *   deadlock.
+     *   Every change is published after it's made, so any change made after a poll has
+     *   read a square's state queues the square again.
+     */
+    private final Board board;
+    // Run whenever the queue goes from empty to not empty. Called with board locks held,
+    // so it must be quick and must not call into the board.
+    private final Runnable listener;
+    private final int[] squares;
+    private final int[] index;
+    private int num_pending = 0;
+    // True if more squares changed than the queue can hold.
+    private boolean overflowed = false;
+    private boolean cancelled = false;
+    // Returned by pollSquares() when more squares changed than the queue could hold.
+    static final int[] OVERFLOWED = new int[0];
+
+    /**
+     * Make a subscription. Only the board makes them; see Board.subscribe().
+     * @param board The board the subscription is to.
+     * @param capacity capacity >= 1, the most squares the queue can hold.
+     * @param listener Run whenever the queue stops being empty.
+     */
+    BoardSubscription(Board board, int capacity, Runnable listener) {
+        this.board = board;
+        this.listener = listener;
+        this.squares = new int[capacity];
+        this.index = new int[Integer.highestOneBit(Math.max(1, capacity - 1)) << 2];
+    }
+
+    /**
+     * Record a change to a square. Called by the board, after the change has been made.
+     * @param square The position of the square in the board's cells.
+     */
+    void publish(int square) {
+        boolean was_empty;
+        synchronized (this) {
+            if (this.cancelled || this.overflowed) {
+                // The next poll gets the whole board, which will include this change.
+                return;
+            }
+            was_empty = (this.num_pending == 0);
+
+            final int mask = this.index.length - 1;
+            int slot = mix(square) & mask;
+            while (this.index[slot] != 0) {
+                final int pending = this.index[slot] - 1;
+                if (this.squares[pending] == square) {
+                    // The square is already waiting.
+                    return;
+                }
+                slot = (slot + 1) & mask;
+            }
+
+            if (this.num_pending == this.squares.length) {
+                this.overflowed = true;
+                clear();
+            } else {
+                this.squares[this.num_pending] = square;
+                this.num_pending++;
+                this.index[slot] = this.num_pending;
+            }
+        }
+        if (was_empty) {
+            this.listener.run();
+        }
+    }
+
+    /**
+     * Take everything waiting in the queue, without waiting for more.
+     * @return The squares that changed since the last poll, each with its latest state,
+     *         in the order they first changed; or the whole board if too many changed;
+     *         or null if nothing has changed or the subscription was cancelled.
+     *         A list of changes is labelled with the board's version when it was taken,
+     *         but a change counted in that version may only arrive in the next poll.
+     */
+    public BoardChanges poll() {
+        final int[] changed = pollSquares();
+        if (changed == null) {
+            return null;
+        }
+        if (changed == OVERFLOWED) {
+            // Changes made from now on are queued again. Some may also show up in the
+            // board, which is harmless, since polling always reads the latest state.
+            return this.board.changesSince(-1);
+        }
+
+        final List<Square> changed_squares = new ArrayList<>(changed.length);
+        final int x_size = this.board.getX_size();
+        for (int square : changed) {
+            changed_squares.add(new Square(square % x_size, square / x_size,
+                    this.board.stateOf(square)));
+        }
+        return BoardChanges.changes(this.board.version(), changed_squares);
+    }
+
+    /**
+     * Take the positions of the squares waiting in the queue, without reading their
+     * states, for subscribers inside the package that want them in another form.
+     * @return The positions in the board's cells of the squares that changed since the
+     *         last poll, in the order they first changed; or OVERFLOWED if too many
+     *         changed; or null if nothing has changed or the subscription was cancelled.
+     */
+    int[] pollSquares() {
+        synchronized (this) {
+            if (this.cancelled) {
+                return null;
+            }
+            if (this.overflowed) {
+                this.overflowed = false;
+                return OVERFLOWED;
+            }
+            if (this.num_pending == 0) {
+                return null;
+            }
+            final int[] changed = Arrays.copyOf(this.squares, this.num_pending);
+            clear();
+            return changed;
+        }
+    }
+
+    /**
+     * Stop receiving changes. The board forgets the subscription, and every later poll
+     * returns null.
+     */
+    public void cancel() {
+        synchronized (this) {
+            if (this.cancelled) {
+                return;
+            }
+            this.cancelled = true;
+            clear();
+        }
+        this.board.unsubscribe(this);
+    }
+
+    /**
+     * Empty the queue. The caller must hold this subscription's lock.
+     */
+    private void clear() {
+        this.num_pending = 0;
+        Arrays.fill(this.index, 0);
+    }
+
+    /**
+     * Scramble the bits of a square's position, so that neighboring squares don't
+     * all land in neighboring slots of index.
+     * @param square The position of a square in the board's cells.
+     * @return A well mixed hash of the square.
+     */
+    private static int mix(int square) {
+        final int h = square * 0x9E3779B9;
+        return h ^ (h >>> 16);
+    }
+}
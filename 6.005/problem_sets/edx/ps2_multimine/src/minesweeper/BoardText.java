@@ -0,0 +1,85 @@
+package minesweeper;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Displays windows of a grid of squares as text, in the format of Board.toString(): a
+ * line per row, with a symbol for each square followed by a space, except after the
+ * last square of the last row. Every kind of board, and snapshots of them, display
+ * windows through here, so they all look the same.
+ *
+ * Squares are read with volatile reads, so a grid whose squares change without locks,
+ * as Board's do, shows each square's latest state. The caller must hold whatever locks
+ * the grid needs for the window to be consistent.
+ */
+final class BoardText {
+    // Volatile access to the elements of a grid.
+    private static final VarHandle BYTES =
+            MethodHandles.arrayElementVarHandle(byte[].class);
+
+    private BoardText() {
+    }
+
+    /**
+     * Cut a window down to the part of it that's on a grid.
+     * @param x_size int >= 1, the number of columns in the grid.
+     * @param y_size int >= 1, the number of rows in the grid.
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width The number of columns in the window.
+     * @param height The number of rows in the window.
+     * @return {first_x, first_y, end_x, end_y}: the columns first_x <= x < end_x and rows
+     *         first_y <= y < end_y of the window that are on the grid.
+     * @throws IndexOutOfBoundsException if no part of the window is on the grid.
+     */
+    static int[] clipWindow(int x_size, int y_size, int x, int y, int width, int height) {
+        final int first_x = Math.max(0, x);
+        final int first_y = Math.max(0, y);
+        final int end_x = (int) Math.min(x_size, (long) x + width);
+        final int end_y = (int) Math.min(y_size, (long) y + height);
+        if (first_x >= end_x || first_y >= end_y) {
+            throw new IndexOutOfBoundsException(String.format(
+                    "No squares in the %dx%d window at (%d,%d).", width, height, x, y));
+        }
+        return new int[] {first_x, first_y, end_x, end_y};
+    }
+
+    /**
+     * Display a window of a grid.
+     * @param cells The grid's squares, packed as described in Square, row by row:
+     *              (x, y) is at cells[y * x_size + x].
+     * @param x_size int >= 1, the number of columns in the grid.
+     * @param y_size int >= 1, the number of rows in the grid.
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width The number of columns in the window.
+     * @param height The number of rows in the window.
+     * @return The window, cut down to the part that's on the grid.
+     * @throws IndexOutOfBoundsException if no part of the window is on the grid.
+     */
+    static String window(byte[] cells, int x_size, int y_size,
+                         int x, int y, int width, int height) {
+        final int[] window = clipWindow(x_size, y_size, x, y, width, height);
+        final int first_x = window[0];
+        final int first_y = window[1];
+        final int end_x = window[2];
+        final int end_y = window[3];
+
+        final int row_length = 2 * (end_x - first_x) + 1;
+        final byte[] text = new byte[row_length * (end_y - first_y)];
+        int position = 0;
+        for (int row = first_y; row < end_y; row++) {
+            final int row_start = row * x_size;
+            for (int column = first_x; column < end_x; column++) {
+                text[position++] = Board.symbolOf(
+                        (byte) BYTES.getVolatile(cells, row_start + column));
+                text[position++] = ' ';
+            }
+            text[position++] = '\n';
+        }
+        // The last row has no trailing space and no final newline.
+        return new String(text, 0, text.length - 2, StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,65 @@
+package minesweeper;
+
+/**
+ * A first-in, first-out queue of ints, stored in a growable circular array so that
+ * adding and removing never allocates except when the queue outgrows its array.
+ * Not threadsafe.
+ */
+class IntQueue {
+    /*
+     * Rep invariant:
+     *   elements.length is a power of 2
+     *   0 <= size <= elements.length
+     *   the queue's contents, oldest first, are elements[(head + i) % elements.length]
+     *   for 0 <= i < size
+     */
+    private static final int INITIAL_CAPACITY = 64;
+
+    private int[] elements = new int[INITIAL_CAPACITY];
+    private int head = 0;
+    private int size = 0;
+
+    /**
+     * Determine if the queue is empty.
+     * @return true iff the queue has no elements.
+     */
+    boolean isEmpty() {
+        return this.size == 0;
+    }
+
+    /**
+     * Add an element to the back of the queue.
+     * @param element The element to add.
+     */
+    void add(int element) {
+        if (this.size == this.elements.length) {
+            grow();
+        }
+        this.elements[(this.head + this.size) & (this.elements.length - 1)] = element;
+        this.size++;
+    }
+
+    /**
+     * Remove the element at the front of the queue.
+     * @return The oldest element in the queue, which must not be empty.
+     */
+    int remove() {
+        assert this.size > 0;
+        final int element = this.elements[this.head];
+        this.head = (this.head + 1) & (this.elements.length - 1);
+        this.size--;
+        return element;
+    }
+
+    /**
+     * Double the queue's capacity, moving its contents to the start of a new array.
+     */
+    private void grow() {
+        final int[] bigger = new int[this.elements.length * 2];
+        final int first_part = this.elements.length - this.head;
+        System.arraycopy(this.elements, this.head, bigger, 0, first_part);
+        System.arraycopy(this.elements, 0, bigger, first_part, this.head);
+        this.elements = bigger;
+        this.head = 0;
+    }
+}
@@ -0,0 +1,90 @@
+package minesweeper;
+
+import java.util.Arrays;
+import java.util.SplittableRandom;
+import java.util.stream.IntStream;
+
+/**
+ * Places mines at random for a new board, reproducibly: the same seed always mines the
+ * same squares, which lets a game, or a load test played against it, be replayed.
+ *
+ * Mines are either placed independently, each square with the same probability, or
+ * exactly a given number of them are placed. Both return the squares as Board stores
+ * them, row by row, each either 0 or Square.MINE, with no neighbor counts.
+ */
+final class MineGenerator {
+    // The number of squares in each tile mined by one task. Every tile has its own
+    // stream of random numbers, so tiles can be mined in parallel.
+    private static final int TILE_SIZE = 1 << 16;
+
+    private MineGenerator() {
+    }
+
+    /**
+     * Mine each square independently, with the given probability.
+     *
+     * The squares are split into tiles of TILE_SIZE squares, mined in parallel in the
+     * common fork/join pool. Each tile's generator is split off the seed's generator in
+     * tile order before any tile is mined, so which squares are mined depends only on
+     * the seed, not on which thread mines which tile or when.
+     * @param num_squares int >= 0, the number of squares on the board.
+     * @param mine_probability 0 <= mine_probability <= 1, the probability of each square
+     *                         being mined.
+     * @param seed The seed for the random numbers.
+     * @return num_squares squares, each either 0 or Square.MINE.
+     */
+    static byte[] withProbability(int num_squares, double mine_probability, long seed) {
+        final byte[] cells = new byte[num_squares];
+        final int num_tiles = (num_squares + TILE_SIZE - 1) / TILE_SIZE;
+
+        final SplittableRandom seed_random = new SplittableRandom(seed);
+        final SplittableRandom[] tile_randoms = new SplittableRandom[num_tiles];
+        for (int tile = 0; tile < num_tiles; tile++) {
+            tile_randoms[tile] = seed_random.split();
+        }
+
+        IntStream.range(0, num_tiles).parallel().forEach(tile -> {
+            final SplittableRandom random = tile_randoms[tile];
+            final int end = (int) Math.min(num_squares, (long) (tile + 1) * TILE_SIZE);
+            for (int square = tile * TILE_SIZE; square < end; square++) {
+                if (random.nextDouble() < mine_probability) {
+                    cells[square] = Square.MINE;
+                }
+            }
+        });
+        return cells;
+    }
+
+    /**
+     * Mine exactly the given number of squares, every set of that many squares being
+     * equally likely.
+     *
+     * Uses Floyd's algorithm, which picks the squares with one random number each, like
+     * a partial Fisher-Yates shuffle, but keeps track of the squares picked in cells
+     * itself rather than in an array of every square's position. Whichever of the mined
+     * and the safe squares are fewer are the ones picked, so it never takes more than
+     * num_squares / 2 random numbers.
+     * @param num_squares int >= 0, the number of squares on the board.
+     * @param num_mines 0 <= num_mines <= num_squares, the number of squares to mine.
+     * @param seed The seed for the random numbers.
+     * @return num_squares squares, each either 0 or Square.MINE, num_mines of them mined.
+     */
+    static byte[] withCount(int num_squares, int num_mines, long seed) {
+        final byte[] cells = new byte[num_squares];
+        final boolean pick_mines = num_mines <= num_squares / 2;
+        final byte picked = pick_mines ? (byte) Square.MINE : 0;
+        if (!pick_mines) {
+            Arrays.fill(cells, (byte) Square.MINE);
+        }
+        final int num_picked = pick_mines ? num_mines : num_squares - num_mines;
+
+        // Each step picks one more square out of the first j + 1. If the square drawn
+        // was already picked, square j, which can't have been, is picked instead.
+        final SplittableRandom random = new SplittableRandom(seed);
+        for (int j = num_squares - num_picked; j < num_squares; j++) {
+            final int drawn = random.nextInt(j + 1);
+            cells[(cells[drawn] == picked) ? j : drawn] = picked;
+        }
+        return cells;
+    }
+}
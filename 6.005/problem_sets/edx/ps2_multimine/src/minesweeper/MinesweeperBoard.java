@@ -0,0 +1,102 @@
+package minesweeper;
+
+/**
+ * A threadsafe multiplayer minesweeper board that players can dig, flag, deflag and
+ * look at a window of: everything the server needs from a board to host a room.
+ *
+ * Squares are numbered starting from the top left, which is (0,0), and shown by
+ * toString(int, int, int, int) in the format of Board.toString(). Boards may differ in
+ * how far a dig spreads; see each implementation.
+ *
+ * Board is the usual implementation, which can also be shown, followed and copied as
+ * a whole. TiledBoard is for boards too big to keep in memory, which can only be
+ * looked at a window at a time.
+ */
+public interface MinesweeperBoard {
+
+    /**
+     * @return The number of columns in the board.
+     */
+    int getX_size();
+
+    /**
+     * @return The number of rows in the board.
+     */
+    int getY_size();
+
+    /**
+     * Determine if the given position is a square on the board.
+     * @param x The X coordinate of the position.
+     * @param y The Y coordinate of the position.
+     * @return true iff (x, y) is a square on the board.
+     */
+    boolean isValidPosition(int x, int y);
+
+    /**
+     * Determine if the square at the given position contains a mine.
+     * @param x The X coordinate of the square.
+     * @param y The Y coordinate of the square.
+     * @return true iff (x, y) is a square on the board, and it contains a mine.
+     */
+    boolean hasMine(int x, int y);
+
+    /**
+     * Determine if the square at the given position is neither dug nor flagged.
+     * @param x The X coordinate of the square.
+     * @param y The Y coordinate of the square.
+     * @return true iff (x, y) is a square on the board, and it's untouched.
+     */
+    boolean isUntouched(int x, int y);
+
+    /**
+     * Determine if the square at the given position is flagged.
+     * @param x The X coordinate of the square.
+     * @param y The Y coordinate of the square.
+     * @return true iff (x, y) is a square on the board, and it's flagged.
+     */
+    boolean isFlagged(int x, int y);
+
+    /**
+     * Determine if the square at the given position has been dug.
+     * @param x The X coordinate of the square.
+     * @param y The Y coordinate of the square.
+     * @return true iff (x, y) is a square on the board, and it's been dug.
+     */
+    boolean isDug(int x, int y);
+
+    /**
+     * Dig the square at the given position, if it's untouched. If it's mined, the mine
+     * explodes and is gone. If it has no mined neighbors, the dig spreads.
+     * @param x The X coordinate of the square to dig.
+     * @param y The Y coordinate of the square to dig.
+     * @return The number of squares revealed by the dig, including the square itself,
+     *         or 0 if the dig did nothing.
+     */
+    int dig(int x, int y);
+
+    /**
+     * Flag the square at the given position, if it's untouched. Does nothing otherwise.
+     * @param x The X coordinate of the square to flag.
+     * @param y The Y coordinate of the square to flag.
+     */
+    void flag(int x, int y);
+
+    /**
+     * Remove the flag from the square at the given position, if it's flagged. Does
+     * nothing otherwise.
+     * @param x The X coordinate of the square to deflag.
+     * @param y The Y coordinate of the square to deflag.
+     */
+    void deflag(int x, int y);
+
+    /**
+     * Display a window of the board, in the format of Board.toString().
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width int >= 1, the number of columns in the window.
+     * @param height int >= 1, the number of rows in the window.
+     * @return The window, cut down to the part that's on the board.
+     * @throws IndexOutOfBoundsException if no part of the window is on the board.
+     */
+    String toString(int x, int y, int width, int height);
+}
@@ -4,14 +4,26 @@ package minesweeper;
  * A single square in a minesweeper board. Can be dug or undug, flagged or unflagged, and
  * may contain a mine. A square that is undug and unflagged is considered untouched.
  * A square may have 0-8 neighbors with mines.
+ *
+ * A square's entire state is packed into a single byte, which is also how Board stores
+ * its squares. Board doesn't keep Square objects around; it creates one as a view of a
+ * square's state only when one is asked for.
  */
 public class Square {
-    private boolean isFlagged;
-    private boolean isDug;
-    private boolean hasMine;
-
-    // The number of neighbors of this square which contain mines.
-    private int neighbors_with_mines;
+    /*
+     * State byte layout:
+     *   bits 0-3: the number of neighbors with mines, 0-8
+     *   bit 4:    has a mine
+     *   bit 5:    is dug
+     *   bit 6:    is flagged
+     */
+    static final int COUNT_MASK = 0x0F;
+    static final int MINE = 0x10;
+    private static final int MINE_SHIFT = Integer.numberOfTrailingZeros(MINE);
+    static final int DUG = 0x20;
+    static final int FLAGGED = 0x40;
+
+    private byte state;
 
     // The square's X coordinate.
     private final int x;
@@ -19,10 +31,19 @@ public class Square {
     private final int y;
 
     public Square(int x, int y) {
-        this.isFlagged = false;
-        this.isDug = false;
+        this(x, y, (byte) 0);
+    }
+
+    /**
+     * Create a square with the given packed state.
+     * @param x The square's X coordinate.
+     * @param y The square's Y coordinate.
+     * @param state The square's state, laid out as Board stores it.
+     */
+    Square(int x, int y, byte state) {
         this.x = x;
         this.y = y;
+        this.state = state;
     }
 
     public int getX() {
@@ -34,56 +55,88 @@ public class Square {
     }
 
     public boolean isUntouched() {
-        return !(this.isDug || this.isFlagged);
+        return isUntouched(this.state);
     }
 
     public boolean isSafe() {
-        return !(this.hasMine);
+        return !hasMine(this.state);
     }
 
     public void flag(){
-        this.isFlagged = true;
+        this.state |= FLAGGED;
     }
 
     public void deflag() {
-        this.isFlagged = false;
+        this.state &= ~FLAGGED;
     }
 
     public boolean isFlagged() {
-        return this.isFlagged;
+        return isFlagged(this.state);
     }
 
     public void dig() {
-        this.isDug = true;
+        this.state |= DUG;
     }
 
     public boolean isDug() {
-        return this.isDug;
+        return isDug(this.state);
     }
 
     public void mine() {
-        this.hasMine = true;
+        this.state |= MINE;
     }
 
     public void explode() {
-        this.hasMine = false;
+        this.state &= ~MINE;
     }
 
     public boolean hasMine() {
-        return this.hasMine;
+        return hasMine(this.state);
     }
 
     public void setNeighborsWithMines(int num_mined_neighbors) {
-        // A square can't have fewer than 0 neighbors with mines or more than 8.
-        if ((0 <= num_mined_neighbors) && (num_mined_neighbors <= 8)) {
-            this.neighbors_with_mines = num_mined_neighbors;
-        } else {
-            this.neighbors_with_mines = 0;
-        }
+        this.state = withNeighborsWithMines(this.state, num_mined_neighbors);
     }
 
     public int numNeighborsWithMines() {
-        return this.neighbors_with_mines;
+        return numNeighborsWithMines(this.state);
+    }
+
+    /*
+     * Operations on packed state bytes, shared with Board.
+     */
+
+    static boolean isUntouched(byte state) {
+        return (state & (DUG | FLAGGED)) == 0;
+    }
+
+    static boolean isFlagged(byte state) {
+        return (state & FLAGGED) != 0;
+    }
+
+    static boolean isDug(byte state) {
+        return (state & DUG) != 0;
+    }
+
+    static boolean hasMine(byte state) {
+        return (state & MINE) != 0;
+    }
+
+    // 1 if the square has a mine, 0 if not, without a branch, for adding up mines.
+    static int numMines(byte state) {
+        return (state & MINE) >>> MINE_SHIFT;
+    }
+
+    static int numNeighborsWithMines(byte state) {
+        return state & COUNT_MASK;
+    }
+
+    static byte withNeighborsWithMines(byte state, int num_mined_neighbors) {
+        // A square can't have fewer than 0 neighbors with mines or more than 8.
+        if (!((0 <= num_mined_neighbors) && (num_mined_neighbors <= 8))) {
+            num_mined_neighbors = 0;
+        }
+        return (byte) ((state & ~COUNT_MASK) | num_mined_neighbors);
     }
 
     public String toString() {
@@ -92,6 +145,6 @@ public class Square {
                 "===========\n" +
                String.format(
                 "Has mine: %s\nIs flagged: %s\nIs dug: %s\nIs untouched: " +
-                "%s\n", this.hasMine, this.isFlagged, this.isDug, this.isUntouched());
+                "%s\n", this.hasMine(), this.isFlagged(), this.isDug(), this.isUntouched());
     }
 }
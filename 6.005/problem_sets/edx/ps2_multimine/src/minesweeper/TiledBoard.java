@@ -0,0 +1,509 @@
+package minesweeper;
+
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.SplittableRandom;
+
+/**
+ * A threadsafe multiplayer minesweeper board too big to keep in memory, such as one of
+ * 100000 x 100000 squares, whose memory grows with the part of it that has been played
+ * rather than with its size.
+ *
+ * The grid is split into CHUNK_SIZE x CHUNK_SIZE chunks. Which squares of a chunk are
+ * mined depends only on the board's seed and the chunk's coordinates, so a chunk is
+ * only created, mines, neighbor counts and all, when a square in it is first dug,
+ * flagged or looked at, and an untouched chunk costs nothing. Chunks that have only
+ * been looked at are kept in a least recently used cache, and can be dropped and
+ * created again at any time; only chunks with a square that has changed are kept for
+ * good.
+ *
+ * Squares are mined with the given probability (25% by default), and numbered as on
+ * Board: the top left is (0,0). Digging follows the original rules of the game, which
+ * differ from Board's: digging a square with no mined neighbors digs its untouched
+ * neighbors, and carries on only from those that have no mined neighbors themselves.
+ * Board carries on from every safe square it digs, which on a board this size could
+ * reach billions of squares. When a mine explodes, its neighbors' counts go down.
+ *
+ * There's no count of the mines remaining, since that would mean creating every chunk.
+ * The server hosts one in a room created with 'create ROOM X Y tiled'.
+ */
+public class TiledBoard implements MinesweeperBoard {
+    /*
+     * X_SIZE >= 1, Y_SIZE >= 1
+     *
+     * Representation:
+     *   Chunk (cx, cy) holds the squares (x, y) with x / CHUNK_SIZE == cx and
+     *   y / CHUNK_SIZE == cy, packed as described in Square, row by row: (x, y) is at
+     *   chunk[(y % CHUNK_SIZE) * CHUNK_SIZE + x % CHUNK_SIZE]. Chunks on the right and
+     *   bottom edges reach past the board; their squares off the board are never mined,
+     *   and never read or changed.
+     *   A chunk's key is cy * 2^32 + cx.
+     *   changed_chunks holds every chunk with a square that has changed since the board
+     *   was created. cached_chunks holds up to max_cached_chunks other chunks, least
+     *   recently used first. No chunk is in both. Every chunk in neither is exactly as
+     *   createChunk() would create it.
+     *
+     * Thread safety:
+     *   Every method that reads or changes chunks is synchronized on the board, so
+     *   moves are made one at a time. Chunks are created inside those methods too, so
+     *   two threads never create the same chunk. Unlike Board, even looking at a
+     *   square can change the rep, since it may create a chunk, evict another and
+     *   reorder cached_chunks, so looks can't share a read lock, and lock stripes would
+     *   still all meet at the maps of chunks. Boards this big are for spreading players
+     *   out, so they rarely want the same part of the board at once, but they do all
+     *   queue for the one lock; see Board for a board that lets moves proceed in
+     *   parallel.
+     *
+     * Operations:
+     *
+     *   Creators
+     *       Constructors : with a seed (reproducible), optionally with a mine probability
+     *                      and a cache size
+     *   Mutators
+     *       dig: Unearth a square
+     *       flag: Flag a square
+     *       deflag: Deflag a square
+     *   Observers
+     *       toString: int x, int y, int width, int height -> String: Display a window of
+     *                                                               the grid
+     *       isDug, isFlagged, isUntouched, hasMine: int x, int y -> boolean
+     *       getSquare: int x, int y -> Square: Get a view of the Square at the given X
+     *                                          and Y.
+     *       numChangedChunks, numCachedChunks -> int: Count the chunks in memory.
+     */
+
+    // The width and height of a chunk, in squares, and its log base 2.
+    private static final int CHUNK_BITS = 6;
+    static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+    // The probability of a mine appearing in any given square, unless another is given.
+    private static final double MINE_PROBABILITY = 0.25;
+    // The most unchanged chunks kept in memory, unless another limit is given: 4 MB.
+    private static final int DEFAULT_MAX_CACHED_CHUNKS = 1024;
+
+    private final int x_size;
+    private final int y_size;
+    // The number of chunks across (X) and down (Y) the board.
+    private final int chunks_x;
+    private final int chunks_y;
+    private final long seed;
+    private final double mine_probability;
+    private final Map<Long, byte[]> changed_chunks = new HashMap<>();
+    private final LinkedHashMap<Long, byte[]> cached_chunks;
+
+    /**
+     * Create a board of X_SIZE x Y_SIZE squares, mined with a probability of 25%, the
+     * same way every time for the same seed.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param seed The seed the mines are placed from.
+     */
+    public TiledBoard(int x_size, int y_size, long seed) {
+        this(x_size, y_size, seed, MINE_PROBABILITY, DEFAULT_MAX_CACHED_CHUNKS);
+    }
+
+    /**
+     * Create a board of X_SIZE x Y_SIZE squares, each mined with the given probability,
+     * the same way every time for the same seed.
+     * @param x_size int >= 1, the number of columns in the board.
+     * @param y_size int >= 1, the number of rows in the board.
+     * @param seed The seed the mines are placed from.
+     * @param mine_probability 0 <= mine_probability <= 1, the probability of each square
+     *                         being mined.
+     * @param max_cached_chunks int >= 0, the most chunks without changes to keep in
+     *                          memory, each CHUNK_SIZE * CHUNK_SIZE bytes.
+     */
+    public TiledBoard(int x_size, int y_size, long seed, double mine_probability,
+                      int max_cached_chunks) {
+        this.x_size = x_size;
+        this.y_size = y_size;
+        this.chunks_x = (x_size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        this.chunks_y = (y_size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+        this.seed = seed;
+        this.mine_probability = mine_probability;
+        this.cached_chunks = new LinkedHashMap<Long, byte[]>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, byte[]> eldest) {
+                return size() > max_cached_chunks;
+            }
+        };
+        checkRep();
+    }
+
+    private void checkRep() {
+        assert this.x_size >= 1;
+        assert this.y_size >= 1;
+    }
+
+    public int getX_size() {
+        return this.x_size;
+    }
+
+    public int getY_size() {
+        return this.y_size;
+    }
+
+    /**
+     * Check if the given position is on the board.
+     * @param x The X coordinate.
+     * @param y The Y coordinate.
+     * @return true iff (x, y) is a square on the board.
+     */
+    public boolean isValidPosition(int x, int y) {
+        return 0 <= x && x < this.x_size && 0 <= y && y < this.y_size;
+    }
+
+    public synchronized boolean hasMine(int x, int y) {
+        return isValidPosition(x, y) && Square.hasMine(stateOf(x, y));
+    }
+
+    public synchronized boolean isUntouched(int x, int y) {
+        return isValidPosition(x, y) && Square.isUntouched(stateOf(x, y));
+    }
+
+    public synchronized boolean isFlagged(int x, int y) {
+        return isValidPosition(x, y) && Square.isFlagged(stateOf(x, y));
+    }
+
+    public synchronized boolean isDug(int x, int y) {
+        return isValidPosition(x, y) && Square.isDug(stateOf(x, y));
+    }
+
+    /**
+     * Get a view of the square at the given position.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     * @return A Square with the square's state as it is now, which doesn't change with
+     *         the board.
+     * @throws IndexOutOfBoundsException if there's no square at (x, y).
+     */
+    public synchronized Square getSquare(int x, int y) {
+        if (!isValidPosition(x, y)) {
+            throw new IndexOutOfBoundsException(
+                    String.format("No square at (%d,%d).", x, y));
+        }
+        return new Square(x, y, stateOf(x, y));
+    }
+
+    /**
+     * Flag the square at the given position, if it's untouched. Does nothing otherwise.
+     * @param x The X coordinate of the square to flag.
+     * @param y The Y coordinate of the square to flag.
+     */
+    public synchronized void flag(int x, int y) {
+        if (isValidPosition(x, y)) {
+            final byte state = stateOf(x, y);
+            if (Square.isUntouched(state)) {
+                setState(x, y, (byte) (state | Square.FLAGGED));
+            }
+        }
+    }
+
+    /**
+     * Remove the flag from the square at the given position, if it's flagged. Does
+     * nothing otherwise.
+     * @param x The X coordinate of the square to deflag.
+     * @param y The Y coordinate of the square to deflag.
+     */
+    public synchronized void deflag(int x, int y) {
+        if (isValidPosition(x, y)) {
+            final byte state = stateOf(x, y);
+            if (Square.isFlagged(state)) {
+                setState(x, y, (byte) (state & ~Square.FLAGGED));
+            }
+        }
+    }
+
+    /**
+     * Dig the square at the given position, if it's untouched. If it's mined, the mine
+     * explodes and is gone, and its neighbors' counts go down. If it has no mined
+     * neighbors, its untouched neighbors are dug too, and so on from each of those
+     * without mined neighbors.
+     * @param x The X coordinate of the square to dig.
+     * @param y The Y coordinate of the square to dig.
+     * @return The number of squares dug, including the given one: 0 if it wasn't
+     *         untouched.
+     */
+    public synchronized int dig(int x, int y) {
+        if (!isValidPosition(x, y)) {
+            return 0;
+        }
+        final byte state = stateOf(x, y);
+        if (!Square.isUntouched(state)) {
+            return 0;
+        }
+        if (Square.hasMine(state)) {
+            // The mine explodes! BOOM
+            // Its neighbors' counts go down before it's removed: a neighbor's chunk
+            // that isn't in memory is created from the mines as they are, so creating
+            // it after the mine was gone would leave the mine out of its counts twice.
+            forEachNeighbor(x, y, (neighbor_x, neighbor_y) -> {
+                final byte neighbor_state = stateOf(neighbor_x, neighbor_y);
+                setState(neighbor_x, neighbor_y, Square.withNeighborsWithMines(
+                        neighbor_state, Square.numNeighborsWithMines(neighbor_state) - 1));
+            });
+            setState(x, y, (byte) ((state | Square.DUG) & ~Square.MINE));
+        } else {
+            setState(x, y, (byte) (state | Square.DUG));
+        }
+        if (Square.numNeighborsWithMines(stateOf(x, y)) > 0) {
+            return 1;
+        }
+
+        // A breadth-first walk, as in Board, with each square's X and Y queued one after
+        // the other. Only squares with no mined neighbors are queued.
+        final int[] num_dug = {1};
+        final IntQueue to_visit = new IntQueue();
+        to_visit.add(x);
+        to_visit.add(y);
+        while (!to_visit.isEmpty()) {
+            final int current_x = to_visit.remove();
+            final int current_y = to_visit.remove();
+            forEachNeighbor(current_x, current_y, (neighbor_x, neighbor_y) -> {
+                final byte neighbor_state = stateOf(neighbor_x, neighbor_y);
+                if (Square.isUntouched(neighbor_state) && !Square.hasMine(neighbor_state)) {
+                    setState(neighbor_x, neighbor_y, (byte) (neighbor_state | Square.DUG));
+                    num_dug[0]++;
+                    if (Square.numNeighborsWithMines(neighbor_state) == 0) {
+                        to_visit.add(neighbor_x);
+                        to_visit.add(neighbor_y);
+                    }
+                }
+            });
+        }
+        return num_dug[0];
+    }
+
+    /**
+     * Display a window of the board, in the same format as Board.toString(): a line per
+     * row, with a symbol for each square followed by a space, except after the last
+     * square of the last row. Only the chunks the window covers are created.
+     * @param x The X coordinate of the window's top left square.
+     * @param y The Y coordinate of the window's top left square.
+     * @param width int >= 1, the number of columns in the window.
+     * @param height int >= 1, the number of rows in the window.
+     * @return The window, cut down to the part that's on the board.
+     * @throws IndexOutOfBoundsException if no part of the window is on the board.
+     */
+    public synchronized String toString(int x, int y, int width, int height) {
+        final int[] window = BoardText.clipWindow(this.x_size, this.y_size,
+                x, y, width, height);
+        final int first_x = window[0];
+        final int first_y = window[1];
+        final int window_width = window[2] - first_x;
+        final int window_height = window[3] - first_y;
+        // The window's squares are spread over several chunks, so they're gathered into
+        // a grid of their own to display.
+        final byte[] cells = new byte[window_width * window_height];
+        for (int row = 0; row < window_height; row++) {
+            for (int column = 0; column < window_width; column++) {
+                cells[row * window_width + column] =
+                        stateOf(first_x + column, first_y + row);
+            }
+        }
+        return BoardText.window(cells, window_width, window_height,
+                0, 0, window_width, window_height);
+    }
+
+    /**
+     * Get the number of chunks kept in memory for good, because they have changed.
+     * @return The number of changed chunks.
+     */
+    public synchronized int numChangedChunks() {
+        return this.changed_chunks.size();
+    }
+
+    /**
+     * Get the number of unchanged chunks being kept in memory in case they're needed.
+     * @return The number of cached chunks, at most the board's max_cached_chunks.
+     */
+    public synchronized int numCachedChunks() {
+        return this.cached_chunks.size();
+    }
+
+    /** Something done to squares by forEachNeighbor(). */
+    private interface SquareAction {
+        void apply(int x, int y);
+    }
+
+    /**
+     * Do something to every neighbor of a square.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     * @param action What to do to each neighbor.
+     */
+    private void forEachNeighbor(int x, int y, SquareAction action) {
+        final int last_x = Math.min(this.x_size - 1, x + 1);
+        final int last_y = Math.min(this.y_size - 1, y + 1);
+        for (int y_pos = Math.max(0, y - 1); y_pos <= last_y; y_pos++) {
+            for (int x_pos = Math.max(0, x - 1); x_pos <= last_x; x_pos++) {
+                if (x_pos != x || y_pos != y) {
+                    action.apply(x_pos, y_pos);
+                }
+            }
+        }
+    }
+
+    /**
+     * Get the state of a square, creating its chunk if it isn't in memory.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     * @return The square's packed state, as described in Square.
+     */
+    private byte stateOf(int x, int y) {
+        final long key = chunkKey(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+        byte[] chunk = this.changed_chunks.get(key);
+        if (chunk == null) {
+            chunk = this.cached_chunks.get(key);
+            if (chunk == null) {
+                chunk = createChunk(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+                this.cached_chunks.put(key, chunk);
+            }
+        }
+        return chunk[indexInChunk(x, y)];
+    }
+
+    /**
+     * Change the state of a square, keeping its chunk for good.
+     * @param x 0 <= x < board.x_size, the X coordinate of the square.
+     * @param y 0 <= y < board.y_size, the Y coordinate of the square.
+     * @param state The square's new packed state, as described in Square.
+     */
+    private void setState(int x, int y, byte state) {
+        final long key = chunkKey(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+        byte[] chunk = this.changed_chunks.get(key);
+        if (chunk == null) {
+            chunk = this.cached_chunks.remove(key);
+            if (chunk == null) {
+                chunk = createChunk(x >>> CHUNK_BITS, y >>> CHUNK_BITS);
+            }
+            this.changed_chunks.put(key, chunk);
+        }
+        chunk[indexInChunk(x, y)] = state;
+    }
+
+    /**
+     * Create a chunk as it was when the board was created, with its mines and the
+     * number of mined neighbors of each square. Squares on the chunk's edges have
+     * neighbors in the chunks around it, whose mines are taken from memory if they're
+     * there, since mines may have exploded, or else placed as they were at the start.
+     * @param chunk_x 0 <= chunk_x < chunks_x, the chunk's X coordinate.
+     * @param chunk_y 0 <= chunk_y < chunks_y, the chunk's Y coordinate.
+     * @return The chunk's squares, as described above.
+     */
+    private byte[] createChunk(int chunk_x, int chunk_y) {
+        // The mines of this chunk and the eight around it, numbered across each row,
+        // then down, with null for those off the board.
+        final byte[][] around = new byte[9][];
+        for (int dy = -1; dy <= 1; dy++) {
+            for (int dx = -1; dx <= 1; dx++) {
+                around[(dy + 1) * 3 + (dx + 1)] = minesOf(chunk_x + dx, chunk_y + dy);
+            }
+        }
+        final byte[] chunk = around[4].clone();
+        for (int local_y = 0; local_y < CHUNK_SIZE; local_y++) {
+            for (int local_x = 0; local_x < CHUNK_SIZE; local_x++) {
+                int num_mined_neighbors = 0;
+                for (int neighbor_y = local_y - 1; neighbor_y <= local_y + 1; neighbor_y++) {
+                    for (int neighbor_x = local_x - 1; neighbor_x <= local_x + 1;
+                         neighbor_x++) {
+                        if (neighbor_x != local_x || neighbor_y != local_y) {
+                            num_mined_neighbors += mineAround(around, neighbor_x, neighbor_y);
+                        }
+                    }
+                }
+                final int square = local_y * CHUNK_SIZE + local_x;
+                chunk[square] = Square.withNeighborsWithMines(chunk[square],
+                        num_mined_neighbors);
+            }
+        }
+        return chunk;
+    }
+
+    /**
+     * Determine whether a square near a chunk is mined.
+     * @param around The mines of the chunk and the eight around it, as in createChunk().
+     * @param local_x -1 <= local_x <= CHUNK_SIZE, the square's X coordinate relative to
+     *                the chunk's top left square.
+     * @param local_y -1 <= local_y <= CHUNK_SIZE, the square's Y coordinate relative to
+     *                the chunk's top left square.
+     * @return 1 if the square is mined, 0 if not or if it's off the board.
+     */
+    private static int mineAround(byte[][] around, int local_x, int local_y) {
+        final byte[] mines = around[((local_y + CHUNK_SIZE) >> CHUNK_BITS) * 3
+                + ((local_x + CHUNK_SIZE) >> CHUNK_BITS)];
+        if (mines == null) {
+            return 0;
+        }
+        return Square.numMines(mines[(local_y & (CHUNK_SIZE - 1)) * CHUNK_SIZE
+                + (local_x & (CHUNK_SIZE - 1))]);
+    }
+
+    /**
+     * Get the mines of a chunk as they are now, without creating the chunk.
+     * @param chunk_x The chunk's X coordinate.
+     * @param chunk_y The chunk's Y coordinate.
+     * @return The chunk's squares, in which only the MINE bits are meaningful, or null
+     *         if there's no such chunk.
+     */
+    private byte[] minesOf(int chunk_x, int chunk_y) {
+        if (chunk_x < 0 || chunk_x >= this.chunks_x || chunk_y < 0 || chunk_y >= this.chunks_y) {
+            return null;
+        }
+        final long key = chunkKey(chunk_x, chunk_y);
+        final byte[] changed = this.changed_chunks.get(key);
+        if (changed != null) {
+            return changed;
+        }
+        final byte[] cached = this.cached_chunks.get(key);
+        return (cached != null) ? cached : placeMines(chunk_x, chunk_y);
+    }
+
+    /**
+     * Place a chunk's mines as they were when the board was created. Each chunk has its
+     * own random numbers, seeded from the board's seed and the chunk's coordinates, so
+     * any chunk can be placed without placing the others.
+     * @param chunk_x 0 <= chunk_x < chunks_x, the chunk's X coordinate.
+     * @param chunk_y 0 <= chunk_y < chunks_y, the chunk's Y coordinate.
+     * @return The chunk's squares, each either 0 or Square.MINE.
+     */
+    private byte[] placeMines(int chunk_x, int chunk_y) {
+        final byte[] mines = new byte[CHUNK_SIZE * CHUNK_SIZE];
+        final SplittableRandom random = new SplittableRandom(
+                mix(this.seed + 0x9E3779B97F4A7C15L * (chunkKey(chunk_x, chunk_y) + 1)));
+        final int first_x = chunk_x << CHUNK_BITS;
+        final int first_y = chunk_y << CHUNK_BITS;
+        for (int local_y = 0; local_y < CHUNK_SIZE; local_y++) {
+            for (int local_x = 0; local_x < CHUNK_SIZE; local_x++) {
+                // Every square draws a number, even off the board, so the mines on it
+                // don't depend on where the board ends.
+                final boolean mined = random.nextDouble() < this.mine_probability;
+                if (mined && first_x + local_x < this.x_size
+                        && first_y + local_y < this.y_size) {
+                    mines[local_y * CHUNK_SIZE + local_x] = Square.MINE;
+                }
+            }
+        }
+        return mines;
+    }
+
+    /**
+     * Scramble the bits of a long, so that nearby chunks get unrelated seeds. This is
+     * the finalizer of SplitMix64.
+     * @param z The long to scramble.
+     * @return The scrambled long.
+     */
+    private static long mix(long z) {
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        return z ^ (z >>> 31);
+    }
+
+    private static long chunkKey(int chunk_x, int chunk_y) {
+        return ((long) chunk_y << 32) | chunk_x;
+    }
+
+    private static int indexInChunk(int x, int y) {
+        return ((y & (CHUNK_SIZE - 1)) << CHUNK_BITS) | (x & (CHUNK_SIZE - 1));
+    }
+}
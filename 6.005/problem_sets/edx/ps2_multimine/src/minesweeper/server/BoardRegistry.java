@@ -0,0 +1,304 @@
+package minesweeper.server;
+
+import minesweeper.Board;
+import minesweeper.MinesweeperBoard;
+import minesweeper.TiledBoard;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Supplier;
+
+/**
+ * The named boards, or rooms, hosted by one server. Every player starts in the main
+ * room, whose board the server was started with, and can move to another room with
+ * 'join' or 'create'. A room that doesn't exist is created when someone joins it.
+ * Rooms usually have a Board, but a room can be created with a TiledBoard instead, for
+ * a board far bigger than a Board could be.
+ *
+ * Each room's board is independent, with its own locks, so games in different rooms
+ * never contend with each other; the rooms share only the server's connections and
+ * threads. A room other than the main one is forgotten once it has had no players for
+ * idle_timeout, so its board can be garbage collected. Idle rooms are looked for
+ * whenever a room is joined or created, since that's the only way the number of rooms
+ * can grow.
+ *
+ * No more than max_rooms rooms, the main one included, are hosted at once; joining or
+ * creating a room beyond that is refused until idle rooms are forgotten. Without a
+ * limit, one player could create rooms of the largest size until the server ran out
+ * of memory.
+ *
+ * Threadsafe: every room's player count and idle time is only read or changed inside
+ * the map's atomic compute methods for that room's name. A new room's place is counted
+ * in num_rooms before its board is made, so the limit holds however many rooms are
+ * being created at once, and the board is made outside the map's compute methods, so
+ * making a big one never holds up other players joining or leaving rooms.
+ */
+class BoardRegistry {
+    /** The name of the room every player starts in, which is never forgotten. */
+    static final String MAIN_ROOM = "main";
+    /** The size of a board created by joining a room that doesn't exist. */
+    static final int DEFAULT_ROOM_SIZE = 10;
+    /** The largest width or height a player may create a board with. */
+    static final int MAX_ROOM_SIZE = 1000;
+    /** The largest width or height a player may create a tiled board with. */
+    static final int MAX_TILED_ROOM_SIZE = 1_000_000;
+    /** How long a room may go without players before it's forgotten, by default. */
+    static final long DEFAULT_IDLE_TIMEOUT_MS = TimeUnit.MINUTES.toMillis(10);
+    /** The most rooms, including the main room, hosted at once, by default. */
+    static final int MAX_ROOMS = 100;
+
+    /** One room and the players in it. */
+    private static class Room {
+        private final MinesweeperBoard board;
+        /** The number of players in the room right now. */
+        private int num_players = 0;
+        /** System.nanoTime() when the last player left, if num_players == 0. */
+        private long idle_since = System.nanoTime();
+
+        Room(MinesweeperBoard board) {
+            this.board = board;
+        }
+    }
+
+    private final ConcurrentHashMap<String, Room> rooms = new ConcurrentHashMap<>();
+    private final long idle_timeout_nanos;
+    private final int max_rooms;
+    /** The number of rooms hosted, and rooms being created, including the main room. */
+    private final AtomicInteger num_rooms = new AtomicInteger(1);
+    /** System.nanoTime() when idle rooms were last looked for. */
+    private final AtomicLong last_eviction = new AtomicLong(System.nanoTime());
+
+    /**
+     * Make a registry with just a main room, whose idle rooms are forgotten after
+     * DEFAULT_IDLE_TIMEOUT_MS.
+     *
+     * @param main_board the board of the main room
+     */
+    BoardRegistry(Board main_board) {
+        this(main_board, DEFAULT_IDLE_TIMEOUT_MS);
+    }
+
+    /**
+     * Make a registry with just a main room, hosting at most MAX_ROOMS rooms.
+     *
+     * @param main_board the board of the main room
+     * @param idle_timeout_ms how long a room other than the main one may go without
+     *                        players before it's forgotten, requires idle_timeout_ms >= 0
+     */
+    BoardRegistry(Board main_board, long idle_timeout_ms) {
+        this(main_board, idle_timeout_ms, MAX_ROOMS);
+    }
+
+    /**
+     * Make a registry with just a main room.
+     *
+     * @param main_board the board of the main room
+     * @param idle_timeout_ms how long a room other than the main one may go without
+     *                        players before it's forgotten, requires idle_timeout_ms >= 0
+     * @param max_rooms the most rooms hosted at once, including the main room, requires
+     *                  max_rooms >= 1
+     */
+    BoardRegistry(Board main_board, long idle_timeout_ms, int max_rooms) {
+        this.rooms.put(MAIN_ROOM, new Room(main_board));
+        this.idle_timeout_nanos = TimeUnit.MILLISECONDS.toNanos(idle_timeout_ms);
+        this.max_rooms = max_rooms;
+    }
+
+    /**
+     * Enter a room, creating it with a random DEFAULT_ROOM_SIZE x DEFAULT_ROOM_SIZE board
+     * if it doesn't exist. Every join must be followed by a leave() of the same room.
+     *
+     * @param name the room's name
+     * @return the room's board
+     * @throws IllegalStateException if the room doesn't exist and max_rooms rooms
+     *                               already do
+     */
+    MinesweeperBoard join(String name) {
+        evictIdleRooms();
+        final Room existing = this.rooms.computeIfPresent(name, (room_name, room) -> {
+            room.num_players++;
+            return room;
+        });
+        if (existing != null) {
+            return existing.board;
+        }
+
+        reserveRoom();
+        final Room created = new Room(new Board(DEFAULT_ROOM_SIZE, DEFAULT_ROOM_SIZE));
+        final Room joined = this.rooms.compute(name, (room_name, room) -> {
+            final Room entered = (room != null) ? room : created;
+            entered.num_players++;
+            return entered;
+        });
+        if (joined != created) {
+            // Someone else created the room while we were making its board.
+            releaseRoom();
+        }
+        return joined.board;
+    }
+
+    /**
+     * Create a room with a random board of the given size, and enter it. Every create
+     * that succeeds must be followed by a leave() of the same room.
+     *
+     * @param name the room's name
+     * @param x_size the board's width, requires 1 <= x_size <= MAX_ROOM_SIZE
+     * @param y_size the board's height, requires 1 <= y_size <= MAX_ROOM_SIZE
+     * @return the new room's board, or null if a room with that name already exists
+     * @throws IllegalStateException if max_rooms rooms already exist
+     */
+    Board create(String name, int x_size, int y_size) {
+        return create(name, () -> new Board(x_size, y_size));
+    }
+
+    /**
+     * Create a room with a random tiled board of the given size, whose memory grows
+     * with the part of it that's played rather than its size, and enter it. Every
+     * create that succeeds must be followed by a leave() of the same room.
+     *
+     * @param name the room's name
+     * @param x_size the board's width, requires 1 <= x_size <= MAX_TILED_ROOM_SIZE
+     * @param y_size the board's height, requires 1 <= y_size <= MAX_TILED_ROOM_SIZE
+     * @return the new room's board, or null if a room with that name already exists
+     * @throws IllegalStateException if max_rooms rooms already exist
+     */
+    TiledBoard createTiled(String name, int x_size, int y_size) {
+        return create(name, () -> new TiledBoard(x_size, y_size,
+                ThreadLocalRandom.current().nextLong()));
+    }
+
+    /**
+     * Create a room with a new board, and enter it.
+     *
+     * @param name the room's name
+     * @param make_board makes the board, only if the room doesn't exist yet
+     * @return the new room's board, or null if a room with that name already exists
+     * @throws IllegalStateException if max_rooms rooms already exist
+     */
+    private <B extends MinesweeperBoard> B create(String name, Supplier<B> make_board) {
+        evictIdleRooms();
+        if (this.rooms.containsKey(name)) {
+            return null;
+        }
+
+        reserveRoom();
+        final B board = make_board.get();
+        final Room created = new Room(board);
+        created.num_players = 1;
+        if (this.rooms.putIfAbsent(name, created) != null) {
+            // Someone else created the room while we were making its board.
+            releaseRoom();
+            return null;
+        }
+        return board;
+    }
+
+    /**
+     * Leave a room entered with join() or create().
+     *
+     * @param name the room's name
+     */
+    void leave(String name) {
+        this.rooms.computeIfPresent(name, (room_name, room) -> {
+            room.num_players--;
+            if (room.num_players == 0) {
+                room.idle_since = System.nanoTime();
+            }
+            return room;
+        });
+    }
+
+    /**
+     * Get the number of rooms, including the main room.
+     *
+     * @return the number of rooms that haven't been forgotten
+     */
+    int numRooms() {
+        return this.rooms.size();
+    }
+
+    /**
+     * Get the number of times threads have waited for a board's locks, in every room
+     * still hosted.
+     *
+     * @return the total of Board.numLockWaits() over the rooms' boards, not counting
+     *         tiled boards, which don't measure their waits
+     */
+    long numLockWaits() {
+        long num_waits = 0;
+        for (Room room : this.rooms.values()) {
+            if (room.board instanceof Board) {
+                num_waits += ((Board) room.board).numLockWaits();
+            }
+        }
+        return num_waits;
+    }
+
+    /**
+     * Get the total time threads have waited for a board's locks, in every room still
+     * hosted.
+     *
+     * @return the total of Board.lockWaitNanos() over the rooms' boards, in nanoseconds,
+     *         not counting tiled boards
+     */
+    long lockWaitNanos() {
+        long wait_nanos = 0;
+        for (Room room : this.rooms.values()) {
+            if (room.board instanceof Board) {
+                wait_nanos += ((Board) room.board).lockWaitNanos();
+            }
+        }
+        return wait_nanos;
+    }
+
+    /**
+     * Forget every room, other than the main one, that has had no players for
+     * idle_timeout. Does nothing if that was last done less than a tenth of idle_timeout
+     * ago, so that a burst of joins doesn't look through every room each time.
+     */
+    private void evictIdleRooms() {
+        final long now = System.nanoTime();
+        final long last = this.last_eviction.get();
+        if (now - last < this.idle_timeout_nanos / 10
+                || !this.last_eviction.compareAndSet(last, now)) {
+            return;
+        }
+        for (String name : this.rooms.keySet()) {
+            if (name.equals(MAIN_ROOM)) {
+                continue;
+            }
+            this.rooms.computeIfPresent(name, (room_name, room) -> {
+                final boolean idle = room.num_players == 0
+                        && now - room.idle_since >= this.idle_timeout_nanos;
+                if (!idle) {
+                    return room;
+                }
+                releaseRoom();
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Count a room about to be created against max_rooms.
+     *
+     * @throws IllegalStateException if max_rooms rooms already exist, in which case
+     *                               nothing is counted
+     */
+    private void reserveRoom() {
+        if (this.num_rooms.incrementAndGet() > this.max_rooms) {
+            this.num_rooms.decrementAndGet();
+            throw new IllegalStateException("already hosting " + this.max_rooms + " rooms");
+        }
+    }
+
+    /**
+     * Stop counting a room that has been forgotten, or that was never created.
+     */
+    private void releaseRoom() {
+        this.num_rooms.decrementAndGet();
+    }
+}
@@ -0,0 +1,508 @@
+package minesweeper.server;
+
+import minesweeper.Board;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.*;
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Multiplayer Minesweeper server using non-blocking I/O. Speaks the same protocol as
+ * MinesweeperServer, but instead of a thread per player, a handful of selector threads
+ * each watch thousands of connections and only do work for the ones with something to
+ * read or write. Idle players cost a few hundred bytes each rather than a thread.
+ */
+public class MinesweeperNioServer {
+
+    // System thread safety argument:
+    // Each connection is owned by exactly one selector loop, and only that loop's thread
+    // ever reads, writes or changes the connection's state. Loops share nothing but the
+    // rooms and the statistics, which are threadsafe, and the player count, which is
+    // atomic. New connections are handed from the accepting thread to a loop through a
+    // concurrent queue, and so are watching connections with board changes waiting to
+    // be pushed.
+
+    /** The longest request line we'll accept, in bytes, including the line terminator. */
+    private static final int MAX_LINE_LENGTH = 512;
+    /** Stop reading from a player once this many response bytes are waiting to be sent. */
+    private static final int HIGH_WATER_MARK = 1 << 20;
+    /** Start reading from a player again once their waiting responses drop below this. */
+    private static final int LOW_WATER_MARK = 1 << 18;
+    private static final byte[] NEWLINE = "\n".getBytes(StandardCharsets.US_ASCII);
+    /** The most queued buffers handed to the socket in a single write. */
+    private static final int MAX_BUFFERS_PER_WRITE = 64;
+
+    /** Channel for receiving incoming connections. */
+    private final ServerSocketChannel serverChannel;
+    /** True if the server should *not* disconnect a client after a BOOM message. */
+    private final boolean debug;
+    /** The boards hosted by the server, starting with the main room's. */
+    private final BoardRegistry rooms;
+    /** Measurements of the server's traffic, shared by every selector loop. */
+    private final ServerStats stats;
+    /** The selector loops connections are shared between, round robin. */
+    private final List<SelectorLoop> loops = new ArrayList<>();
+    /** The number of players connected right now. */
+    private final AtomicInteger num_players = new AtomicInteger();
+    /** False once shutdown() has been called. */
+    private volatile boolean running = true;
+
+    /**
+     * Make a MinesweeperNioServer that listens for connections on port.
+     *
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param board the board of the main room, which every player starts in
+     * @param num_loops the number of selector threads, requires num_loops >= 1
+     * @throws IOException if an error occurs opening the server channel or selectors
+     */
+    public MinesweeperNioServer(int port, boolean debug, Board board, int num_loops)
+            throws IOException {
+        this.serverChannel = ServerSocketChannel.open();
+        this.serverChannel.bind(new InetSocketAddress(port));
+        this.debug = debug;
+        this.rooms = new BoardRegistry(board);
+        this.stats = new ServerStats(this.rooms);
+        for (int i = 0; i < num_loops; i++) {
+            this.loops.add(new SelectorLoop(Selector.open()));
+        }
+    }
+
+    /**
+     * Run the server, accepting client connections and handing each one to a selector
+     * loop. Returns once shutdown() has been called.
+     *
+     * @throws IOException if the main server channel is broken
+     *                     (IOExceptions from individual clients do *not* terminate serve())
+     */
+    public void serve() throws IOException {
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < this.loops.size(); i++) {
+            final Thread thread = new Thread(this.loops.get(i), "minesweeper-selector-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            threads.add(thread);
+        }
+
+        int thread_id = 0;
+        while (this.running) {
+            try {
+                final SocketChannel channel = this.serverChannel.accept();
+                final int players = this.num_players.incrementAndGet();
+                this.loops.get(thread_id % this.loops.size())
+                        .register(channel, thread_id, players);
+                thread_id++;
+            } catch (IOException ioe) {
+                // Closing the server channel is how shutdown() stops us accepting.
+                if (this.running) {
+                    ioe.printStackTrace();
+                }
+            }
+        }
+
+        for (Thread thread : threads) {
+            try {
+                thread.join();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the number of players connected to the server right now.
+     *
+     * @return the number of connected players
+     */
+    public int numPlayers() {
+        return this.num_players.get();
+    }
+
+    /**
+     * Get the port the server is listening on, which is useful if it was started on
+     * port 0 to let the system pick a free one.
+     *
+     * @return the port number
+     */
+    int port() {
+        return this.serverChannel.socket().getLocalPort();
+    }
+
+    /**
+     * Get the server's statistics.
+     *
+     * @return the statistics, which keep changing as players play
+     */
+    ServerStats stats() {
+        return this.stats;
+    }
+
+    /**
+     * Stop the server. No new connections are accepted and connected players are
+     * disconnected. Causes serve() to return.
+     */
+    public void shutdown() {
+        this.running = false;
+        try {
+            this.serverChannel.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        for (SelectorLoop loop : this.loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    /**
+     * One selector thread, and the connections it is responsible for.
+     */
+    private class SelectorLoop implements Runnable {
+        private final Selector selector;
+        /** Connections accepted but not yet registered with the selector. */
+        private final Queue<Connection> incoming = new ConcurrentLinkedQueue<>();
+        /** Watching connections with board changes waiting to be pushed to them. */
+        private final Queue<Connection> pushes = new ConcurrentLinkedQueue<>();
+
+        SelectorLoop(Selector selector) {
+            this.selector = selector;
+        }
+
+        /**
+         * Hand a newly accepted channel to this loop. May be called from any thread.
+         */
+        void register(SocketChannel channel, int id, int players) throws IOException {
+            channel.configureBlocking(false);
+            final Connection connection = new Connection(channel);
+            stats.connectionOpened();
+            connection.send(connection.protocol.welcome(players, id));
+            this.incoming.add(connection);
+            this.selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (running) {
+                try {
+                    this.selector.select();
+                    registerIncoming();
+                    pushWaiting();
+
+                    final Iterator<SelectionKey> keys = this.selector.selectedKeys().iterator();
+                    while (keys.hasNext()) {
+                        final SelectionKey key = keys.next();
+                        keys.remove();
+                        final Connection connection = (Connection) key.attachment();
+                        try {
+                            if (key.isValid() && key.isWritable()) {
+                                connection.flush();
+                            }
+                            if (key.isValid() && key.isReadable()) {
+                                connection.read();
+                            }
+                        } catch (IOException | CancelledKeyException e) {
+                            // Problems with one client don't affect anyone else.
+                            connection.close();
+                        }
+                    }
+                } catch (IOException ioe) {
+                    ioe.printStackTrace();
+                }
+            }
+
+            // The server is shutting down, so everyone still here is disconnected.
+            registerIncoming();
+            for (SelectionKey key : this.selector.keys()) {
+                ((Connection) key.attachment()).close();
+            }
+            try {
+                this.selector.close();
+            } catch (IOException ioe) {
+                ioe.printStackTrace();
+            }
+        }
+
+        /**
+         * Register every connection waiting in incoming with the selector.
+         */
+        private void registerIncoming() {
+            for (Connection connection = this.incoming.poll(); connection != null;
+                 connection = this.incoming.poll()) {
+                try {
+                    connection.key = connection.channel.register(
+                            this.selector, SelectionKey.OP_READ, connection);
+                    // The welcome message is already waiting to be sent.
+                    connection.flush();
+                } catch (IOException ioe) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * Push board changes to every connection that has some waiting.
+         */
+        private void pushWaiting() {
+            for (Connection connection = this.pushes.poll(); connection != null;
+                 connection = this.pushes.poll()) {
+                if (connection.closed) {
+                    continue;
+                }
+                connection.push_pending = true;
+                try {
+                    connection.push();
+                } catch (IOException | CancelledKeyException e) {
+                    connection.close();
+                }
+            }
+        }
+
+        /**
+         * A connected player. Only ever touched by the loop's thread, after registration,
+         * except that the board may ask for changes to be pushed from any thread.
+         */
+        private class Connection {
+            private final SocketChannel channel;
+            private final MinesweeperProtocol protocol;
+            /** Bytes read from the player that don't yet make up a whole line. */
+            private final ByteBuffer input = ByteBuffer.allocateDirect(MAX_LINE_LENGTH);
+            /** The line in input being answered. */
+            private final AsciiLine line = new AsciiLine();
+            /** Responses waiting to be written to the player, oldest first. */
+            private final Deque<ByteBuffer> output = new ArrayDeque<>();
+            /** The total number of bytes remaining in output. */
+            private int output_bytes = 0;
+            /** The buffers at the head of output, gathered into one write by flush(). */
+            private final ByteBuffer[] to_write = new ByteBuffer[MAX_BUFFERS_PER_WRITE];
+            private SelectionKey key;
+            private boolean closed = false;
+            /** True if board changes are waiting to be pushed to the player. */
+            private boolean push_pending = false;
+
+            Connection(SocketChannel channel) {
+                this.channel = channel;
+                this.protocol = new MinesweeperProtocol(rooms, stats, debug, () -> {
+                    // The board is locked, so just hand ourselves to the loop's thread.
+                    pushes.add(this);
+                    selector.wakeup();
+                });
+            }
+
+            /**
+             * Read whatever the player has sent, and answer every complete line in it.
+             */
+            void read() throws IOException {
+                final int num_read = this.channel.read(this.input);
+                if (num_read < 0) {
+                    // The player hung up without saying bye.
+                    close();
+                    return;
+                }
+                stats.bytesIn(num_read);
+
+                this.input.flip();
+                int line_start = this.input.position();
+                for (int i = line_start; i < this.input.limit(); i++) {
+                    if (this.input.get(i) == '\n') {
+                        handleLine(line_start, i);
+                        line_start = i + 1;
+                        if (this.protocol.isFinished()) {
+                            break;
+                        }
+                    }
+                }
+                this.input.position(line_start);
+                this.input.compact();
+
+                if (this.protocol.isFinished()) {
+                    // Nothing more will be read, so hang up once the output is sent.
+                    this.input.clear();
+                    flush();
+                } else if (!this.input.hasRemaining()) {
+                    // A whole buffer without a line terminator can't be a valid request.
+                    close();
+                } else {
+                    flush();
+                }
+            }
+
+            /**
+             * Answer the request found between the given positions of the input buffer.
+             *
+             * @param start the position of the first byte of the line
+             * @param end the position of the line's '\n' terminator
+             */
+            private void handleLine(int start, int end) {
+                // Lines may end with "\r\n" as well as "\n".
+                if (end > start && this.input.get(end - 1) == '\r') {
+                    end--;
+                }
+                // The request is parsed straight out of the input buffer.
+                this.line.reset(this.input, start, end);
+                final String response = this.protocol.respond(this.line);
+                if (response != null) {
+                    send(response);
+                }
+            }
+
+            /**
+             * Queue a message, followed by a newline, to be written to the player.
+             */
+            void send(String message) {
+                final ByteBuffer bytes =
+                        ByteBuffer.wrap(message.getBytes(StandardCharsets.US_ASCII));
+                this.output.add(bytes);
+                this.output.add(ByteBuffer.wrap(NEWLINE));
+                this.output_bytes += bytes.remaining() + NEWLINE.length;
+            }
+
+            /**
+             * Send the player the board changes waiting for them, unless they're still
+             * behind reading earlier output; in that case the changes keep coalescing
+             * until flush() catches up.
+             */
+            void push() throws IOException {
+                if (!this.push_pending || this.output_bytes >= LOW_WATER_MARK) {
+                    return;
+                }
+                this.push_pending = false;
+                final String message = this.protocol.pollPush();
+                if (message != null) {
+                    send(message);
+                    flush();
+                }
+            }
+
+            /**
+             * Write as much queued output as the socket will take without blocking, then
+             * update what we're waiting for: writability while output remains, and
+             * readability only while the player isn't too far behind reading responses.
+             * Every response to a burst of pipelined requests is queued before this is
+             * called, so the whole burst usually goes out in a single write.
+             */
+            void flush() throws IOException {
+                while (!this.output.isEmpty()) {
+                    int num_buffers = 0;
+                    for (ByteBuffer buffer : this.output) {
+                        this.to_write[num_buffers++] = buffer;
+                        if (num_buffers == this.to_write.length) {
+                            break;
+                        }
+                    }
+                    final long written = this.channel.write(this.to_write, 0, num_buffers);
+                    // No more than output_bytes were waiting, so the count fits an int.
+                    this.output_bytes -= (int) written;
+                    stats.bytesOut(written);
+                    final boolean all_written =
+                            !this.to_write[num_buffers - 1].hasRemaining();
+                    Arrays.fill(this.to_write, 0, num_buffers, null);
+                    while (!this.output.isEmpty() && !this.output.peek().hasRemaining()) {
+                        this.output.remove();
+                    }
+                    if (!all_written) {
+                        // The socket's send buffer is full.
+                        break;
+                    }
+                }
+
+                if (this.output.isEmpty() && this.protocol.isFinished()) {
+                    close();
+                    return;
+                }
+
+                int interest = this.key.interestOps();
+                if (this.output.isEmpty()) {
+                    interest &= ~SelectionKey.OP_WRITE;
+                } else {
+                    interest |= SelectionKey.OP_WRITE;
+                }
+                if (this.protocol.isFinished() || this.output_bytes >= HIGH_WATER_MARK) {
+                    interest &= ~SelectionKey.OP_READ;
+                } else if (this.output_bytes < LOW_WATER_MARK) {
+                    interest |= SelectionKey.OP_READ;
+                }
+                this.key.interestOps(interest);
+
+                if (this.push_pending) {
+                    push();
+                }
+            }
+
+            /**
+             * Disconnect the player, if they haven't been already.
+             */
+            void close() {
+                if (this.closed) {
+                    return;
+                }
+                this.closed = true;
+                num_players.decrementAndGet();
+                stats.connectionClosed();
+                this.protocol.close();
+                if (this.key != null) {
+                    this.key.cancel();
+                }
+                try {
+                    this.channel.close();
+                } catch (IOException ioe) {
+                    // The connection is already gone.
+                }
+            }
+        }
+    }
+
+    /**
+     * A line of ASCII text inside a byte buffer, viewed as characters without copying
+     * it. Reset to view each new line.
+     */
+    static class AsciiLine implements CharSequence {
+        private ByteBuffer buffer;
+        private int start;
+        private int end;
+
+        /**
+         * View a new line.
+         *
+         * @param buffer the buffer holding the line
+         * @param start the position of the line's first byte
+         * @param end the position just after the line's last byte
+         */
+        void reset(ByteBuffer buffer, int start, int end) {
+            this.buffer = buffer;
+            this.start = start;
+            this.end = end;
+        }
+
+        @Override
+        public int length() {
+            return this.end - this.start;
+        }
+
+        @Override
+        public char charAt(int index) {
+            if (index < 0 || index >= length()) {
+                throw new IndexOutOfBoundsException("index " + index);
+            }
+            return (char) (this.buffer.get(this.start + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(int start, int end) {
+            return toString().substring(start, end);
+        }
+
+        @Override
+        public String toString() {
+            final byte[] bytes = new byte[length()];
+            for (int i = 0; i < bytes.length; i++) {
+                bytes[i] = this.buffer.get(this.start + i);
+            }
+            return new String(bytes, StandardCharsets.US_ASCII);
+        }
+    }
+}
@@ -0,0 +1,622 @@
+package minesweeper.server;
+
+import minesweeper.Board;
+import minesweeper.BoardChanges;
+import minesweeper.BoardSnapshot;
+import minesweeper.BoardSubscription;
+import minesweeper.MinesweeperBoard;
+import minesweeper.Square;
+
+/**
+ * The text protocol spoken between a Minesweeper server and one connected player.
+ * Each connection gets its own MinesweeperProtocol, no matter how the server does its
+ * networking, so every kind of server answers commands the same way.
+ *
+ * Besides the standard commands, players can ask for only what has changed:
+ *   'look since V' answers with the changes made after board version V.
+ *   'diff on' makes every board message a list of the changes since the last one this
+ *   player was sent, until 'diff off'.
+ * Changes are sent as a "DIFF V N" line, where V is the board's version and N the
+ * number of changes, followed by N "X Y S" lines, oldest first, where S is '-' for an
+ * untouched square, 'F' for a flagged one or the number of mined neighbors of a dug one.
+ * When the board no longer remembers the changes, a "BOARD V" line followed by the
+ * whole board is sent instead.
+ *
+ * 'watch' subscribes the player to every change made to the board, until 'unwatch'.
+ * The server pushes them, whenever there are some, as a "CHANGED N" line followed by N
+ * "X Y S" lines with the latest state of each changed square, or as "BOARD V" and the
+ * whole board if the player has fallen too far behind.
+ *
+ * 'join ROOM' moves the player to the room called ROOM, creating it with a random board
+ * if there's no such room, and 'create ROOM X Y' creates a room with a random X by Y
+ * board and moves the player there, unless it already exists. Either answers with the
+ * new room's board, as a "BOARD V" message if the player is watching, in which case
+ * they carry on watching the new board instead. A new room is refused, and the player
+ * stays where they are, while the server already hosts as many rooms as it allows.
+ * See BoardRegistry.
+ *
+ * 'look X Y W H' answers with only the W by H window of the board whose top left square
+ * is (X, Y), cut down to the part that's on the board, in the same format as 'look'.
+ * The window becomes the player's viewport: until their next 'look' or a move to
+ * another room, the board sent after each dig, flag or deflag is that window rather
+ * than the whole board, so a player on a huge board is never sent more than they asked
+ * to see. Diff mode takes precedence over the viewport. A window with no squares on
+ * the board is treated like any other invalid input.
+ *
+ * 'compress on' makes every look, and the board sent after each dig, flag or deflag,
+ * run-length encoded, as described in Board.toCompressedString(), until 'compress off'.
+ * Either answers with the board in its new encoding. Whole boards sent as "BOARD V"
+ * messages are never encoded, since they're already shared between players.
+ *
+ * 'spectate' makes the player a spectator for the rest of their connection, and answers
+ * with the board. Spectators can't dig, flag or deflag, and every board message they're
+ * sent, whether the whole board or their viewport, comes from a snapshot of the board
+ * at most SNAPSHOT_INTERVAL_MS old rather than from the board itself, ignoring diff
+ * mode and compression. Serving them takes no board locks, so any number of
+ * spectators never hold up players. See Board.snapshot().
+ *
+ * 'create ROOM X Y tiled' creates a room with a random tiled board, which may be far
+ * bigger, up to BoardRegistry.MAX_TILED_ROOM_SIZE on each side; see TiledBoard. A
+ * tiled board is too big to send, follow or copy whole, so in a tiled room every board
+ * message is the player's viewport, which starts as the TILED_VIEWPORT_SIZE square at
+ * the top left, and 'look' shows it rather than clearing it. Diff mode and compression
+ * are ignored there, spectators see the board itself, and 'look since' and 'watch' are
+ * refused; a watching player who moves to a tiled room stops watching. Digging follows
+ * TiledBoard's rules, which 'help' explains in a tiled room.
+ *
+ * 'stats' answers with the server's statistics, as described in ServerStats.report().
+ *
+ * A protocol is used by its connection's thread, except for pollPush(), which the server
+ * may call from another thread.
+ */
+class MinesweeperProtocol {
+    private final BoardRegistry rooms;
+    // The statistics of the server the player is connected to.
+    private final ServerStats stats;
+    // The room the player is in, and its board, or null once the player has gone.
+    private String room;
+    private MinesweeperBoard board;
+    // The room's board if it's a Board, which can be sent, followed and copied whole,
+    // or null in a tiled room.
+    private Board whole_board;
+    private final boolean debug;
+    // True once the player has said bye or, outside debug mode, been blown up.
+    private boolean finished = false;
+    // True if board messages should only contain changes, as described above.
+    private boolean diff_mode = false;
+    // The version of the board this player was last sent, or -1 if none yet.
+    private long last_version = -1;
+    // True once the player has become a spectator, as described above.
+    private boolean spectating = false;
+    // True if boards should be sent run-length encoded, as described above.
+    private boolean compress = false;
+    // The window of the board this player is sent instead of the whole board, as
+    // described above, or a width of 0 if they're sent the whole board.
+    private int viewport_x;
+    private int viewport_y;
+    private int viewport_width = 0;
+    private int viewport_height;
+    // The width and height of the viewport a player starts with in a tiled room.
+    static final int TILED_VIEWPORT_SIZE = 10;
+    // The most changed squares queued for a watching player before they get the whole
+    // board instead.
+    private static final int WATCH_QUEUE_SIZE = 4096;
+    // Run when a watching player has changes waiting to be pushed. See Board.subscribe().
+    private final Runnable on_push;
+    // The player's subscription to the board's changes, or null if they aren't watching.
+    private volatile BoardSubscription subscription = null;
+    // Parses each request line in turn.
+    private final Request request = new Request();
+
+    static final String MESSAGE_WELCOME =
+            "Welcome to Minesweeper. Players: %d including " +
+            " you. Board: %d columns by %d rows. Type 'help' for help. " +
+            "You're player #%d.";
+
+    static final String MESSAGE_BYE = "Bye.";
+    static final String MESSAGE_ROOM_EXISTS = "Room %s already exists.";
+    static final String MESSAGE_TOO_MANY_ROOMS = "Too many rooms. Try again later.";
+    static final String MESSAGE_BOOM = "BOOM!";
+    static final String MESSAGE_SPECTATOR = "Spectators can only look.";
+    static final String MESSAGE_TILED_ROOM = "Not available in tiled rooms.";
+    static final String MESSAGE_TILED_HELP =
+            "This room is tiled: 'look' shows your window of the board, and " +
+            "'look X Y W H' moves it. Digging a square with no mined neighbors digs " +
+            "its neighbors, and carries on only from those with no mined neighbors " +
+            "either. 'look since' and 'watch' aren't available.";
+    // How out of date the board spectators see may be, in milliseconds.
+    static final long SNAPSHOT_INTERVAL_MS = 100;
+    static final String MESSAGE_HELP =
+            "It's Minesweeper! You're probably familiar with " +
+            " the rules. Commands: 'look' to see the board. 'dig X Y' to dig a space. " +
+            "'flag X Y' to flag a space, 'deflag X Y' to deflag a space. 'help' to show" +
+            "this help message. 'bye' to disconnect.";
+
+    MinesweeperProtocol(Board board, boolean debug) {
+        this(board, debug, () -> { });
+    }
+
+    MinesweeperProtocol(Board board, boolean debug, Runnable on_push) {
+        this(new BoardRegistry(board), debug, on_push);
+    }
+
+    /**
+     * Make a protocol for one player, who starts in the main room.
+     *
+     * @param rooms the rooms shared by every player
+     * @param debug debug mode flag
+     * @param on_push run when changes are waiting to be pushed to a watching player,
+     *                while the board is locked; it must only arrange for pollPush() to
+     *                be called soon, from some other thread or later on
+     */
+    MinesweeperProtocol(BoardRegistry rooms, boolean debug, Runnable on_push) {
+        this(rooms, new ServerStats(rooms), debug, on_push);
+    }
+
+    /**
+     * Make a protocol for one player, who starts in the main room.
+     *
+     * @param rooms the rooms shared by every player
+     * @param stats the server's statistics, which this player's requests are counted in
+     * @param debug debug mode flag
+     * @param on_push run when changes are waiting to be pushed to a watching player,
+     *                while the board is locked; it must only arrange for pollPush() to
+     *                be called soon, from some other thread or later on
+     */
+    MinesweeperProtocol(BoardRegistry rooms, ServerStats stats, boolean debug,
+                        Runnable on_push) {
+        this.rooms = rooms;
+        this.stats = stats;
+        this.room = BoardRegistry.MAIN_ROOM;
+        this.board = rooms.join(this.room);
+        this.whole_board = wholeBoardOf(this.board);
+        this.debug = debug;
+        this.on_push = on_push;
+    }
+
+    /**
+     * Build the message that greets a newly connected player.
+     *
+     * @param num_players the number of players connected, including this one
+     * @param id the player's unique connection ID, starting from 0
+     * @return the welcome message
+     */
+    String welcome(int num_players, int id) {
+        return String.format(MESSAGE_WELCOME,
+                num_players,
+                this.board.getX_size(),
+                this.board.getY_size(),
+                id + 1);
+    }
+
+    /**
+     * Determine whether the connection should be closed, because the player said bye or
+     * was blown up by a mine while not in debug mode.
+     *
+     * @return true iff no more requests should be read from the player
+     */
+    boolean isFinished() {
+        return this.finished;
+    }
+
+    /**
+     * Determine whether the player is watching the board's changes.
+     *
+     * @return true iff the player has said watch, and not unwatch since
+     */
+    boolean isWatching() {
+        return this.subscription != null;
+    }
+
+    /**
+     * Build the message pushing the changes waiting for a watching player. May be called
+     * from any thread.
+     *
+     * @return message to client, or null if nothing should be sent
+     */
+    String pollPush() {
+        final BoardSubscription current = this.subscription;
+        if (current == null) {
+            return null;
+        }
+        final BoardChanges changes = current.poll();
+        if (changes == null) {
+            return null;
+        }
+        if (changes.isSnapshot()) {
+            return "BOARD " + changes.getVersion() + "\n" + changes.getBoard();
+        }
+        return appendChanges(new StringBuilder("CHANGED ")
+                .append(changes.getChangedSquares().size()), changes).toString();
+    }
+
+    /**
+     * Stop watching the board, if the player was, and leave their room. Servers must
+     * call this once the player has gone. Only called by the connection's thread.
+     */
+    void close() {
+        unwatch();
+        if (this.room != null) {
+            this.rooms.leave(this.room);
+            this.room = null;
+        }
+    }
+
+    /**
+     * Stop watching the board, if the player was.
+     */
+    private void unwatch() {
+        final BoardSubscription current = this.subscription;
+        this.subscription = null;
+        if (current != null) {
+            current.cancel();
+        }
+    }
+
+    /**
+     * Handle one line of input from the player, returning the message to send back.
+     *
+     * @param line message from client, without its line terminator, which is only read
+     *             during the call, so it may be a view of a buffer that's reused
+     * @return message to client, or null if nothing should be sent
+     */
+    String respond(CharSequence line) {
+        final long start = System.nanoTime();
+        final String output = handleRequest(line);
+        this.stats.recordRequest(this.request.getKind(), System.nanoTime() - start);
+
+        // If the user is requesting a disconnect, there's nothing to show them.
+        if (output.equals(MESSAGE_BYE)) {
+            this.finished = true;
+            close();
+            return null;
+        }
+        // If the user is getting blown up, we'll close their connection unless
+        // debug = true.
+        if (output.equals(MESSAGE_BOOM) && !this.debug) {
+            this.finished = true;
+            close();
+        }
+        return output;
+    }
+
+    /**
+     * Handler for client input, performing requested operations and returning an output message.
+     *
+     * @param input message from client
+     * @return message to client
+     */
+    private String handleRequest(CharSequence input) {
+        // Invalid input gets a help message.
+        switch (this.request.parse(input)) {
+            case LOOK:
+                // 'look' request. A tiled board is only ever sent a window at a time.
+                // System.out.println(this.board);
+                if (this.whole_board != null) {
+                    this.viewport_width = 0;
+                }
+                return boardMessage();
+            case LOOK_WINDOW: {
+                // 'look x y w h' request.
+                final int x = this.request.getX();
+                final int y = this.request.getY();
+                final int width = this.request.getWidth();
+                final int height = this.request.getHeight();
+                if (!overlapsBoard(x, y, width, height)) {
+                    return MESSAGE_HELP;
+                }
+                this.viewport_x = x;
+                this.viewport_y = y;
+                this.viewport_width = width;
+                this.viewport_height = height;
+                return viewportMessage();
+            }
+            case LOOK_SINCE:
+                // 'look since v' request.
+                if (this.whole_board == null) {
+                    return MESSAGE_TILED_ROOM;
+                }
+                return changesMessage(this.request.getVersion());
+            case WATCH:
+                // 'watch' request. Subscribing before taking the board means no change
+                // can fall between the two.
+                if (this.whole_board == null) {
+                    return MESSAGE_TILED_ROOM;
+                }
+                if (this.subscription == null) {
+                    this.subscription =
+                            this.whole_board.subscribe(WATCH_QUEUE_SIZE, this.on_push);
+                }
+                return changesMessage(-1);
+            case UNWATCH:
+                // 'unwatch' request.
+                unwatch();
+                return boardMessage();
+            case STATS:
+                // 'stats' request.
+                return this.stats.report();
+            case SPECTATE:
+                // 'spectate' request.
+                this.spectating = true;
+                return boardMessage();
+            case JOIN: {
+                // 'join room' request.
+                final String name = this.request.getRoom();
+                if (name.equals(this.room)) {
+                    return enterRoom(this.room, this.board);
+                }
+                final MinesweeperBoard joined;
+                try {
+                    joined = this.rooms.join(name);
+                } catch (IllegalStateException ise) {
+                    return MESSAGE_TOO_MANY_ROOMS;
+                }
+                return enterRoom(name, joined);
+            }
+            case CREATE: {
+                // 'create room x y' request. Boards too big for the server to host are
+                // treated like any other invalid input.
+                final String name = this.request.getRoom();
+                final int x_size = this.request.getX();
+                final int y_size = this.request.getY();
+                if (x_size < 1 || x_size > BoardRegistry.MAX_ROOM_SIZE
+                        || y_size < 1 || y_size > BoardRegistry.MAX_ROOM_SIZE) {
+                    return MESSAGE_HELP;
+                }
+                final Board created;
+                try {
+                    created = this.rooms.create(name, x_size, y_size);
+                } catch (IllegalStateException ise) {
+                    return MESSAGE_TOO_MANY_ROOMS;
+                }
+                if (created == null) {
+                    return String.format(MESSAGE_ROOM_EXISTS, name);
+                }
+                return enterRoom(name, created);
+            }
+            case CREATE_TILED: {
+                // 'create room x y tiled' request, as for 'create room x y'.
+                final String name = this.request.getRoom();
+                final int x_size = this.request.getX();
+                final int y_size = this.request.getY();
+                if (x_size < 1 || x_size > BoardRegistry.MAX_TILED_ROOM_SIZE
+                        || y_size < 1 || y_size > BoardRegistry.MAX_TILED_ROOM_SIZE) {
+                    return MESSAGE_HELP;
+                }
+                final MinesweeperBoard created;
+                try {
+                    created = this.rooms.createTiled(name, x_size, y_size);
+                } catch (IllegalStateException ise) {
+                    return MESSAGE_TOO_MANY_ROOMS;
+                }
+                if (created == null) {
+                    return String.format(MESSAGE_ROOM_EXISTS, name);
+                }
+                return enterRoom(name, created);
+            }
+            case DIFF_ON:
+            case DIFF_OFF:
+                // 'diff on' or 'diff off' request. The next board message is always
+                // the whole board, so the player has something to apply changes to.
+                this.diff_mode = (this.request.getKind() == Request.Kind.DIFF_ON);
+                this.last_version = -1;
+                return boardMessage();
+            case COMPRESS_ON:
+            case COMPRESS_OFF:
+                // 'compress on' or 'compress off' request.
+                this.compress = (this.request.getKind() == Request.Kind.COMPRESS_ON);
+                return boardMessage();
+            case HELP:
+                // 'help' request.
+                if (this.whole_board == null) {
+                    return MESSAGE_HELP + " " + MESSAGE_TILED_HELP;
+                }
+                return MESSAGE_HELP;
+            case BYE:
+                // 'bye' request.
+                return MESSAGE_BYE;
+            case DIG: {
+                // 'dig x y' request
+                if (this.spectating) {
+                    return MESSAGE_SPECTATOR;
+                }
+                final int x = this.request.getX();
+                final int y = this.request.getY();
+                // If the position is invalid, do nothing and return a board
+                // message.
+                if (! (this.board.isValidPosition(x, y))) {
+                    return boardMessage();
+                }
+
+                // If there's a mine in the given square and this dig is the one
+                // that reveals it, the mine explodes and the user is disconnected
+                // (unless debug = true). Mines never appear, so if another player
+                // digs the square first, our dig reveals nothing.
+                final boolean mined = this.board.hasMine(x, y);
+                final int num_revealed = this.board.dig(x, y);
+                this.stats.recordDig(num_revealed);
+                if ((num_revealed > 0) && mined) {
+                    return MESSAGE_BOOM;
+                }
+
+                // Otherwise, dig states and mine counts have been updated, and a
+                // board message is returned.
+                return boardMessage();
+            }
+            case FLAG: {
+                // 'flag x y' request
+                if (this.spectating) {
+                    return MESSAGE_SPECTATOR;
+                }
+                final int x = this.request.getX();
+                final int y = this.request.getY();
+                if (this.board.isUntouched(x, y)) {
+                    this.board.flag(x, y);
+                }
+                return boardMessage();
+            }
+            case DEFLAG:
+                // 'deflag x y' request
+                if (this.spectating) {
+                    return MESSAGE_SPECTATOR;
+                }
+                this.board.deflag(this.request.getX(), this.request.getY());
+                return boardMessage();
+            case INVALID:
+                return MESSAGE_HELP;
+        }
+        throw new UnsupportedOperationException(
+                "End of handleRequest, this code should be unreachable.");
+    }
+
+    /**
+     * Move the player to a room they've just joined, leaving the one they were in.
+     *
+     * @param name the room's name
+     * @param joined the room's board, from a join() or create() not yet left
+     * @return message to client: the new room's whole board, or the player's viewport
+     *         in a tiled room
+     */
+    private String enterRoom(String name, MinesweeperBoard joined) {
+        final boolean watching = (this.subscription != null);
+        unwatch();
+        if (joined != this.board || !name.equals(this.room)) {
+            this.rooms.leave(this.room);
+            this.room = name;
+            this.board = joined;
+            this.whole_board = wholeBoardOf(joined);
+        }
+        // Versions and viewports in one room mean nothing in another, so the player
+        // starts again from the whole board, or from the top left of a tiled one.
+        this.last_version = -1;
+        if (this.whole_board == null) {
+            this.viewport_x = 0;
+            this.viewport_y = 0;
+            this.viewport_width = TILED_VIEWPORT_SIZE;
+            this.viewport_height = TILED_VIEWPORT_SIZE;
+            return boardMessage();
+        }
+        this.viewport_width = 0;
+        if (watching) {
+            this.subscription =
+                    this.whole_board.subscribe(WATCH_QUEUE_SIZE, this.on_push);
+            return changesMessage(-1);
+        }
+        return boardMessage();
+    }
+
+    /**
+     * Find the Board behind a room's board, if it is one.
+     *
+     * @param board a room's board
+     * @return board if it's a Board, or null if it's tiled
+     */
+    private static Board wholeBoardOf(MinesweeperBoard board) {
+        return (board instanceof Board) ? (Board) board : null;
+    }
+
+    /**
+     * Build the board message sent after a command: the whole board, the player's
+     * viewport if they have one, or in diff mode the changes since the last board
+     * message, run-length encoded if the player asked for that. Spectators get the
+     * whole board or their viewport from a snapshot instead. In a tiled room, everyone
+     * gets their viewport, as plain text.
+     *
+     * @return message to client
+     */
+    private String boardMessage() {
+        if (this.diff_mode && !this.spectating && this.whole_board != null) {
+            return changesMessage(this.last_version);
+        }
+        if (this.viewport_width > 0) {
+            return viewportMessage();
+        }
+        if (this.spectating) {
+            return this.whole_board.snapshot(SNAPSHOT_INTERVAL_MS).toString();
+        }
+        return this.compress ? this.whole_board.toCompressedString()
+                             : this.whole_board.toString();
+    }
+
+    /**
+     * Build a message with the player's viewport, ignoring diff mode: from a snapshot
+     * for spectators, run-length encoded if the player asked for that, and as plain text
+     * in a tiled room. Requires the player to have a viewport.
+     *
+     * @return message to client
+     */
+    private String viewportMessage() {
+        if (this.whole_board == null) {
+            return this.board.toString(this.viewport_x, this.viewport_y,
+                    this.viewport_width, this.viewport_height);
+        }
+        if (this.spectating) {
+            final BoardSnapshot snapshot = this.whole_board.snapshot(SNAPSHOT_INTERVAL_MS);
+            return snapshot.toString(this.viewport_x, this.viewport_y,
+                    this.viewport_width, this.viewport_height);
+        }
+        if (this.compress) {
+            return this.whole_board.toCompressedString(this.viewport_x, this.viewport_y,
+                    this.viewport_width, this.viewport_height);
+        }
+        return this.whole_board.toString(this.viewport_x, this.viewport_y,
+                this.viewport_width, this.viewport_height);
+    }
+
+    /**
+     * Determine whether a window has any squares on the player's board.
+     *
+     * @param x the X coordinate of the window's top left square
+     * @param y the Y coordinate of the window's top left square
+     * @param width the number of columns in the window
+     * @param height the number of rows in the window
+     * @return true iff some square of the window is on the board
+     */
+    private boolean overlapsBoard(int x, int y, int width, int height) {
+        return width > 0 && height > 0
+                && x < this.board.getX_size() && (long) x + width > 0
+                && y < this.board.getY_size() && (long) y + height > 0;
+    }
+
+    /**
+     * Build a message with the changes made to the board after the given version.
+     *
+     * @param since the board version the player last saw
+     * @return message to client, in the format described above
+     */
+    private String changesMessage(long since) {
+        final BoardChanges changes = this.whole_board.changesSince(since);
+        this.last_version = changes.getVersion();
+        if (changes.isSnapshot()) {
+            return "BOARD " + changes.getVersion() + "\n" + changes.getBoard();
+        }
+
+        return appendChanges(new StringBuilder()
+                .append("DIFF ").append(changes.getVersion())
+                .append(' ').append(changes.getChangedSquares().size()), changes)
+                .toString();
+    }
+
+    /**
+     * Append an "X Y S" line, as described above, for each changed square.
+     *
+     * @param message the message to append to
+     * @param changes a list of changes
+     * @return message
+     */
+    private static StringBuilder appendChanges(StringBuilder message,
+                                               BoardChanges changes) {
+        for (Square square : changes.getChangedSquares()) {
+            message.append('\n').append(square.getX()).append(' ').append(square.getY())
+                    .append(' ');
+            if (square.isFlagged()) {
+                message.append('F');
+            } else if (square.isUntouched()) {
+                message.append('-');
+            } else {
+                message.append(square.numNeighborsWithMines());
+            }
+        }
+        return message;
+    }
+}
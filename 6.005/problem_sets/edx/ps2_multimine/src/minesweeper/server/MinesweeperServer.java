@@ -6,8 +6,11 @@ package minesweeper.server;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import minesweeper.Board;
+import minesweeper.BoardJournal;
 
 /**
  * Multiplayer Minesweeper server.
@@ -15,10 +18,21 @@ import minesweeper.Board;
 public class MinesweeperServer {
 
     // System thread safety argument:
-    // The system is threadsafe because the board data structure is threadsafe. Thus,
-    // no matter how many threads are connected, the board can only be modified by one
-    // thread at a time. This ensures that no race conditions or other concurrency issues
-    // arise as a result of multiple thread actions interleaving.
+    // Each connected player is served by its own thread from the workers executor, and
+    // many of those threads may change the same board at once; nothing serializes them.
+    // The board is threadsafe by itself: each square changes by compare-and-set from
+    // one valid state to the next, so single-square moves (flags, deflags and digs that
+    // don't spread) never lock. A dig that floods holds the lock stripes covering every
+    // square it changes for writing, and looks hold the stripes they show for reading,
+    // so looks proceed in parallel and, but for a flag removed in the middle of a
+    // flood (see Board), never show a flood half done.
+    // Each player's protocol state, such as their room and viewport, is only used by
+    // that player's thread. The only server state the threads share is the player
+    // count, which is atomic, the set of connected sockets, which is a concurrent set,
+    // and the rooms, which are threadsafe. Each room's board is a separate board, so
+    // players in different rooms never contend for the same locks. The statistics are
+    // threadsafe too, and recording them never blocks. Spectators' threads only read
+    // immutable snapshots of the board, so they take no board locks at all.
 
     /** Default server port. */
     private static final int DEFAULT_PORT = 4444;
@@ -26,66 +40,239 @@ public class MinesweeperServer {
     private static final int MAXIMUM_PORT = 65535;
     /** Default square board size. */
     private static final int DEFAULT_SIZE = 10;
+    /** Default maximum number of players connected at the same time. */
+    private static final int DEFAULT_MAX_CONNECTIONS = 1000;
+    /** How long shutdown() waits for connected players' threads to finish, in ms. */
+    private static final long SHUTDOWN_TIMEOUT_MS = 5000;
+    /** Sent to a client that connects while the server already has too many players. */
+    private static final String MESSAGE_SERVER_FULL = "Server full. Try again later.";
+
+    /** The kinds of threads that can serve connected players. */
+    public enum Workers {
+        /** One virtual thread per player. */
+        VIRTUAL,
+        /** A fixed pool of platform threads, one per allowed connection. */
+        PLATFORM
+    }
 
     /** Socket for receiving incoming connections. */
     private final ServerSocket serverSocket;
     /** True if the server should *not* disconnect a client after a BOOM message. */
     private final boolean debug;
-    private final Board board;
+    /** The boards hosted by the server, starting with the main room's. */
+    private final BoardRegistry rooms;
+    /** Measurements of the server's traffic, shared by every player's thread. */
+    private final ServerStats stats;
+    /** Runs one MinesweeperThread per connected player. */
+    private final ExecutorService workers;
+    /** The most players that may be connected at the same time. */
+    private final int max_connections;
+    /** The number of players connected right now. */
+    private final AtomicInteger num_players = new AtomicInteger();
+    /** Sockets of the players connected right now, so shutdown() can disconnect them. */
+    private final Set<Socket> clients = ConcurrentHashMap.newKeySet();
+    /** False once shutdown() has been called. */
+    private volatile boolean running = true;
 
     /**
-     * Make a MinesweeperServer that listens for connections on port.
+     * Make a MinesweeperServer that listens for connections on port, serving each player
+     * on a virtual thread.
      * 
      * @param port port number, requires 0 <= port <= 65535
      * @param debug debug mode flag
      * @throws IOException if an error occurs opening the server socket
      */
     public MinesweeperServer(int port, boolean debug, Board board) throws IOException {
+        this(port, debug, board, Workers.VIRTUAL, DEFAULT_MAX_CONNECTIONS);
+    }
+
+    /**
+     * Make a MinesweeperServer that listens for connections on port.
+     *
+     * @param port port number, requires 0 <= port <= 65535
+     * @param debug debug mode flag
+     * @param board the board of the main room, which every player starts in
+     * @param workers the kind of threads to serve players on
+     * @param max_connections the most players that may be connected at once, requires
+     *                        max_connections >= 1
+     * @throws IOException if an error occurs opening the server socket
+     */
+    public MinesweeperServer(int port, boolean debug, Board board, Workers workers,
+                             int max_connections) throws IOException {
         serverSocket = new ServerSocket(port);
         this.debug = debug;
-        this.board = board;
+        this.rooms = new BoardRegistry(board);
+        this.stats = new ServerStats(this.rooms);
+        this.max_connections = max_connections;
+        this.workers = createWorkers(workers, max_connections);
+    }
+
+    /**
+     * Create the executor that connected players will be served on.
+     *
+     * @param workers the kind of threads to create
+     * @param max_connections the most players that may be connected at once
+     * @return an executor with a thread available for every allowed connection
+     */
+    private static ExecutorService createWorkers(Workers workers, int max_connections) {
+        if (workers == Workers.VIRTUAL) {
+            // A blocked virtual thread gives up its carrier, so every player can have
+            // one without a thread pool sized for the connection limit.
+            return Executors.newVirtualThreadPerTaskExecutor();
+        }
+        // Each player's thread blocks reading from their socket, so the pool needs one
+        // thread for every connection we allow.
+        return Executors.newFixedThreadPool(max_connections);
     }
 
     /**
-     * Run the server, listening for client connections and handling them.
-     * Never returns unless an exception is thrown.
+     * Run the server, listening for client connections and handling each one on its own
+     * thread. Returns once shutdown() has been called.
      * 
      * @throws IOException if the main server socket is broken
      *                     (IOExceptions from individual clients do *not* terminate serve())
      */
     public void serve() throws IOException {
-//        while (true) {
-//            // block until a client connects
-//            Socket socket = serverSocket.accept();
-//
-//            // handle the client
-//            try {
-//                handleConnection(socket);
-//            } catch (IOException ioe) {
-//                ioe.printStackTrace(); // but don't terminate serve()
-//            } finally {
-//                socket.close();
-//            }
-//        }
         int thread_id = 0;
 
-        while(true) {
+        while (this.running) {
             try {
-                // When a connection comes in, run a new thread to handle it, giving the
-                // thread a unique connection ID.
-                new MinesweeperThread(
-                        serverSocket.accept(),
+                final Socket socket = serverSocket.accept();
+
+                // Count the new player, turning them away if the server is already full.
+                final int players = this.num_players.incrementAndGet();
+                if (players > this.max_connections) {
+                    this.num_players.decrementAndGet();
+                    reject(socket);
+                    continue;
+                }
+
+                // Run a new thread to handle the connection, giving the thread a unique
+                // connection ID and telling it how many players are connected.
+                final MinesweeperThread player = new MinesweeperThread(
+                        socket,
                         thread_id,
-                        this.board,
-                        this.debug)
-                        .run();
+                        players,
+                        this.rooms,
+                        this.stats,
+                        this.debug);
+                this.clients.add(socket);
+                try {
+                    this.workers.execute(() -> {
+                        try {
+                            player.run();
+                        } finally {
+                            disconnect(socket);
+                        }
+                    });
+                } catch (RejectedExecutionException ree) {
+                    // The server is shutting down, so the player can't be served.
+                    disconnect(socket);
+                }
                 thread_id++;
             } catch (IOException ioe) {
-                ioe.printStackTrace();
+                // Closing the server socket is how shutdown() stops us accepting.
+                if (this.running) {
+                    ioe.printStackTrace();
+                }
             }
         }
     }
 
+    /**
+     * Turn away a client because the server already has max_connections players.
+     *
+     * @param socket the client's socket, which will be closed
+     */
+    private void reject(Socket socket) {
+        try (PrintWriter out = new PrintWriter(socket.getOutputStream(), true)) {
+            out.println(MESSAGE_SERVER_FULL);
+        } catch (IOException ioe) {
+            // The client is being turned away anyway.
+        } finally {
+            closeQuietly(socket);
+        }
+    }
+
+    /**
+     * Forget about a player who is no longer connected, closing their socket.
+     *
+     * @param socket the player's socket
+     */
+    private void disconnect(Socket socket) {
+        if (this.clients.remove(socket)) {
+            this.num_players.decrementAndGet();
+        }
+        closeQuietly(socket);
+    }
+
+    /**
+     * Close a socket, ignoring any error, since there's nothing left to tell the client.
+     *
+     * @param socket the socket to close
+     */
+    private static void closeQuietly(Socket socket) {
+        try {
+            socket.close();
+        } catch (IOException ioe) {
+            // The connection is already gone.
+        }
+    }
+
+    /**
+     * Get the number of players connected to the server right now.
+     *
+     * @return the number of connected players
+     */
+    public int numPlayers() {
+        return this.num_players.get();
+    }
+
+    /**
+     * Get the port the server is listening on, which is useful if it was started on
+     * port 0 to let the system pick a free one.
+     *
+     * @return the port number
+     */
+    int port() {
+        return this.serverSocket.getLocalPort();
+    }
+
+    /**
+     * Get the server's statistics.
+     *
+     * @return the statistics, which keep changing as players play
+     */
+    ServerStats stats() {
+        return this.stats;
+    }
+
+    /**
+     * Stop the server. No new connections are accepted, connected players are
+     * disconnected, and their threads are given a few seconds to finish the commands
+     * they're handling. Causes serve() to return.
+     *
+     * @throws InterruptedException if interrupted while waiting for players' threads
+     */
+    public void shutdown() throws InterruptedException {
+        this.running = false;
+        try {
+            serverSocket.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+        this.workers.shutdown();
+
+        // Players' threads spend most of their time blocked reading from their sockets,
+        // so closing the sockets is what lets them finish.
+        for (Socket client : this.clients) {
+            closeQuietly(client);
+        }
+        if (!this.workers.awaitTermination(SHUTDOWN_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+            this.workers.shutdownNow();
+        }
+    }
+
 //    /**
 //     * Handle a single client connection. Returns when client disconnects.
 //     *
@@ -152,6 +339,8 @@ public class MinesweeperServer {
      * 
      * <br> Usage:
      *      MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]
+     *                        [--workers virtual | platform] [--max-connections MAX] [--nio]
+     *                        [--journal DIR]
      * 
      * <br> The --debug argument means the server should run in debug mode. The server should disconnect a
      *      client after a BOOM message if and only if the --debug flag was NOT given.
@@ -185,10 +374,33 @@ public class MinesweeperServer {
      *   INT ::= [0-9]+
      * </pre>
      * 
+     * <br> FILE may also be a binary board file, which loads much faster for large boards. The format is
+     *      detected automatically. See minesweeper.BoardFile, which also converts text board files to
+     *      binary ones.
+     * 
      * <br> If neither --file nor --size is given, generate a random board of size 10x10.
      * 
      * <br> Note that --file and --size may not be specified simultaneously.
      * 
+     * <br> --workers chooses the threads connected players are served on: one virtual thread
+     *      per player (the default), or a fixed pool of MAX platform threads.
+     * 
+     * <br> MAX is an optional positive integer, the most players that may be connected at once.
+     *      Players who connect while the server is full are turned away. Defaults to 1000.
+     * 
+     * <br> The --nio argument means the server should use non-blocking I/O, serving every player
+     *      from a few selector threads instead of a thread per player. --workers and
+     *      --max-connections don't apply to it.
+     * 
+     * <br> DIR is an optional directory where the board is saved as it's played, so that the server can be
+     *      restarted after a crash with the board as it was. If DIR already holds a saved board, that board is
+     *      played instead of one from --file or --size. See minesweeper.BoardJournal.
+     * <br> E.g. "MinesweeperServer --journal saved_game" saves the board in saved_game, and picks it up again
+     *      from there after a restart.
+     * 
+     * <br> While it runs, the server prints a line of statistics to standard output every minute. Players can
+     *      see them in full with the 'stats' command.
+     * 
      * @param args arguments as described
      */
     public static void main(String[] args) {
@@ -198,6 +410,10 @@ public class MinesweeperServer {
         int sizeX = DEFAULT_SIZE;
         int sizeY = DEFAULT_SIZE;
         Optional<File> file = Optional.empty();
+        Workers workers = Workers.VIRTUAL;
+        int maxConnections = DEFAULT_MAX_CONNECTIONS;
+        boolean nio = false;
+        Optional<File> journal = Optional.empty();
 
         Queue<String> arguments = new LinkedList<String>(Arrays.asList(args));
         try {
@@ -225,6 +441,24 @@ public class MinesweeperServer {
                         if ( ! file.get().isFile()) {
                             throw new IllegalArgumentException("file not found: \"" + file.get() + "\"");
                         }
+                    } else if (flag.equals("--workers")) {
+                        final String kind = arguments.remove();
+                        if (kind.equals("virtual")) {
+                            workers = Workers.VIRTUAL;
+                        } else if (kind.equals("platform")) {
+                            workers = Workers.PLATFORM;
+                        } else {
+                            throw new IllegalArgumentException("unknown workers: \"" + kind + "\"");
+                        }
+                    } else if (flag.equals("--nio")) {
+                        nio = true;
+                    } else if (flag.equals("--journal")) {
+                        journal = Optional.of(new File(arguments.remove()));
+                    } else if (flag.equals("--max-connections")) {
+                        maxConnections = Integer.parseInt(arguments.remove());
+                        if (maxConnections < 1) {
+                            throw new IllegalArgumentException("max connections " + maxConnections + " out of range");
+                        }
                     } else {
                         throw new IllegalArgumentException("unknown option: \"" + flag + "\"");
                     }
@@ -236,12 +470,14 @@ public class MinesweeperServer {
             }
         } catch (IllegalArgumentException iae) {
             System.err.println(iae.getMessage());
-            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]");
+            System.err.println("usage: MinesweeperServer [--debug | --no-debug] [--port PORT] [--size SIZE_X,SIZE_Y | --file FILE]"
+                    + " [--workers virtual | platform] [--max-connections MAX] [--nio] [--journal DIR]");
             return;
         }
 
         try {
-            runMinesweeperServer(debug, file, sizeX, sizeY, port);
+            runMinesweeperServer(debug, file, sizeX, sizeY, port, workers, maxConnections, nio,
+                    journal);
         } catch (IOException ioe) {
             throw new RuntimeException(ioe);
         }
@@ -264,9 +500,68 @@ public class MinesweeperServer {
     public static void runMinesweeperServer(
             boolean debug, Optional<File> file, int sizeX, int sizeY, int port)
             throws IOException {
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, Workers.VIRTUAL,
+                DEFAULT_MAX_CONNECTIONS, false);
+    }
+
+    /**
+     * Start a MinesweeperServer running on the specified port, with either a random new board or a
+     * board loaded from a file, serving players on the given kind of threads or with non-blocking I/O.
+     * 
+     * @param debug The server will disconnect a client after a BOOM message if and only if debug is false.
+     * @param file If file.isPresent(), start with a board loaded from the specified file,
+     *             according to the input file format defined in the documentation for main(..).
+     * @param sizeX If (!file.isPresent()), start with a random board with width sizeX
+     *              (and require sizeX > 0).
+     * @param sizeY If (!file.isPresent()), start with a random board with height sizeY
+     *              (and require sizeY > 0).
+     * @param port The network port on which the server should listen, requires 0 <= port <= 65535.
+     * @param workers The kind of threads connected players are served on.
+     * @param maxConnections The most players that may be connected at once, requires maxConnections >= 1.
+     * @param nio If true, serve players with non-blocking I/O from a few selector threads,
+     *            ignoring workers and maxConnections.
+     * @throws IOException if a network error occurs
+     */
+    public static void runMinesweeperServer(
+            boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+            Workers workers, int maxConnections, boolean nio)
+            throws IOException {
+        runMinesweeperServer(debug, file, sizeX, sizeY, port, workers, maxConnections, nio,
+                Optional.empty());
+    }
+
+    /**
+     * Start a MinesweeperServer running on the specified port, with either a random new board, a
+     * board loaded from a file, or a board saved in a journal directory, serving players on the given
+     * kind of threads or with non-blocking I/O.
+     * 
+     * @param debug The server will disconnect a client after a BOOM message if and only if debug is false.
+     * @param file If file.isPresent(), start with a board loaded from the specified file,
+     *             according to the input file format defined in the documentation for main(..).
+     * @param sizeX If (!file.isPresent()), start with a random board with width sizeX
+     *              (and require sizeX > 0).
+     * @param sizeY If (!file.isPresent()), start with a random board with height sizeY
+     *              (and require sizeY > 0).
+     * @param port The network port on which the server should listen, requires 0 <= port <= 65535.
+     * @param workers The kind of threads connected players are served on.
+     * @param maxConnections The most players that may be connected at once, requires maxConnections >= 1.
+     * @param nio If true, serve players with non-blocking I/O from a few selector threads,
+     *            ignoring workers and maxConnections.
+     * @param journal If journal.isPresent(), save the board in the specified directory as it's played,
+     *                and if the directory already holds a saved board, start with that board instead.
+     * @throws IOException if a network error occurs, or the journal can't be read or written
+     */
+    public static void runMinesweeperServer(
+            boolean debug, Optional<File> file, int sizeX, int sizeY, int port,
+            Workers workers, int maxConnections, boolean nio, Optional<File> journal)
+            throws IOException {
         
+        final Board saved_board = journal.isPresent() ? BoardJournal.recover(journal.get()) : null;
         final Board board;
-        if (file.isPresent()) {
+        if (saved_board != null) {
+            // Carry on with the board as it was when the server last stopped.
+            board = saved_board;
+        } else if (file.isPresent()) {
             // Create a new board from the given file.
             board = new Board(file.get());
         }else if ((sizeX > 0) && (sizeY > 0)) {
@@ -276,8 +571,65 @@ public class MinesweeperServer {
             // Otherwise, create a random board of size 10 x 10.
             board = new Board(10,10);
         }
-        
-        MinesweeperServer server = new MinesweeperServer(port, debug, board);
+        if (nio) {
+            final MinesweeperNioServer server = new MinesweeperNioServer(port, debug, board,
+                    Runtime.getRuntime().availableProcessors());
+            final BoardJournal board_journal = startJournal(board, journal);
+            server.stats().startLogging(System.out, ServerStats.DEFAULT_LOG_INTERVAL_SECONDS);
+            // Disconnect players cleanly if the JVM is asked to stop, and only then close
+            // the journal, so it has every change they made. Shutdown hooks run in no
+            // particular order, so this has to be one hook.
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                server.shutdown();
+                closeJournal(board_journal);
+            }));
+            server.serve();
+            return;
+        }
+
+        MinesweeperServer server =
+                new MinesweeperServer(port, debug, board, workers, maxConnections);
+        final BoardJournal board_journal = startJournal(board, journal);
+        server.stats.startLogging(System.out, ServerStats.DEFAULT_LOG_INTERVAL_SECONDS);
+        // Disconnect players cleanly if the JVM is asked to stop, and only then close the
+        // journal, as above.
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            try {
+                server.shutdown();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+            }
+            closeJournal(board_journal);
+        }));
         server.serve();
     }
+
+    /**
+     * Start saving every change to a board from now on, if a journal directory is given.
+     *
+     * @param board the board to save
+     * @param journal the directory to save the board in, if present
+     * @return the journal saving the board, or null if !journal.isPresent()
+     * @throws IOException if the journal can't be written
+     */
+    private static BoardJournal startJournal(Board board, Optional<File> journal)
+            throws IOException {
+        return journal.isPresent() ? BoardJournal.start(board, journal.get()) : null;
+    }
+
+    /**
+     * Make sure the last few changes saved by a journal are on disk.
+     *
+     * @param board_journal the journal to close, or null if there is none
+     */
+    private static void closeJournal(BoardJournal board_journal) {
+        if (board_journal == null) {
+            return;
+        }
+        try {
+            board_journal.close();
+        } catch (IOException ioe) {
+            ioe.printStackTrace();
+        }
+    }
 }
@@ -3,146 +3,147 @@ package minesweeper.server;
 import minesweeper.Board;
 
 import java.io.BufferedReader;
+import java.io.BufferedWriter;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.net.Socket;
+import java.util.concurrent.locks.LockSupport;
 
 public class MinesweeperThread implements Runnable {
     private final Socket socket;
     private final int id;
-    private final Board board;
-    private final boolean debug;
-    private final String MESSAGE_WELCOME =
-            "Welcome to Minesweeper. Players: %d including " +
-            " you. Board: %d columns by %d rows. Type 'help' for help. " +
-            "You're player #%d.";
+    // The number of players connected when this player joined, including this player.
+    private final int num_players;
+    private final MinesweeperProtocol protocol;
+    // The server's statistics, which this player's traffic is counted in.
+    private final ServerStats stats;
+    // The thread pushing board changes to the player, once they start watching.
+    private volatile Thread pusher = null;
+    // False once the player has gone.
+    private volatile boolean connected = true;
 
-    private final String MESSAGE_BYE = "Bye.";
-    private final String MESSAGE_BOOM = "BOOM!";
-    private final String MESSAGE_HELP =
-            "It's Minesweeper! You're probably familiar with " +
-            " the rules. Commands: 'look' to see the board. 'dig X Y' to dig a space. " +
-            "'flag X Y' to flag a space, 'deflag X Y' to deflag a space. 'help' to show" +
-            "this help message. 'bye' to disconnect.";
+    public MinesweeperThread(Socket socket, int id, int num_players, Board board,
+                             boolean debug) {
+        this(socket, id, num_players, new BoardRegistry(board), debug);
+    }
+
+    MinesweeperThread(Socket socket, int id, int num_players, BoardRegistry rooms,
+                      boolean debug) {
+        this(socket, id, num_players, rooms, new ServerStats(rooms), debug);
+    }
 
-    public MinesweeperThread(Socket socket, int id, Board board, boolean debug) {
+    MinesweeperThread(Socket socket, int id, int num_players, BoardRegistry rooms,
+                      ServerStats stats, boolean debug) {
         this.socket = socket;
         this.id = id;
-        this.board = board;
-        this.debug = debug;
+        this.num_players = num_players;
+        this.stats = stats;
+        this.protocol = new MinesweeperProtocol(rooms, stats, debug, this::wakePusher);
     }
 
     @Override
     public void run() {
+        this.stats.connectionOpened();
         try(
                 BufferedReader in =
                         new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                PrintWriter out =
-                        new PrintWriter(socket.getOutputStream(), true)
+                // Responses are flushed by hand, once per batch of requests.
+                PrintWriter out = new PrintWriter(new BufferedWriter(
+                        new OutputStreamWriter(socket.getOutputStream())))
                 ) {
-            out.println(String.format(MESSAGE_WELCOME,
-                    this.id + 1,
-                    this.board.getX_size(),
-                    this.board.getY_size(),
-                    this.id + 1));
+            send(out, this.protocol.welcome(this.num_players, this.id));
+            out.flush();
 
 //            for (String line = in.readLine(); line != null; line = in.readLine()) {
-            boolean listening = true;
-            while(listening) {
+            while (!this.protocol.isFinished()) {
                 String line = in.readLine();
 //                System.out.println(String.format(
 //                        "Message received from thread %d: %s",
 //                        this.id, line));
-                String output = handleRequest(line);
-                // If the user isn't requesting a disconnect or getting blown up, show the
-                // response.
-                if (! (output.equals(MESSAGE_BYE) || (output.equals(MESSAGE_BOOM)))) {
-                    out.println(output);
-                } else if (output.equals(MESSAGE_BOOM)) {
-                    // If the user is getting blown up, we'll close their connection
-                    // unless debug = true.
-                    if (!debug) {
-                        out.println(output);
-                        listening = false;
-                    } else {
-                        out.println(output);
+                // If the client hung up without saying bye, we're done.
+                if (line == null) {
+                    break;
+                }
+                this.stats.bytesIn(line.length() + 1);
+                String output = this.protocol.respond(line);
+                // The pusher may be writing to the player too.
+                synchronized (out) {
+                    if (output != null) {
+                        send(out, output);
+                    }
+                    // Clients that pipeline send requests in bursts. While more of the
+                    // burst is already waiting, its responses pile up in out, and the
+                    // whole batch goes out in one write once we've caught up.
+                    if (this.protocol.isFinished() || !in.ready()) {
+                        out.flush();
                     }
-                } else if (output.equals(MESSAGE_BYE)) {
-                    listening = false;
+                }
+                if (this.protocol.isWatching() && this.pusher == null) {
+                    startPusher(out);
                 }
             }
 
             socket.close();
         } catch (IOException ioe) {
             ioe.printStackTrace();
+        } finally {
+            this.stats.connectionClosed();
+            this.connected = false;
+            this.protocol.close();
+            final Thread current_pusher = this.pusher;
+            if (current_pusher != null) {
+                current_pusher.interrupt();
+            }
         }
     }
 
     /**
-     * Handler for client input, performing requested operations and returning an output message.
+     * Start a thread that sends the player the board's changes whenever there are some,
+     * until they disconnect. Reading requests blocks this thread, so it can't do both.
      *
-     * @param input message from client
-     * @return message to client, or null if none
+     * @param out the stream to the player, which the pusher shares with this thread
      */
-    private String handleRequest(String input) {
-        final String regex = "(look)|(help)|(bye)|"
-                + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
-        if ( ! (input.matches(regex))) {
-            // Invalid input, so we'll show a help message.
-            return MESSAGE_HELP;
-        }
-        String[] tokens = input.split(" ");
-
-        switch (tokens[0]) {
-            case "look":
-                // 'look' request.
-                // System.out.println(this.board);
-                return this.board.toString();
-            case "help":
-                // 'help' request.
-                return MESSAGE_HELP;
-            case "bye":
-                // 'bye' request.
-                return MESSAGE_BYE;
-            default:
-                int x = Integer.parseInt(tokens[1]);
-                int y = Integer.parseInt(tokens[2]);
-
-                switch (tokens[0]) {
-                    case "dig":
-                        // 'dig x y' request
-                        // If the position is invalid, do nothing and return a board
-                        // message.
-                        if (! (this.board.isValidPosition(x, y))) {
-                            return this.board.toString();
-                        }
+    private void startPusher(PrintWriter out) {
+        final Thread new_pusher = new Thread(() -> {
+            while (this.connected) {
+                for (String message = this.protocol.pollPush(); message != null;
+                     message = this.protocol.pollPush()) {
+                    synchronized (out) {
+                        send(out, message);
+                        out.flush();
+                    }
+                }
+                // Sleep until wakePusher(). If it's called first, park returns at once.
+                LockSupport.park(this);
+            }
+        }, "minesweeper-pusher-" + this.id);
+        new_pusher.setDaemon(true);
+        this.pusher = new_pusher;
+        new_pusher.start();
+    }
 
-                        // If there's a mine in the given square, the mine explodes and
-                        // the user is disconnected (unless debug = true).
-                        if (this.board.hasMine(x, y)) {
-                            this.board.dig(x, y);
-                            return MESSAGE_BOOM;
-                        }
+    /**
+     * Write a message and a line terminator to the player, counting the bytes sent. The
+     * protocol is ASCII, so each character is one byte.
+     *
+     * @param out the stream to the player
+     * @param message the message
+     */
+    private void send(PrintWriter out, String message) {
+        out.println(message);
+        this.stats.bytesOut(message.length() + System.lineSeparator().length());
+    }
 
-                        // If there's no mine in the given square, dig states and mine
-                        // counts are updated and a board message is returned.
-                        this.board.dig(x, y);
-                        return this.board.toString();
-                    case "flag":
-                        // 'flag x y' request
-                        if (this.board.isUntouched(x, y)) {
-                            this.board.flag(x, y);
-                        }
-                        return this.board.toString();
-                    case "deflag":
-                        // 'deflag x y' request
-                        this.board.deflag(x, y);
-                        return this.board.toString();
-                }
-                break;
+    /**
+     * Wake the pusher, because the board has changes for the player. Called by the
+     * board while it's locked, so it does no more than that.
+     */
+    private void wakePusher() {
+        final Thread current_pusher = this.pusher;
+        if (current_pusher != null) {
+            LockSupport.unpark(current_pusher);
         }
-        throw new UnsupportedOperationException(
-                "End of handleRequest, this code should be unreachable.");
     }
 }
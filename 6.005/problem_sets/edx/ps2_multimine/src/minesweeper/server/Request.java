@@ -0,0 +1,395 @@
+package minesweeper.server;
+
+/**
+ * A parser for the request lines of the Minesweeper protocol, which holds the last line
+ * it parsed. Each connection reuses one Request for every line, and the common
+ * requests (look, dig, flag and deflag) are parsed without allocating anything, straight
+ * from whatever the line was read into.
+ *
+ * The lines accepted are exactly those matched by:
+ *   (look)|(help)|(bye)|(look since \d{1,18})|(look -?\d+ -?\d+ \d{1,4} \d{1,4})|
+ *   (diff (on|off))|(compress (on|off))|(watch)|(unwatch)|
+ *   (stats)|(spectate)|(join [\w-]{1,32})|(create [\w-]{1,32} \d{1,4} \d{1,4})|
+ *   (create [\w-]{1,32} \d{1,7} \d{1,7} tiled)|
+ *   (dig -?\d+ -?\d+)|(flag -?\d+ -?\d+)|(deflag -?\d+ -?\d+)
+ * where \d is an ASCII digit and \w an ASCII letter, digit or underscore. Coordinates
+ * too large for an int are parsed as Integer.MIN_VALUE or Integer.MAX_VALUE, which are
+ * off every board.
+ *
+ * Not threadsafe: each Request belongs to one connection's thread.
+ */
+class Request {
+
+    /** The kinds of request. */
+    enum Kind {
+        LOOK, LOOK_SINCE, LOOK_WINDOW, HELP, BYE, DIFF_ON, DIFF_OFF, COMPRESS_ON,
+        COMPRESS_OFF, WATCH, UNWATCH, STATS, SPECTATE, JOIN, CREATE, CREATE_TILED, DIG,
+        FLAG, DEFLAG,
+        /** Anything that isn't a valid request. */
+        INVALID
+    }
+
+    /** The longest room name accepted. */
+    static final int MAX_ROOM_LENGTH = 32;
+
+    // The line being parsed, and how far parsing has got through it.
+    private CharSequence line;
+    private int position;
+
+    // The last line's request, and its arguments. Only the arguments of that kind of
+    // request mean anything.
+    private Kind kind = Kind.INVALID;
+    private int x;
+    private int y;
+    private int width;
+    private int height;
+    private long version;
+    private String room;
+
+    /**
+     * Parse a request line.
+     *
+     * @param line the line, without its line terminator
+     * @return the kind of request, also available from getKind()
+     */
+    Kind parse(CharSequence line) {
+        this.line = line;
+        this.position = 0;
+        this.kind = parseLine();
+        // Don't hold on to the caller's buffer.
+        this.line = null;
+        return this.kind;
+    }
+
+    /**
+     * @return the kind of the last request parsed
+     */
+    Kind getKind() {
+        return this.kind;
+    }
+
+    /**
+     * @return the X coordinate of the last dig, flag, deflag or windowed look, or the
+     *         width of the last create, tiled or not
+     */
+    int getX() {
+        return this.x;
+    }
+
+    /**
+     * @return the Y coordinate of the last dig, flag, deflag or windowed look, or the
+     *         height of the last create, tiled or not
+     */
+    int getY() {
+        return this.y;
+    }
+
+    /**
+     * @return the width of the last windowed look
+     */
+    int getWidth() {
+        return this.width;
+    }
+
+    /**
+     * @return the height of the last windowed look
+     */
+    int getHeight() {
+        return this.height;
+    }
+
+    /**
+     * @return the version of the last 'look since'
+     */
+    long getVersion() {
+        return this.version;
+    }
+
+    /**
+     * @return the room named by the last join or create
+     */
+    String getRoom() {
+        return this.room;
+    }
+
+    /**
+     * Parse the whole of the current line.
+     *
+     * @return the line's kind of request
+     */
+    private Kind parseLine() {
+        // The first letter narrows the request down to one or two commands.
+        if (this.line.length() == 0) {
+            return Kind.INVALID;
+        }
+        switch (this.line.charAt(0)) {
+            case 'l':
+                if (!skip("look")) {
+                    return Kind.INVALID;
+                }
+                if (atEnd()) {
+                    return Kind.LOOK;
+                }
+                if (!skip(" since ")) {
+                    return window();
+                }
+                final int start = this.position;
+                long since = 0;
+                while (!atEnd() && isDigit(peek()) && this.position - start < 18) {
+                    since = since * 10 + (next() - '0');
+                }
+                if (this.position == start || !atEnd()) {
+                    return Kind.INVALID;
+                }
+                this.version = since;
+                return Kind.LOOK_SINCE;
+            case 'h':
+                return whole("help", Kind.HELP);
+            case 'b':
+                return whole("bye", Kind.BYE);
+            case 'w':
+                return whole("watch", Kind.WATCH);
+            case 'u':
+                return whole("unwatch", Kind.UNWATCH);
+            case 'd':
+                if (this.line.length() > 1 && this.line.charAt(1) == 'i') {
+                    if (skip("diff ")) {
+                        return whole("on", Kind.DIFF_ON) != Kind.INVALID ? Kind.DIFF_ON
+                                : whole("off", Kind.DIFF_OFF);
+                    }
+                    return coordinates("dig ", Kind.DIG);
+                }
+                return coordinates("deflag ", Kind.DEFLAG);
+            case 'f':
+                return coordinates("flag ", Kind.FLAG);
+            case 's':
+                return whole("stats", Kind.STATS) != Kind.INVALID ? Kind.STATS
+                        : whole("spectate", Kind.SPECTATE);
+            case 'j':
+                if (!skip("join ") || !room() || !atEnd()) {
+                    return Kind.INVALID;
+                }
+                return Kind.JOIN;
+            case 'c':
+                if (this.line.length() > 1 && this.line.charAt(1) == 'o') {
+                    if (!skip("compress ")) {
+                        return Kind.INVALID;
+                    }
+                    return whole("on", Kind.COMPRESS_ON) != Kind.INVALID ? Kind.COMPRESS_ON
+                            : whole("off", Kind.COMPRESS_OFF);
+                }
+                if (!skip("create ") || !room() || !skip(" ")) {
+                    return Kind.INVALID;
+                }
+                // Tiled boards can be far bigger, so their sizes may have more digits.
+                final int sizes_start = this.position;
+                if (sizes(4) && atEnd()) {
+                    return Kind.CREATE;
+                }
+                this.position = sizes_start;
+                if (sizes(7) && skip(" tiled") && atEnd()) {
+                    return Kind.CREATE_TILED;
+                }
+                return Kind.INVALID;
+            default:
+                return Kind.INVALID;
+        }
+    }
+
+    /**
+     * Parse a request with no arguments, at the current position.
+     *
+     * @param word the request
+     * @param word_kind the kind of request
+     * @return word_kind if the rest of the line is word, INVALID otherwise
+     */
+    private Kind whole(String word, Kind word_kind) {
+        final int start = this.position;
+        if (skip(word) && atEnd()) {
+            return word_kind;
+        }
+        this.position = start;
+        return Kind.INVALID;
+    }
+
+    /**
+     * Parse a request for a square: a command, then two coordinates.
+     *
+     * @param command the command, followed by a space
+     * @param command_kind the kind of request
+     * @return command_kind, with x and y set, if the line is the command followed by
+     *         "X Y"; INVALID otherwise
+     */
+    private Kind coordinates(String command, Kind command_kind) {
+        if (!skip(command) || !coordinate()) {
+            return Kind.INVALID;
+        }
+        final int square_x = this.x;
+        if (!skip(" ") || !coordinate() || !atEnd()) {
+            return Kind.INVALID;
+        }
+        this.y = this.x;
+        this.x = square_x;
+        return command_kind;
+    }
+
+    /**
+     * Parse the arguments of a windowed look, after "look": " X Y W H".
+     *
+     * @return LOOK_WINDOW, with x, y, width and height set, if the rest of the line is
+     *         " X Y W H"; INVALID otherwise
+     */
+    private Kind window() {
+        if (!skip(" ") || !coordinate()) {
+            return Kind.INVALID;
+        }
+        final int window_x = this.x;
+        if (!skip(" ") || !coordinate() || !skip(" ")) {
+            return Kind.INVALID;
+        }
+        final int window_y = this.x;
+        final int window_width = smallNumber();
+        if (window_width < 0 || !skip(" ")) {
+            return Kind.INVALID;
+        }
+        final int window_height = smallNumber();
+        if (window_height < 0 || !atEnd()) {
+            return Kind.INVALID;
+        }
+        this.x = window_x;
+        this.y = window_y;
+        this.width = window_width;
+        this.height = window_height;
+        return Kind.LOOK_WINDOW;
+    }
+
+    /**
+     * Parse a board's size, "X Y", at the current position into x and y.
+     *
+     * @param max_digits the most digits in each number
+     * @return true iff there were two numbers of 1 to max_digits digits
+     */
+    private boolean sizes(int max_digits) {
+        final int width = number(max_digits);
+        if (width < 0 || !skip(" ")) {
+            return false;
+        }
+        final int height = number(max_digits);
+        if (height < 0) {
+            return false;
+        }
+        this.x = width;
+        this.y = height;
+        return true;
+    }
+
+    /**
+     * Parse an optionally negative integer of any length at the current position into
+     * x, saturating at the limits of an int.
+     *
+     * @return true iff there was at least one digit
+     */
+    private boolean coordinate() {
+        final boolean negative = !atEnd() && peek() == '-';
+        if (negative) {
+            this.position++;
+        }
+        final int start = this.position;
+        // Accumulated as a negative number, which has room for Integer.MIN_VALUE.
+        long value = 0;
+        while (!atEnd() && isDigit(peek())) {
+            value = Math.max(value * 10 - (next() - '0'), (long) Integer.MIN_VALUE - 1);
+        }
+        if (this.position == start) {
+            return false;
+        }
+        if (negative) {
+            this.x = (int) Math.max(value, Integer.MIN_VALUE);
+        } else {
+            this.x = (int) Math.min(-value, Integer.MAX_VALUE);
+        }
+        return true;
+    }
+
+    /**
+     * Parse 1 to 4 digits at the current position.
+     *
+     * @return the number, or -1 if there were no digits
+     */
+    private int smallNumber() {
+        return number(4);
+    }
+
+    /**
+     * Parse 1 to max_digits digits at the current position.
+     *
+     * @param max_digits 1 <= max_digits <= 9, the most digits to parse
+     * @return the number, or -1 if there were no digits
+     */
+    private int number(int max_digits) {
+        final int start = this.position;
+        int value = 0;
+        while (!atEnd() && isDigit(peek()) && this.position - start < max_digits) {
+            value = value * 10 + (next() - '0');
+        }
+        return (this.position == start) ? -1 : value;
+    }
+
+    /**
+     * Parse a room name at the current position into room.
+     *
+     * @return true iff there was a name of 1 to MAX_ROOM_LENGTH characters
+     */
+    private boolean room() {
+        final int start = this.position;
+        while (!atEnd() && isRoomCharacter(peek())
+                && this.position - start < MAX_ROOM_LENGTH) {
+            this.position++;
+        }
+        if (this.position == start) {
+            return false;
+        }
+        this.room = this.line.subSequence(start, this.position).toString();
+        return true;
+    }
+
+    /**
+     * Skip over the given text, if the line continues with it.
+     *
+     * @param text the expected text
+     * @return true iff the line continued with text, which has been skipped
+     */
+    private boolean skip(String text) {
+        if (this.line.length() - this.position < text.length()) {
+            return false;
+        }
+        for (int i = 0; i < text.length(); i++) {
+            if (this.line.charAt(this.position + i) != text.charAt(i)) {
+                return false;
+            }
+        }
+        this.position += text.length();
+        return true;
+    }
+
+    private boolean atEnd() {
+        return this.position == this.line.length();
+    }
+
+    private char peek() {
+        return this.line.charAt(this.position);
+    }
+
+    private char next() {
+        return this.line.charAt(this.position++);
+    }
+
+    private static boolean isDigit(char c) {
+        return '0' <= c && c <= '9';
+    }
+
+    private static boolean isRoomCharacter(char c) {
+        return isDigit(c) || ('a' <= c && c <= 'z') || ('A' <= c && c <= 'Z')
+                || c == '_' || c == '-';
+    }
+}
@@ -0,0 +1,329 @@
+package minesweeper.server;
+
+import java.io.PrintStream;
+import java.util.EnumMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Measurements of how a server is behaving: how many requests of each kind it has
+ * answered and how long they took, how many players are connected, how many bytes have
+ * gone each way, how large flood fills are, and how long threads have waited for board
+ * locks. Players can see them with the 'stats' command, and the server can log a
+ * summary every so often.
+ *
+ * Recording never blocks: counters are LongAdders, and histograms are arrays of atomic
+ * counters, so the threads serving players never wait for each other to record.
+ * Reading while others record may see some of a request's numbers but not the rest,
+ * which is fine for statistics.
+ *
+ * Threadsafe.
+ */
+class ServerStats {
+    /** How often runMinesweeperServer() logs a summary line, by default, in seconds. */
+    static final long DEFAULT_LOG_INTERVAL_SECONDS = 60;
+
+    /**
+     * A histogram of non-negative values, such as latencies in nanoseconds, recorded
+     * from any number of threads without locking.
+     *
+     * As in HdrHistogram, buckets are log-linear: every power of two is split into
+     * SUB_BUCKETS equal buckets, so a value's bucket says what it was to within
+     * 1 / SUB_BUCKETS of itself, whatever its size, and the whole range of a long takes
+     * under 500 buckets. Values below 2 * SUB_BUCKETS get a bucket each.
+     */
+    static class Histogram {
+        private static final int SUB_BUCKET_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+        private static final int NUM_BUCKETS =
+                (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+        private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+        private final LongAdder total = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        /**
+         * Record a value.
+         *
+         * @param value the value, requires value >= 0
+         */
+        void record(long value) {
+            this.counts.incrementAndGet(bucketOf(value));
+            this.total.increment();
+            this.sum.add(value);
+        }
+
+        /**
+         * @return the number of values recorded
+         */
+        long count() {
+            return this.total.sum();
+        }
+
+        /**
+         * @return the mean of the values recorded, or 0 if there are none
+         */
+        double mean() {
+            final long count = count();
+            return (count == 0) ? 0 : (double) this.sum.sum() / count;
+        }
+
+        /**
+         * Estimate a percentile of the values recorded.
+         *
+         * @param percentile the percentile, requires 0 <= percentile <= 100
+         * @return the largest value that could be in the bucket holding the percentile,
+         *         so at most 1 / SUB_BUCKETS more than the real percentile, or 0 if no
+         *         values have been recorded
+         */
+        long percentile(double percentile) {
+            final long[] snapshot = new long[NUM_BUCKETS];
+            long count = 0;
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                snapshot[bucket] = this.counts.get(bucket);
+                count += snapshot[bucket];
+            }
+            if (count == 0) {
+                return 0;
+            }
+            final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * count));
+            long seen = 0;
+            for (int bucket = 0; bucket < NUM_BUCKETS; bucket++) {
+                seen += snapshot[bucket];
+                if (seen >= rank) {
+                    return highestValueIn(bucket);
+                }
+            }
+            return highestValueIn(NUM_BUCKETS - 1);
+        }
+
+        /**
+         * @return the largest value recorded, to within 1 / SUB_BUCKETS, or 0 if none
+         */
+        long max() {
+            for (int bucket = NUM_BUCKETS - 1; bucket >= 0; bucket--) {
+                if (this.counts.get(bucket) > 0) {
+                    return highestValueIn(bucket);
+                }
+            }
+            return 0;
+        }
+
+        /**
+         * Find the bucket a value belongs in.
+         *
+         * @param value the value, requires value >= 0
+         * @return the bucket, 0 <= bucket < NUM_BUCKETS
+         */
+        static int bucketOf(long value) {
+            if (value < 2 * SUB_BUCKETS) {
+                return (int) value;
+            }
+            // The top SUB_BUCKET_BITS + 1 bits of the value pick its bucket: the highest
+            // one picks the power of two, and the bits below it the sub-bucket.
+            final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+            return (shift + 1) * SUB_BUCKETS + (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+        }
+
+        /**
+         * @param bucket 0 <= bucket < NUM_BUCKETS
+         * @return the largest value that belongs in the bucket
+         */
+        static long highestValueIn(int bucket) {
+            if (bucket < 2 * SUB_BUCKETS) {
+                return bucket;
+            }
+            final int shift = bucket / SUB_BUCKETS - 1;
+            final long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+            return lowest + (1L << shift) - 1;
+        }
+    }
+
+    /** The rooms whose boards' lock waits are reported. */
+    private final BoardRegistry rooms;
+    /** System.nanoTime() when the server started. */
+    private final long start_nanos = System.nanoTime();
+    /** The time taken to answer each kind of request, in nanoseconds. */
+    private final Map<Request.Kind, Histogram> latencies = new EnumMap<>(Request.Kind.class);
+    /** The number of squares revealed by each dig that revealed more than one. */
+    private final Histogram flood_fills = new Histogram();
+    private final AtomicInteger active_connections = new AtomicInteger();
+    private final LongAdder total_connections = new LongAdder();
+    private final LongAdder bytes_in = new LongAdder();
+    private final LongAdder bytes_out = new LongAdder();
+
+    /**
+     * Make an empty set of statistics for a server.
+     *
+     * @param rooms the rooms the server hosts
+     */
+    ServerStats(BoardRegistry rooms) {
+        this.rooms = rooms;
+        // Every histogram exists from the start, so the map is only ever read.
+        for (Request.Kind kind : Request.Kind.values()) {
+            this.latencies.put(kind, new Histogram());
+        }
+    }
+
+    /**
+     * Record a request that has been answered.
+     *
+     * @param kind the kind of request
+     * @param nanos how long it took to answer, in nanoseconds
+     */
+    void recordRequest(Request.Kind kind, long nanos) {
+        this.latencies.get(kind).record(nanos);
+    }
+
+    /**
+     * Record a dig.
+     *
+     * @param num_revealed the number of squares it revealed
+     */
+    void recordDig(int num_revealed) {
+        if (num_revealed > 1) {
+            this.flood_fills.record(num_revealed);
+        }
+    }
+
+    /** Record a player connecting. */
+    void connectionOpened() {
+        this.active_connections.incrementAndGet();
+        this.total_connections.increment();
+    }
+
+    /** Record a player disconnecting, once for each connectionOpened(). */
+    void connectionClosed() {
+        this.active_connections.decrementAndGet();
+    }
+
+    /**
+     * Record bytes read from a player.
+     *
+     * @param num_bytes the number of bytes
+     */
+    void bytesIn(long num_bytes) {
+        this.bytes_in.add(num_bytes);
+    }
+
+    /**
+     * Record bytes written to a player.
+     *
+     * @param num_bytes the number of bytes
+     */
+    void bytesOut(long num_bytes) {
+        this.bytes_out.add(num_bytes);
+    }
+
+    /**
+     * Get the time taken to answer one kind of request.
+     *
+     * @param kind the kind of request
+     * @return the histogram of its latencies, in nanoseconds
+     */
+    Histogram latencies(Request.Kind kind) {
+        return this.latencies.get(kind);
+    }
+
+    /**
+     * Build the answer to a 'stats' request: a "STATS" line, then one "NAME VALUE" line
+     * for each counter, and a "request KIND count=N mean_us=M p50_us=A p90_us=B
+     * p99_us=C max_us=D" line for each kind of request answered so far, followed by
+     * a similar "flood_fill" line, in squares, if there have been any.
+     *
+     * @return the statistics, as text
+     */
+    String report() {
+        final StringBuilder report = new StringBuilder("STATS")
+                .append("\nuptime_s ")
+                .append(TimeUnit.NANOSECONDS.toSeconds(System.nanoTime() - this.start_nanos))
+                .append("\nconnections_active ").append(this.active_connections.get())
+                .append("\nconnections_total ").append(this.total_connections.sum())
+                .append("\nbytes_in ").append(this.bytes_in.sum())
+                .append("\nbytes_out ").append(this.bytes_out.sum())
+                .append("\nrooms ").append(this.rooms.numRooms())
+                .append("\nlock_waits ").append(this.rooms.numLockWaits())
+                .append("\nlock_wait_us ")
+                .append(TimeUnit.NANOSECONDS.toMicros(this.rooms.lockWaitNanos()));
+        for (Map.Entry<Request.Kind, Histogram> entry : this.latencies.entrySet()) {
+            final Histogram latencies = entry.getValue();
+            if (latencies.count() > 0) {
+                report.append("\nrequest ").append(entry.getKey().name().toLowerCase());
+                appendHistogram(report, latencies, "_us", 1000);
+            }
+        }
+        if (this.flood_fills.count() > 0) {
+            report.append("\nflood_fill");
+            appendHistogram(report, this.flood_fills, "", 1);
+        }
+        return report.toString();
+    }
+
+    /**
+     * Build a one line summary of the statistics, across every kind of request.
+     *
+     * @return the summary
+     */
+    String summary() {
+        long num_requests = 0;
+        long slowest_p99 = 0;
+        for (Histogram latencies : this.latencies.values()) {
+            num_requests += latencies.count();
+            slowest_p99 = Math.max(slowest_p99, latencies.percentile(99));
+        }
+        return "minesweeper stats: connections=" + this.active_connections.get()
+                + " requests=" + num_requests
+                + " slowest_p99_us=" + TimeUnit.NANOSECONDS.toMicros(slowest_p99)
+                + " bytes_in=" + this.bytes_in.sum()
+                + " bytes_out=" + this.bytes_out.sum()
+                + " lock_waits=" + this.rooms.numLockWaits()
+                + " lock_wait_us=" + TimeUnit.NANOSECONDS.toMicros(this.rooms.lockWaitNanos());
+    }
+
+    /**
+     * Print summary() every so often, on a daemon thread, for as long as the JVM runs.
+     *
+     * @param out where to print it
+     * @param interval_seconds how often to print it, requires interval_seconds >= 1
+     */
+    void startLogging(PrintStream out, long interval_seconds) {
+        final ScheduledExecutorService logger = Executors.newSingleThreadScheduledExecutor(
+                runnable -> {
+                    final Thread thread = new Thread(runnable, "minesweeper-stats");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+        logger.scheduleAtFixedRate(() -> out.println(summary()),
+                interval_seconds, interval_seconds, TimeUnit.SECONDS);
+    }
+
+    /**
+     * Append " count=N mean=M p50=A p90=B p99=C max=D" to a report, with the given
+     * suffix on each name but count.
+     *
+     * @param report the report to append to
+     * @param histogram the values
+     * @param suffix appended to the name of each value but count, for its unit
+     * @param divisor each value is divided by this before it's reported, to change its
+     *                unit, requires divisor >= 1
+     */
+    private static void appendHistogram(StringBuilder report, Histogram histogram,
+                                        String suffix, long divisor) {
+        report.append(" count=").append(histogram.count())
+                .append(" mean").append(suffix).append('=')
+                .append(Math.round(histogram.mean() / divisor))
+                .append(" p50").append(suffix).append('=')
+                .append(histogram.percentile(50) / divisor)
+                .append(" p90").append(suffix).append('=')
+                .append(histogram.percentile(90) / divisor)
+                .append(" p99").append(suffix).append('=')
+                .append(histogram.percentile(99) / divisor)
+                .append(" max").append(suffix).append('=')
+                .append(histogram.max() / divisor);
+    }
+}
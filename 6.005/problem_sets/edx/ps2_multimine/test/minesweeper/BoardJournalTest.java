@@ -0,0 +1,114 @@
+package minesweeper;
+
+import org.junit.Test;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests saving a board with BoardJournal and restoring it.
+ */
+public class BoardJournalTest {
+
+    /* Testing strategy
+    * ====================
+    * Directory: empty, with a snapshot and no changes since, with a snapshot and
+    *            changes since
+    * Journal ending: after a complete batch, part way through a batch, with a batch
+    *                 whose checksum doesn't match
+    * Restarts: journaling a fresh board, journaling a restored board
+    */
+
+    private final String BOARD_FILE = "test/minesweeper/test_board.txt";
+
+    @Test
+    public void testRecoverEmptyDirectory() throws IOException {
+        assertNull(BoardJournal.recover(newDirectory()));
+    }
+
+    @Test
+    public void testRecover() throws Exception {
+        final File directory = newDirectory();
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        final BoardJournal journal = BoardJournal.start(board, directory);
+
+        // Nothing has changed yet, so the snapshot alone restores the board.
+        assertEquals(board.toString(), BoardJournal.recover(directory).toString());
+
+        // A flag, a flood fill, and an explosion that changes its neighbors' counts.
+        board.flag(1, 1);
+        board.dig(0, 4);
+        board.dig(2, 4);
+        journal.sync();
+
+        // The journal is left open, as if the server had died.
+        final Board restored = BoardJournal.recover(directory);
+        assertEquals(board.toString(), restored.toString());
+        assertEquals(board.numMinesRemaining(), restored.numMinesRemaining());
+        assertEquals(0, restored.numMinesRemaining());
+        assertTrue(restored.isFlagged(1, 1));
+        assertTrue(restored.hasMine(1, 1));
+        journal.close();
+
+        // The restored board carries on where the old one left off.
+        restored.deflag(1, 1);
+        assertEquals(1, restored.numMinesRemaining());
+    }
+
+    @Test
+    public void testRecoverIgnoresIncompleteBatches() throws Exception {
+        final File directory = newDirectory();
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        final BoardJournal journal = BoardJournal.start(board, directory);
+        board.flag(3, 0);
+        journal.sync();
+        journal.close();
+        final String expected_board = board.toString();
+
+        final File journal_file = new File(directory, BoardJournal.JOURNAL_FILE_NAME);
+        try (FileOutputStream out = new FileOutputStream(journal_file, true)) {
+            // A batch of one change to square 0 whose checksum doesn't match, followed
+            // by a batch of two changes that ends part way through the first.
+            out.write(new byte[] {0, 0, 0, 1, 1, 2, 3, 4, 0, 0, 0, 0, Square.DUG});
+            out.write(new byte[] {0, 0, 0, 2, 0, 0, 0, 0, 0, 0});
+        }
+        assertEquals(expected_board, BoardJournal.recover(directory).toString());
+    }
+
+    @Test
+    public void testJournalRestoredBoard() throws Exception {
+        final File directory = newDirectory();
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        BoardJournal journal = BoardJournal.start(board, directory);
+        board.flag(0, 0);
+        journal.close();
+
+        // Restarting replaces the old snapshot and journal with a new generation, and
+        // changes from before and after the restart both survive the next one.
+        final Board restored = BoardJournal.recover(directory);
+        journal = BoardJournal.start(restored, directory);
+        restored.dig(3, 0);
+        journal.sync();
+        final Board restored_again = BoardJournal.recover(directory);
+        journal.close();
+        assertTrue(restored_again.isFlagged(0, 0));
+        assertTrue(restored_again.isDug(3, 0));
+        assertEquals(restored.toString(), restored_again.toString());
+    }
+
+    /**
+     * Make an empty directory that's deleted when the tests finish.
+     */
+    private static File newDirectory() throws IOException {
+        final File directory = Files.createTempDirectory("journal").toFile();
+        directory.deleteOnExit();
+        new File(directory, BoardJournal.SNAPSHOT_FILE_NAME).deleteOnExit();
+        new File(directory, BoardJournal.JOURNAL_FILE_NAME).deleteOnExit();
+        return directory;
+    }
+}
@@ -4,7 +4,13 @@
 package minesweeper;
 
 import org.junit.Test;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
 
 import static org.junit.jupiter.api.Assertions.*;
 
@@ -20,6 +26,10 @@ public class BoardTest {
     * Rows, columns: 1, > 1, MAX_INT
     *                rows == columns, rows != columns
     * File: using board file, using no board file
+    *       rows of X values, rows of more than X values
+    * Threads: 1, > 1 working on the same board
+    * Flood fill: within one lock stripe, across several lock stripes, with a flag removed
+    *             while it runs
     */
 
 //    private final String BOARD_FILE = "I:\\Users\\Haplo\\Documents\\GitHub\\MIT\\6" +
@@ -65,6 +75,91 @@ public class BoardTest {
         assertTrue(board.isDug(5,17));
     }
 
+    @Test
+    public void testSeededBoard() {
+        // Big enough to be mined in several tiles, and counted in several bands.
+        final Board board = new Board(300, 400, 6005);
+        final Board same_board = new Board(300, 400, 6005);
+        final Board other_board = new Board(300, 400, 6006);
+
+        int num_mines = 0;
+        boolean differs = false;
+        for (int y = 0; y < 400; y++) {
+            for (int x = 0; x < 300; x++) {
+                assertEquals(board.hasMine(x, y), same_board.hasMine(x, y));
+                differs |= board.hasMine(x, y) != other_board.hasMine(x, y);
+                if (board.hasMine(x, y)) {
+                    num_mines++;
+                }
+
+                int num_mined_neighbors = 0;
+                for (int neighbor_y = y - 1; neighbor_y <= y + 1; neighbor_y++) {
+                    for (int neighbor_x = x - 1; neighbor_x <= x + 1; neighbor_x++) {
+                        if (board.isValidPosition(neighbor_x, neighbor_y)
+                                && !(neighbor_x == x && neighbor_y == y)
+                                && board.hasMine(neighbor_x, neighbor_y)) {
+                            num_mined_neighbors++;
+                        }
+                    }
+                }
+                assertEquals(num_mined_neighbors,
+                        board.getSquare(x, y).numNeighborsWithMines());
+            }
+        }
+        assertTrue(differs);
+        assertEquals(num_mines, board.numMinesRemaining());
+        assertTrue(num_mines > 0.2 * 300 * 400 && num_mines < 0.3 * 300 * 400);
+    }
+
+    @Test
+    public void testNeighborCountsMatchBruteForce() {
+        // A single row, a single column, each long enough to be counted in several
+        // bands or to have a band of one row, and a board of many bands of many rows.
+        final int[][] sizes = { {1, 1}, {1, 100_000}, {100_000, 1}, {2, 40_000},
+                {40_000, 2}, {700, 300} };
+        for (int[] size : sizes) {
+            final int x_size = size[0];
+            final int y_size = size[1];
+            final Board board = new Board(x_size, y_size, 6005 + x_size);
+            for (int y = 0; y < y_size; y++) {
+                for (int x = 0; x < x_size; x++) {
+                    int num_mined_neighbors = 0;
+                    for (int neighbor_y = y - 1; neighbor_y <= y + 1; neighbor_y++) {
+                        for (int neighbor_x = x - 1; neighbor_x <= x + 1; neighbor_x++) {
+                            if (!(neighbor_x == x && neighbor_y == y)
+                                    && board.hasMine(neighbor_x, neighbor_y)) {
+                                num_mined_neighbors++;
+                            }
+                        }
+                    }
+                    assertEquals(num_mined_neighbors,
+                            board.getSquare(x, y).numNeighborsWithMines(),
+                            x_size + "x" + y_size + " at " + x + "," + y);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void testExactMineCount() {
+        for (int num_mines : new int[] {0, 1, 37, 50, 51, 99, 100}) {
+            final Board board = new Board(10, 10, num_mines, num_mines);
+            final Board same_board = new Board(10, 10, num_mines, num_mines);
+            int num_mined_squares = 0;
+            for (int y = 0; y < 10; y++) {
+                for (int x = 0; x < 10; x++) {
+                    assertEquals(board.hasMine(x, y), same_board.hasMine(x, y));
+                    if (board.hasMine(x, y)) {
+                        num_mined_squares++;
+                    }
+                }
+            }
+            assertEquals(num_mines, num_mined_squares);
+            assertEquals(num_mines, board.numMinesRemaining());
+        }
+        assertEquals(25, new Board(10, 10, 7, 0.25).numMinesRemaining(), 10);
+    }
+
     @Test
     public void testBoardFromFile() {
         final Board board = new Board(Paths.get(BOARD_FILE).toFile());
@@ -126,6 +221,56 @@ public class BoardTest {
         assertEquals(0, board.numMinesRemaining());
     }
 
+    @Test
+    public void testBinaryBoardFile() throws IOException {
+        final File text_file = Paths.get(BOARD_FILE).toFile();
+        final File binary_file = File.createTempFile("board", ".bin");
+        binary_file.deleteOnExit();
+        BoardFile.convert(text_file, binary_file);
+        assertFalse(BoardFile.isBinary(text_file));
+        assertTrue(BoardFile.isBinary(binary_file));
+        // 12 bytes of header, and 20 squares of mines packed into 3 bytes.
+        assertEquals(15, binary_file.length());
+
+        // Both files make the same board.
+        final Board from_text = new Board(text_file);
+        final Board from_binary = new Board(binary_file);
+        assertEquals(from_text.getX_size(), from_binary.getX_size());
+        assertEquals(from_text.getY_size(), from_binary.getY_size());
+        assertEquals(2, from_binary.numMinesRemaining());
+        assertTrue(from_binary.hasMine(1, 1));
+        assertTrue(from_binary.hasMine(2, 4));
+        from_text.dig(0, 3);
+        from_binary.dig(0, 3);
+        assertEquals(from_text.toString(), from_binary.toString());
+    }
+
+    @Test(expected = RuntimeException.class)
+    public void testTruncatedBinaryBoardFile() throws IOException {
+        final File binary_file = File.createTempFile("board", ".bin");
+        binary_file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(binary_file, "US-ASCII")) {
+            // A header for a 100 x 100 board, without any mines after it.
+            out.print("MSB1\0\0\0d\0\0\0d");
+        }
+        new Board(binary_file);
+    }
+
+    @Test
+    public void testLongRowInTextBoardFile() throws IOException {
+        // The extra value mustn't spill over into the next row.
+        final File text_file = writeBoardFile(3, 2, "0 0 0 1", "0 0 0");
+        assertThrows(RuntimeException.class, () -> new Board(text_file));
+    }
+
+    @Test
+    public void testLongRowConvertedToBinaryBoardFile() throws IOException {
+        final File text_file = writeBoardFile(3, 2, "0 0 0 1", "0 0 0");
+        final File binary_file = File.createTempFile("board", ".bin");
+        binary_file.deleteOnExit();
+        assertThrows(IOException.class, () -> BoardFile.convert(text_file, binary_file));
+    }
+
     @Test
     public void testLook() {
         final Board board = new Board(7,7);
@@ -151,6 +296,161 @@ public class BoardTest {
         assertEquals(expected_board_with_flag, board.toString());
     }
 
+    @Test
+    public void testLookWindow() {
+        // Wider than one lock stripe, so a window can span several.
+        final Board board = new Board(40, 20, 1, 0.0);
+        board.flag(18, 5);
+        board.flag(0, 19);
+        assertEquals("- - - \n- - F", board.toString(16, 4, 3, 2));
+        // Windows are cut down to the board.
+        assertEquals("- \nF", board.toString(-5, 18, 6, 10));
+        assertEquals(board.toString(), board.toString(-1, -1, 100, 100));
+        assertThrows(IndexOutOfBoundsException.class, () -> board.toString(40, 0, 1, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> board.toString(0, -3, 5, 3));
+    }
+
+    @Test
+    public void testCompressedLook() {
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        final String[] rows = board.toString().split("\n");
+        final int x_size = board.getX_size();
+        assertEquals(x_size + "-", board.toCompressedString().split("\n")[0]);
+        assertEquals(rows.length, board.toCompressedString().split("\n").length);
+
+        board.flag(1, 0);
+        board.flag(2, 0);
+        assertEquals("- 2F -", board.toCompressedString().split("\n")[0]);
+        assertEquals("2F\n2-", board.toCompressedString(1, 0, 2, 2));
+    }
+
+    @Test
+    public void testSnapshot() {
+        final Board board = new Board(20, 20, 1, 0.0);
+        final BoardSnapshot first = board.snapshot(0);
+        assertEquals(0, first.getVersion());
+        assertEquals(board.toString(), first.toString());
+        // The board hasn't changed, so there's no need for a new copy.
+        assertSame(first, board.snapshot(0));
+
+        board.flag(3, 4);
+        // A copy may be out of date for as long as the caller allows...
+        assertSame(first, board.snapshot(Long.MAX_VALUE / 1_000_000));
+        assertTrue(first.toString().startsWith("- - -"));
+        // ...and after that the board is copied again, without changing old copies.
+        final BoardSnapshot second = board.snapshot(0);
+        assertEquals(1, second.getVersion());
+        assertEquals(board.toString(), second.toString());
+        assertEquals("F -", second.toString(3, 4, 2, 1));
+        assertEquals("- -", first.toString(3, 4, 2, 1));
+        assertThrows(IndexOutOfBoundsException.class, () -> second.toString(20, 0, 1, 1));
+    }
+
+    @Test
+    public void testLookTracksChanges() {
+        // One board is looked at after every move, so its text is patched square by
+        // square. The other is only looked at once, at the end, so its text is rendered
+        // from scratch. They must agree.
+        final Board patched = new Board(Paths.get(BOARD_FILE).toFile());
+        final Board fresh = new Board(Paths.get(BOARD_FILE).toFile());
+        assertEquals(0, patched.version());
+        final String untouched = patched.toString();
+
+        // Looking doesn't change the board, and nor does a move that does nothing.
+        assertSame(untouched, patched.toString());
+        patched.deflag(0, 0);
+        assertEquals(0, patched.version());
+
+        long last_version = patched.version();
+        final int[][] moves = { {0, 0}, {2, 1}, {0, 3}, {1, 1}, {2, 4} };
+        for (int[] move : moves) {
+            patched.flag(move[0], move[1]);
+            patched.dig(move[0], move[1]);
+            patched.deflag(move[0], move[1]);
+            patched.dig(move[0], move[1]);
+            fresh.flag(move[0], move[1]);
+            fresh.dig(move[0], move[1]);
+            fresh.deflag(move[0], move[1]);
+            fresh.dig(move[0], move[1]);
+            assertNotEquals(untouched, patched.toString());
+            assertTrue(patched.version() > last_version);
+            last_version = patched.version();
+        }
+
+        // Every square is dug now, and both mines have exploded.
+        final String expected_board =
+                "        \n" +
+                "        \n" +
+                "        \n" +
+                "        \n" +
+                "       ";
+        assertEquals(expected_board, patched.toString());
+        assertEquals(expected_board, fresh.toString());
+        assertEquals(fresh.version(), patched.version());
+    }
+
+    @Test
+    public void testChangesSince() {
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        final long start = board.version();
+
+        // Nothing has changed yet.
+        assertFalse(board.changesSince(start).isSnapshot());
+        assertEquals(0, board.changesSince(start).getChangedSquares().size());
+
+        board.dig(2, 1);
+        board.flag(1, 1);
+        final BoardChanges changes = board.changesSince(start);
+        assertFalse(changes.isSnapshot());
+        assertEquals(board.version(), changes.getVersion());
+        assertEquals(2, changes.getChangedSquares().size());
+        final Square dug = changes.getChangedSquares().get(0);
+        assertEquals(2, dug.getX());
+        assertEquals(1, dug.getY());
+        assertTrue(dug.isDug());
+        assertEquals(1, dug.numNeighborsWithMines());
+        assertTrue(changes.getChangedSquares().get(1).isFlagged());
+
+        // A version the board has never been at gets the whole board.
+        assertTrue(board.changesSince(-1).isSnapshot());
+        assertTrue(board.changesSince(board.version() + 1).isSnapshot());
+        assertEquals(board.toString(), board.changesSince(-1).getBoard());
+
+        // Flooding the board changes more squares than its change log remembers, so
+        // there's no list of changes, only the whole board.
+        final long before_flood = board.version();
+        board.dig(0, 3);
+        final BoardChanges flood = board.changesSince(before_flood);
+        assertTrue(flood.isSnapshot());
+        assertEquals(board.version(), flood.getVersion());
+        assertEquals(board.toString(), flood.getBoard());
+    }
+
+    @Test
+    public void testSubscriptionOverflows() throws IOException {
+        final Board board = new Board(writeBoardFile(10, 10, 9, 9));
+        final BoardSubscription subscription = board.subscribe(4, () -> { });
+        assertNull(subscription.poll());
+
+        // A few changes fit in the queue.
+        board.flag(0, 0);
+        board.flag(1, 0);
+        assertEquals(2, subscription.poll().getChangedSquares().size());
+
+        // Flooding the board changes more squares than it holds, so the next poll is
+        // the whole board.
+        board.dig(5, 5);
+        final BoardChanges flood = subscription.poll();
+        assertTrue(flood.isSnapshot());
+        assertEquals(board.toString(), flood.getBoard());
+        assertNull(subscription.poll());
+
+        // Once cancelled, nothing more is queued.
+        subscription.cancel();
+        board.deflag(0, 0);
+        assertNull(subscription.poll());
+    }
+
     @Test
     public void testInvalidSquare() {
         final Board board = new Board(5, 5);
@@ -168,4 +468,245 @@ public class BoardTest {
         assertFalse(board.isDug(6,6));
     }
     
+    @Test
+    public void testGetSquare() {
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+
+        // Squares are views of the board's state when they were taken.
+        final Square mined = board.getSquare(1, 1);
+        assertTrue(mined.hasMine());
+        assertTrue(mined.isUntouched());
+        assertEquals(1, mined.getX());
+        assertEquals(1, mined.getY());
+
+        board.dig(2, 1);
+        final Square dug = board.getSquare(2, 1);
+        assertTrue(dug.isDug());
+        assertFalse(dug.hasMine());
+        assertEquals(1, dug.numNeighborsWithMines());
+
+        // Changing a view doesn't change the board.
+        dug.flag();
+        assertFalse(board.isFlagged(2, 1));
+        assertTrue(board.getSquare(1, 1).isUntouched());
+    }
+
+    @Test
+    public void testDigCountsRevealedSquares() {
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+
+        // A square with a mined neighbor reveals only itself.
+        assertEquals(1, board.dig(2, 1));
+        // Digging it again does nothing.
+        assertEquals(0, board.dig(2, 1));
+        // A square without mined neighbors reveals every safe square connected to it:
+        // all 20 squares except the 2 mines and the square that was already dug.
+        assertEquals(17, board.dig(0, 3));
+        // Invalid squares can't be dug.
+        assertEquals(0, board.dig(-1, 3));
+    }
+
+    @Test
+    public void testHugeEmptyFloodFill() throws IOException {
+        // A million-square board with its only mine in a corner. Digging the opposite
+        // corner floods the whole board in one dig, which must not overflow the stack.
+        final File board_file = writeBoardFile(1000, 1000, 999, 999);
+        final Board board = new Board(board_file);
+
+        assertEquals(1000 * 1000 - 1, board.dig(0, 0));
+        assertTrue(board.isDug(998, 999));
+        assertFalse(board.isDug(999, 999));
+        assertEquals(1, board.numMinesRemaining());
+    }
+
+    @Test
+    public void testConcurrentFlagging() throws InterruptedException {
+        final Board board = new Board(50, 50);
+        final int total_mines = board.numMinesRemaining();
+
+        // Each thread flags, then deflags, its own band of rows, which spans several lock
+        // stripes. Correct flags are counted atomically, so no updates can be lost.
+        runInThreads(8, thread -> {
+            for (int y = thread; y < 50; y += 8) {
+                for (int x = 0; x < 50; x++) {
+                    board.flag(x, y);
+                }
+            }
+        });
+        assertEquals(0, board.numMinesRemaining());
+
+        runInThreads(8, thread -> {
+            for (int y = thread; y < 50; y += 8) {
+                for (int x = 0; x < 50; x++) {
+                    board.deflag(x, y);
+                }
+            }
+        });
+        assertEquals(total_mines, board.numMinesRemaining());
+    }
+
+    @Test
+    public void testRacingFlagsOnSameSquares() throws InterruptedException {
+        final Board board = new Board(20, 20);
+        final int total_mines = board.numMinesRemaining();
+        board.toString();
+
+        // Every thread flags and deflags the same squares, while looking at the board.
+        // Each flag or deflag either wins its race or sees the square already changed,
+        // so flags are never counted twice, and the board's text keeps up.
+        runInThreads(8, thread -> {
+            for (int round = 0; round < 200; round++) {
+                for (int x = 0; x < 20; x++) {
+                    board.flag(x, round % 20);
+                    board.deflag(x, (round + thread) % 20);
+                }
+                board.toString();
+            }
+        });
+        for (int y = 0; y < 20; y++) {
+            for (int x = 0; x < 20; x++) {
+                board.deflag(x, y);
+            }
+        }
+        assertEquals(total_mines, board.numMinesRemaining());
+        assertFalse(board.toString().contains("F"));
+    }
+
+    @Test
+    public void testConcurrentFloodFill() throws IOException, InterruptedException {
+        // A large board with a single mine in the middle. Digging anywhere else floods
+        // every stripe on the board.
+        final File board_file = writeBoardFile(60, 40, 30, 20);
+        final Board expected = new Board(board_file);
+        expected.dig(0, 0);
+
+        final Board board = new Board(board_file);
+        runInThreads(8, thread -> board.dig(thread * 7, 39 - thread * 5));
+
+        assertEquals(expected.toString(), board.toString());
+        assertFalse(board.isDug(30, 20));
+        assertTrue(board.isDug(59, 39));
+        assertEquals(1, board.numMinesRemaining());
+    }
+
+    @Test
+    public void testDeflagDuringFloodStaysInLockedStripes() throws InterruptedException {
+        // No mines, four stripes across, and a wall of flags down the second stripe, so
+        // digging the corner floods the first stripe and locks only the first two.
+        final int x_size = 4 * 16;
+        final int y_size = 16;
+        final Board board = new Board(x_size, y_size, new byte[x_size * y_size]);
+        for (int y = 0; y < y_size; y++) {
+            board.flag(16, y);
+        }
+
+        // The listener runs in the digging thread, after each change. The first time,
+        // it opens the wall; after that, it checks that squares the flood digs in the
+        // last two stripes are in stripes it holds, by trying to read them from another
+        // thread, which has to wait until the flood lets go.
+        final List<Thread> readers = new ArrayList<>();
+        final List<String> violations = new ArrayList<>();
+        final boolean[] opened = { false };
+        final BoardSubscription[] subscription = new BoardSubscription[1];
+        subscription[0] = board.subscribe(x_size * y_size, () -> {
+            if (!opened[0]) {
+                opened[0] = true;
+                board.deflag(16, 5);
+            }
+            final int[] changed = subscription[0].pollSquares();
+            if (changed == null || changed == BoardSubscription.OVERFLOWED) {
+                return;
+            }
+            for (int square : changed) {
+                final int x = square % x_size;
+                final int y = square / x_size;
+                if (x >= 32 && board.isDug(x, y) && readers.size() < 3) {
+                    final Thread reader = new Thread(() -> board.toString(x, y, 1, 1));
+                    readers.add(reader);
+                    reader.start();
+                    try {
+                        reader.join(100);
+                    } catch (InterruptedException ie) {
+                        throw new RuntimeException(ie);
+                    }
+                    if (!reader.isAlive()) {
+                        violations.add(x + "," + y);
+                    }
+                }
+            }
+        });
+
+        assertEquals(x_size * y_size - (y_size - 1), board.dig(0, 0));
+        subscription[0].cancel();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+
+        assertFalse(readers.isEmpty());
+        assertEquals(new ArrayList<String>(), violations);
+        for (int y = 0; y < y_size; y++) {
+            for (int x = 0; x < x_size; x++) {
+                assertEquals(x != 16 || y == 5, board.isDug(x, y), "dug at " + x + "," + y);
+            }
+        }
+    }
+
+    /**
+     * Write a board file with exactly one mine.
+     */
+    private static File writeBoardFile(int x_size, int y_size, int mine_x, int mine_y)
+            throws IOException {
+        final File board_file = File.createTempFile("board", ".txt");
+        board_file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(board_file)) {
+            out.println(x_size + " " + y_size);
+            for (int y = 0; y < y_size; y++) {
+                final StringBuilder row = new StringBuilder();
+                for (int x = 0; x < x_size; x++) {
+                    row.append((x == mine_x && y == mine_y) ? "1" : "0");
+                    row.append(x < x_size - 1 ? " " : "");
+                }
+                out.println(row);
+            }
+        }
+        return board_file;
+    }
+
+    /**
+     * Write a board file with the given rows, which needn't match the board's size.
+     */
+    private static File writeBoardFile(int x_size, int y_size, String... rows)
+            throws IOException {
+        final File board_file = File.createTempFile("board", ".txt");
+        board_file.deleteOnExit();
+        try (PrintWriter out = new PrintWriter(board_file)) {
+            out.println(x_size + " " + y_size);
+            for (String row : rows) {
+                out.println(row);
+            }
+        }
+        return board_file;
+    }
+
+    /**
+     * Run the given task in several threads at once, and wait for all of them to finish.
+     */
+    private static void runInThreads(int num_threads, ThreadTask task)
+            throws InterruptedException {
+        final List<Thread> threads = new ArrayList<>();
+        for (int i = 0; i < num_threads; i++) {
+            final int thread_number = i;
+            threads.add(new Thread(() -> task.run(thread_number)));
+        }
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    private interface ThreadTask {
+        void run(int thread_number);
+    }
 }
@@ -0,0 +1,206 @@
+package minesweeper;
+
+import org.junit.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Tests TiledBoard, mostly against Board.
+ */
+public class TiledBoardTest {
+
+    /* Testing strategy
+    * ====================
+    * Partition input space as follows
+    *
+    * Size: smaller than a chunk, several chunks with partial chunks on the edges,
+    *       far too big to create in full
+    * Seed: same, different
+    * Chunks: never created, cached, evicted and created again, changed
+    * Dig: mine, square with mined neighbors, square with none (flood); mine next to a
+    *      chunk in memory, next to one that isn't
+    */
+
+    @Test
+    public void testMinesAndCountsMatchBoard() {
+        final int x_size = 150;
+        final int y_size = 130;
+        final TiledBoard tiled = new TiledBoard(x_size, y_size, 42);
+        final byte[] cells = new byte[x_size * y_size];
+        int num_mines = 0;
+        for (int y = 0; y < y_size; y++) {
+            for (int x = 0; x < x_size; x++) {
+                int num_mined_neighbors = 0;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if ((dx != 0 || dy != 0) && tiled.hasMine(x + dx, y + dy)) {
+                            num_mined_neighbors++;
+                        }
+                    }
+                }
+                final Square square = tiled.getSquare(x, y);
+                assertEquals(num_mined_neighbors, square.numNeighborsWithMines(),
+                        "count at " + x + "," + y);
+                if (square.hasMine()) {
+                    num_mines++;
+                    cells[y * x_size + x] = Square.MINE;
+                }
+                if ((x * 7 + y) % 11 == 0) {
+                    tiled.flag(x, y);
+                    cells[y * x_size + x] |= Square.FLAGGED;
+                }
+                cells[y * x_size + x] = Square.withNeighborsWithMines(cells[y * x_size + x],
+                        num_mined_neighbors);
+            }
+        }
+        // About a quarter of the squares are mined.
+        assertTrue(num_mines > x_size * y_size / 5 && num_mines < x_size * y_size * 3 / 10);
+
+        final Board board = new Board(x_size, y_size, cells);
+        assertEquals(board.toString(), tiled.toString(0, 0, x_size, y_size));
+        assertEquals(board.toString(), tiled.toString(-10, -10, x_size + 20, y_size + 20));
+    }
+
+    @Test
+    public void testSameSeedSameMines() {
+        final TiledBoard first = new TiledBoard(1000, 1000, 7);
+        final TiledBoard second = new TiledBoard(1000, 1000, 7);
+        final TiledBoard other = new TiledBoard(1000, 1000, 8);
+        boolean differs = false;
+        for (int y = 500; y < 600; y++) {
+            for (int x = 200; x < 300; x++) {
+                assertEquals(first.hasMine(x, y), second.hasMine(x, y));
+                differs |= first.hasMine(x, y) != other.hasMine(x, y);
+            }
+        }
+        assertTrue(differs);
+    }
+
+    @Test
+    public void testSmallerThanChunk() {
+        final TiledBoard board = new TiledBoard(3, 2, 1, 0, 16);
+        assertEquals("- - - \n- - -", board.toString(0, 0, 3, 2));
+        assertEquals(6, board.dig(1, 1));
+        assertEquals("      \n     ", board.toString(0, 0, 3, 2));
+        assertFalse(board.isValidPosition(3, 0));
+        assertEquals(0, board.dig(3, 0));
+    }
+
+    @Test
+    public void testHugeBoardOnlyCreatesWhatIsUsed() {
+        final int size = 100_000;
+        final int max_cached_chunks = 8;
+        final TiledBoard board = new TiledBoard(size, size, 3, 0.25, max_cached_chunks);
+        assertEquals(0, board.numChangedChunks());
+        assertEquals(0, board.numCachedChunks());
+
+        board.flag(size - 1, size - 1);
+        assertTrue(board.isFlagged(size - 1, size - 1));
+        assertEquals(1, board.numChangedChunks());
+        board.deflag(size - 1, size - 1);
+        assertTrue(board.isUntouched(size - 1, size - 1));
+
+        // Looking across many chunks never keeps more than the limit.
+        final boolean[] mines = new boolean[50];
+        for (int i = 0; i < mines.length; i++) {
+            mines[i] = board.hasMine(i * TiledBoard.CHUNK_SIZE, 12_345);
+        }
+        assertEquals(max_cached_chunks, board.numCachedChunks());
+        assertEquals(1, board.numChangedChunks());
+        // Evicted chunks come back the same.
+        for (int i = 0; i < mines.length; i++) {
+            assertEquals(mines[i], board.hasMine(i * TiledBoard.CHUNK_SIZE, 12_345));
+        }
+
+        final int num_dug = board.dig(50_000, 50_000);
+        assertTrue(num_dug >= 1);
+        assertTrue(board.isDug(50_000, 50_000));
+        assertTrue(board.numChangedChunks() <= 1 + 9 + num_dug / TiledBoard.CHUNK_SIZE);
+    }
+
+    @Test
+    public void testExplosionLowersNeighborCounts() {
+        final TiledBoard board = new TiledBoard(200, 200, 11);
+        int mine_x = -1;
+        int mine_y = -1;
+        for (int y = 80; y < 120 && mine_x < 0; y++) {
+            for (int x = 80; x < 120; x++) {
+                if (board.hasMine(x, y)) {
+                    mine_x = x;
+                    mine_y = y;
+                    break;
+                }
+            }
+        }
+        assertTrue(mine_x >= 0);
+        final int count_before = board.getSquare(mine_x + 1, mine_y).numNeighborsWithMines();
+        board.dig(mine_x, mine_y);
+        assertTrue(board.isDug(mine_x, mine_y));
+        assertFalse(board.hasMine(mine_x, mine_y));
+        assertEquals(count_before - 1,
+                board.getSquare(mine_x + 1, mine_y).numNeighborsWithMines());
+    }
+
+    @Test
+    public void testExplosionNextToChunkNotInMemory() {
+        // Every square is mined, and no chunk is kept unless it changes, so the chunk
+        // to the right of the mine is only created by the explosion.
+        final TiledBoard board = new TiledBoard(2 * TiledBoard.CHUNK_SIZE, 64, 1, 1.0, 0);
+        final int edge = TiledBoard.CHUNK_SIZE - 1;
+        board.dig(edge, 0);
+        assertTrue(board.isDug(edge, 0));
+        // (CHUNK_SIZE, 0) had 5 mined neighbors, of which one exploded.
+        assertEquals(4, board.getSquare(edge + 1, 0).numNeighborsWithMines());
+        assertEquals(7, board.getSquare(edge + 1, 1).numNeighborsWithMines());
+        assertEquals(4, board.getSquare(edge - 1, 0).numNeighborsWithMines());
+        assertEquals(7, board.getSquare(edge, 1).numNeighborsWithMines());
+    }
+
+    @Test
+    public void testFloodStopsAtNumberedSquares() {
+        final int size = 300;
+        final TiledBoard board = new TiledBoard(size, size, 5, 0.1, 64);
+        int zero_x = -1;
+        int zero_y = -1;
+        for (int y = 100; y < 200 && zero_x < 0; y++) {
+            for (int x = 100; x < 200; x++) {
+                if (!board.hasMine(x, y) && board.getSquare(x, y).numNeighborsWithMines() == 0) {
+                    zero_x = x;
+                    zero_y = y;
+                    break;
+                }
+            }
+        }
+        assertTrue(zero_x >= 0);
+        final int num_dug = board.dig(zero_x, zero_y);
+        int num_dug_seen = 0;
+        for (int y = 0; y < size; y++) {
+            for (int x = 0; x < size; x++) {
+                if (!board.isDug(x, y)) {
+                    continue;
+                }
+                num_dug_seen++;
+                assertFalse(board.hasMine(x, y));
+                // Every dug square is the one dug, or next to a dug square with no
+                // mined neighbors.
+                boolean next_to_zero = x == zero_x && y == zero_y;
+                for (int dy = -1; dy <= 1; dy++) {
+                    for (int dx = -1; dx <= 1; dx++) {
+                        if ((dx != 0 || dy != 0) && board.isDug(x + dx, y + dy)
+                                && board.getSquare(x + dx, y + dy).numNeighborsWithMines() == 0) {
+                            next_to_zero = true;
+                        }
+                        // And every zero's neighbors are dug.
+                        if (board.getSquare(x, y).numNeighborsWithMines() == 0
+                                && board.isValidPosition(x + dx, y + dy)) {
+                            assertTrue(board.isDug(x + dx, y + dy));
+                        }
+                    }
+                }
+                assertTrue(next_to_zero);
+            }
+        }
+        assertEquals(num_dug, num_dug_seen);
+        assertEquals(0, board.dig(zero_x, zero_y));
+    }
+}
@@ -0,0 +1,213 @@
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.io.*;
+import java.net.ConnectException;
+import java.net.Socket;
+import java.net.URISyntaxException;
+import java.net.URL;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Test the minesweeper server in non-blocking I/O mode.
+ */
+public class MinesweeperNioServerTest {
+
+    /* Testing strategy
+     * ====================
+     * Partition input space as follows
+     *
+     * Players: 1, > 1 connected at once
+     * Requests: one per write, several in one write
+     * Dig: safe square, mined square in debug mode, mined square outside debug mode
+     * Disconnect: bye, BOOM
+     */
+
+    private static final String LOCALHOST = "127.0.0.1";
+
+    private static final int MAX_CONNECTION_ATTEMPTS = 10;
+
+    private static final String BOARDS_PKG = "minesweeper/server/boards/";
+
+    /**
+     * Start a MinesweeperServer in NIO mode with a board file from BOARDS_PKG.
+     *
+     * @return thread running the server
+     * @throws IOException if the board file cannot be found
+     */
+    private static Thread startNioServer(int port, boolean debug, String boardFile)
+            throws IOException {
+        final URL boardURL = ClassLoader.getSystemClassLoader().getResource(BOARDS_PKG + boardFile);
+        if (boardURL == null) {
+            throw new IOException("Failed to locate resource " + boardFile);
+        }
+        final String boardPath;
+        try {
+            boardPath = new File(boardURL.toURI()).getAbsolutePath();
+        } catch (URISyntaxException urise) {
+            throw new IOException("Invalid URL " + boardURL, urise);
+        }
+        final String[] args = new String[] {
+                debug ? "--debug" : "--no-debug",
+                "--nio",
+                "--port", Integer.toString(port),
+                "--file", boardPath
+        };
+        Thread serverThread = new Thread(() -> MinesweeperServer.main(args));
+        serverThread.start();
+        return serverThread;
+    }
+
+    /**
+     * Connect to a MinesweeperServer and return the connected socket.
+     *
+     * @param server abort connection attempts if the server thread dies
+     * @return socket connected to the server
+     * @throws IOException if the connection fails
+     */
+    private static Socket connect(Thread server, int port) throws IOException {
+        int attempts = 0;
+        while (true) {
+            try {
+                Socket socket = new Socket(LOCALHOST, port);
+                socket.setSoTimeout(3000);
+                return socket;
+            } catch (ConnectException ce) {
+                if ( ! server.isAlive()) {
+                    throw new IOException("Server thread not running");
+                }
+                if (++attempts > MAX_CONNECTION_ATTEMPTS) {
+                    throw new IOException("Exceeded max connection attempts", ce);
+                }
+                try { Thread.sleep(attempts * 10); } catch (InterruptedException ie) { }
+            }
+        }
+    }
+
+    @Test(timeout = 10000)
+    public void testLookAndDig() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startNioServer(port, true, "board_file_5");
+        Socket socket = connect(thread, port);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        PrintWriter out = new PrintWriter(socket.getOutputStream(), true);
+
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+        out.println("look");
+        for (int row = 0; row < 6; row++) {
+            assertEquals("- - - - - - - ", in.readLine());
+        }
+        assertEquals("- - - - - - -", in.readLine());
+
+        out.println("dig 3 1");
+        assertEquals("- - - - - - - ", in.readLine());
+        assertEquals("- - - 1 - - - ", in.readLine());
+
+        out.println("help");
+        for (int row = 2; row < 7; row++) {
+            in.readLine();
+        }
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, in.readLine());
+
+        // In debug mode, a BOOM doesn't disconnect the player.
+        out.println("dig 4 1");
+        assertEquals("BOOM!", in.readLine());
+        out.println("help");
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, in.readLine());
+
+        out.println("bye");
+        assertEquals(null, in.readLine());
+        socket.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testPipelinedRequests() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startNioServer(port, true, "board_file_5");
+        Socket socket = connect(thread, port);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        assertTrue("expected HELLO message", in.readLine().startsWith("Welcome"));
+
+        // Several requests in a single write, with both kinds of line terminator, are
+        // answered in order.
+        out.write("help\r\nflag 0 0\nhelp\nbye\n".getBytes("US-ASCII"));
+        out.flush();
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, in.readLine());
+        assertEquals("F - - - - - - ", in.readLine());
+        for (int row = 1; row < 7; row++) {
+            in.readLine();
+        }
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, in.readLine());
+        assertEquals(null, in.readLine());
+        socket.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testBoomDisconnectsSharedBoard() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startNioServer(port, false, "board_file_5");
+
+        Socket socket_1 = connect(thread, port);
+        BufferedReader in_1 = new BufferedReader(new InputStreamReader(socket_1.getInputStream()));
+        PrintWriter out_1 = new PrintWriter(socket_1.getOutputStream(), true);
+        assertTrue(in_1.readLine().contains("Players: 1 "));
+
+        Socket socket_2 = connect(thread, port);
+        BufferedReader in_2 = new BufferedReader(new InputStreamReader(socket_2.getInputStream()));
+        PrintWriter out_2 = new PrintWriter(socket_2.getOutputStream(), true);
+        assertTrue(in_2.readLine().contains("Players: 2 "));
+
+        // The first player blows up and is disconnected.
+        out_1.println("dig 4 1");
+        assertEquals("BOOM!", in_1.readLine());
+        assertEquals(null, in_1.readLine());
+        socket_1.close();
+
+        // The second player sees the explosion on the shared board.
+        out_2.println("look");
+        assertEquals("              ", in_2.readLine());
+        out_2.println("bye");
+        socket_2.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testWatchPushesChanges() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startNioServer(port, true, "board_file_5");
+
+        Socket socket_1 = connect(thread, port);
+        BufferedReader in_1 = new BufferedReader(new InputStreamReader(socket_1.getInputStream()));
+        PrintWriter out_1 = new PrintWriter(socket_1.getOutputStream(), true);
+        assertTrue(in_1.readLine().startsWith("Welcome"));
+
+        // The first player watches, and gets the whole board to start with.
+        out_1.println("watch");
+        assertEquals("BOARD 0", in_1.readLine());
+        for (int row = 0; row < 7; row++) {
+            in_1.readLine();
+        }
+
+        Socket socket_2 = connect(thread, port);
+        BufferedReader in_2 = new BufferedReader(new InputStreamReader(socket_2.getInputStream()));
+        PrintWriter out_2 = new PrintWriter(socket_2.getOutputStream(), true);
+        assertTrue(in_2.readLine().startsWith("Welcome"));
+
+        // The second player's move is pushed to the first without them asking.
+        out_2.println("flag 2 2");
+        assertEquals("CHANGED 1", in_1.readLine());
+        assertEquals("2 2 F", in_1.readLine());
+
+        out_1.println("bye");
+        out_2.println("bye");
+        socket_1.close();
+        socket_2.close();
+    }
+}
@@ -0,0 +1,304 @@
+package minesweeper.server;
+
+import minesweeper.Board;
+import org.junit.Test;
+
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the commands of the Minesweeper protocol directly, without a server.
+ */
+public class MinesweeperProtocolTest {
+
+    /* Testing strategy
+     * ====================
+     * Board messages: whole board, changes since a version, whole board because the
+     *                 changes aren't known
+     * Diff mode: off, on
+     * Viewport: none, set by a windowed look, cleared by look or changing rooms
+     * Compression: off, on; whole board, viewport
+     * Spectators: look, windowed look, moves refused; board changed by another player
+     * Rooms: main, joined, created; new, existing, forgotten after players leave;
+     *        refused when the server hosts too many; tiled
+     * Stats: requests counted per kind, across players; flood fills
+     */
+
+    private static final String BOARD_FILE = "test/minesweeper/server/boards/board_file_5";
+
+    private static MinesweeperProtocol newProtocol() {
+        return new MinesweeperProtocol(
+                new Board(Paths.get(BOARD_FILE).toFile()), true);
+    }
+
+    @Test
+    public void testLookSince() {
+        final MinesweeperProtocol protocol = newProtocol();
+
+        // Nothing has changed since the board was created.
+        assertEquals("DIFF 0 0", protocol.respond("look since 0"));
+
+        protocol.respond("flag 1 0");
+        protocol.respond("dig 4 0");
+        assertEquals("DIFF 2 2\n1 0 F\n4 0 1", protocol.respond("look since 0"));
+        assertEquals("DIFF 2 1\n4 0 1", protocol.respond("look since 1"));
+
+        // The board has never been at a later version, so the whole board comes back.
+        final String board = protocol.respond("look since 3");
+        assertTrue(board.startsWith("BOARD 2\n- F - - 1 - -"));
+    }
+
+    @Test
+    public void testDiffMode() {
+        final MinesweeperProtocol protocol = newProtocol();
+
+        // Turning diff mode on sends the whole board to apply changes to.
+        assertTrue(protocol.respond("diff on").startsWith("BOARD 0\n- - - - - - -"));
+
+        // After that, each board message only has what changed since the last one.
+        assertEquals("DIFF 1 1\n1 0 F", protocol.respond("flag 1 0"));
+        assertEquals("DIFF 2 1\n1 0 -", protocol.respond("deflag 1 0"));
+        assertEquals("DIFF 2 0", protocol.respond("look"));
+
+        // Turning it off goes back to whole boards.
+        assertTrue(protocol.respond("diff off").startsWith("- - - - - - -"));
+    }
+
+    @Test
+    public void testViewport() {
+        final MinesweeperProtocol protocol = newProtocol();
+
+        assertEquals("- - \n- -", protocol.respond("look 3 0 2 2"));
+        // Moves are answered with the viewport, not the whole board.
+        assertEquals("- 1 \n- -", protocol.respond("dig 4 0"));
+        assertEquals("F 1 \n- -", protocol.respond("flag 3 0"));
+        // Windows are cut down to the board, and one entirely off it is invalid.
+        assertEquals("- \n-", protocol.respond("look 6 5 10 10"));
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, protocol.respond("look 7 0 1 1"));
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, protocol.respond("look 0 0 0 1"));
+        assertEquals("- \n-", protocol.respond("deflag 3 0"));
+
+        // A plain look goes back to the whole board.
+        assertTrue(protocol.respond("look").startsWith("- - - - 1 - - \n"));
+        assertTrue(protocol.respond("flag 0 0").startsWith("F - - - 1 - - \n"));
+
+        // So does moving to another room.
+        protocol.respond("look 0 0 1 1");
+        assertEquals(7 * 15 - 2, protocol.respond("join main").length());
+    }
+
+    @Test
+    public void testCompress() {
+        final MinesweeperProtocol protocol = newProtocol();
+        final String plain = protocol.respond("look");
+
+        assertEquals("7-\n7-\n7-\n7-\n7-\n7-\n7-", protocol.respond("compress on"));
+        final String compressed = protocol.respond("dig 0 0");
+        assertEquals("3. 31 .", compressed.split("\n")[0]);
+        assertEquals(protocol.respond("compress off"), TestUtil.decompress(compressed));
+        assertTrue(plain.length() > 2 * compressed.length());
+
+        // Viewports are compressed too.
+        protocol.respond("compress on");
+        assertEquals("31\n1 - 1", protocol.respond("look 3 0 3 2"));
+        assertEquals("31\n1 F 1", protocol.respond("flag 4 1"));
+        assertEquals("1 1 1 \n1 F 1", TestUtil.decompress("31\n1 F 1"));
+    }
+
+    @Test
+    public void testSpectate() throws InterruptedException {
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        final MinesweeperProtocol player = new MinesweeperProtocol(board, true);
+        final MinesweeperProtocol spectator = new MinesweeperProtocol(board, true);
+
+        assertEquals(player.respond("look"), spectator.respond("spectate"));
+        assertEquals(MinesweeperProtocol.MESSAGE_SPECTATOR, spectator.respond("dig 0 0"));
+        assertEquals(MinesweeperProtocol.MESSAGE_SPECTATOR, spectator.respond("flag 0 0"));
+        assertEquals(MinesweeperProtocol.MESSAGE_SPECTATOR, spectator.respond("deflag 0 0"));
+        assertFalse(spectator.isFinished());
+        assertEquals(0, board.version());
+
+        // Spectators see the player's moves once the snapshot catches up.
+        player.respond("flag 1 0");
+        final long deadline = System.currentTimeMillis() + 5000;
+        String seen = spectator.respond("look");
+        while (!seen.startsWith("- F") && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+            seen = spectator.respond("look");
+        }
+        assertEquals(player.respond("look"), seen);
+        assertEquals("- F", spectator.respond("look 0 0 2 1"));
+    }
+
+    @Test
+    public void testWatch() {
+        final Board board = new Board(Paths.get(BOARD_FILE).toFile());
+        final AtomicInteger num_wakeups = new AtomicInteger();
+        final MinesweeperProtocol watcher =
+                new MinesweeperProtocol(board, true, num_wakeups::incrementAndGet);
+        final MinesweeperProtocol player = new MinesweeperProtocol(board, true);
+
+        // Nothing is pushed until the player watches.
+        player.respond("flag 0 0");
+        assertNull(watcher.pollPush());
+        assertTrue(watcher.respond("watch").startsWith("BOARD 1\nF - - - - - -"));
+        assertTrue(watcher.isWatching());
+
+        // Changes are coalesced until the watcher is pushed them, and each batch of
+        // changes wakes the watcher once.
+        player.respond("flag 1 0");
+        player.respond("deflag 1 0");
+        player.respond("flag 2 0");
+        assertEquals(1, num_wakeups.get());
+        assertEquals("CHANGED 2\n1 0 -\n2 0 F", watcher.pollPush());
+        assertNull(watcher.pollPush());
+
+        watcher.respond("unwatch");
+        assertFalse(watcher.isWatching());
+        player.respond("flag 3 0");
+        assertNull(watcher.pollPush());
+        assertEquals(1, num_wakeups.get());
+    }
+
+    @Test
+    public void testRooms() {
+        final Board main_board = new Board(Paths.get(BOARD_FILE).toFile());
+        final BoardRegistry rooms = new BoardRegistry(main_board, 0);
+        final MinesweeperProtocol player_1 = new MinesweeperProtocol(rooms, true, () -> { });
+        final MinesweeperProtocol player_2 = new MinesweeperProtocol(rooms, true, () -> { });
+
+        // Creating a room moves the player to its board, and only works once.
+        assertEquals("- - - \n- - -", player_1.respond("create small 3 2"));
+        assertEquals("Room small already exists.", player_2.respond("create small 4 4"));
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, player_2.respond("create big 5000 5"));
+
+        // Moves in one room don't touch the others.
+        assertEquals("- - - \n- - -", player_2.respond("join small"));
+        player_1.respond("flag 2 1");
+        assertEquals("- - - \n- - F", player_2.respond("look"));
+        assertFalse(main_board.isFlagged(2, 1));
+
+        // A watching player carries on watching in the new room.
+        player_2.respond("watch");
+        assertTrue(player_2.respond("join main").startsWith("BOARD 0\n- - - - - - -"));
+        player_1.respond("join main");
+        player_1.respond("flag 0 0");
+        assertEquals("CHANGED 1\n0 0 F", player_2.pollPush());
+
+        // Once everyone has left, the room is forgotten, but the main room never is.
+        assertEquals(2, rooms.numRooms());
+        player_1.close();
+        player_2.close();
+        assertTrue(new MinesweeperProtocol(rooms, true, () -> { })
+                .respond("join fresh").startsWith("- - - - - - - - - -"));
+        assertEquals(2, rooms.numRooms());
+        assertEquals("F - - - - - -", main_board.toString().substring(0, 13));
+    }
+
+    @Test
+    public void testTiledRoom() {
+        final Board main_board = new Board(Paths.get(BOARD_FILE).toFile());
+        final BoardRegistry rooms = new BoardRegistry(main_board, 0);
+        final MinesweeperProtocol player_1 = new MinesweeperProtocol(rooms, true, () -> { });
+        final MinesweeperProtocol player_2 = new MinesweeperProtocol(rooms, true, () -> { });
+        final String top_left = String.join("\n", Collections.nCopies(
+                MinesweeperProtocol.TILED_VIEWPORT_SIZE,
+                "- - - - - - - - - - ")).trim();
+
+        // A tiled board far bigger than any other is sent a window at a time, starting
+        // from the top left, and 'look' doesn't clear the window.
+        assertEquals(top_left, player_1.respond("create huge 1000000 1000000 tiled"));
+        assertEquals(top_left, player_1.respond("look"));
+        assertEquals("- - \n- -", player_1.respond("look 999998 999998 5 5"));
+        assertEquals("- - \n- F", player_1.respond("flag 999999 999999"));
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP,
+                player_1.respond("create bigger 1000001 1 tiled"));
+
+        // Only what works a window at a time is available.
+        assertEquals(MinesweeperProtocol.MESSAGE_TILED_ROOM, player_1.respond("look since 0"));
+        assertEquals(MinesweeperProtocol.MESSAGE_TILED_ROOM, player_1.respond("watch"));
+        assertEquals("- - \n- F", player_1.respond("compress on"));
+        assertEquals("- - \n- F", player_1.respond("diff on"));
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP + " "
+                + MinesweeperProtocol.MESSAGE_TILED_HELP, player_1.respond("help"));
+
+        // Other players share the board, and stop watching when they move to it.
+        player_2.respond("watch");
+        assertEquals(top_left, player_2.respond("join huge"));
+        assertFalse(player_2.isWatching());
+        assertEquals("F", player_2.respond("look 999999 999999 1 1"));
+        final String dug = player_2.respond("dig 5 5");
+        assertTrue(dug, dug.equals(MinesweeperProtocol.MESSAGE_BOOM) || dug.length() == 1);
+
+        // Back in an ordinary room, the player's settings apply again.
+        assertTrue(player_1.respond("join main").startsWith("BOARD 0\n- - - - - - -"));
+        assertEquals("7-", player_1.respond("look 0 0 7 1"));
+        assertEquals(MinesweeperProtocol.MESSAGE_HELP, player_1.respond("help"));
+    }
+
+    @Test
+    public void testRoomLimit() {
+        final Board main_board = new Board(Paths.get(BOARD_FILE).toFile());
+        final BoardRegistry rooms = new BoardRegistry(main_board, 0, 3);
+        final MinesweeperProtocol player_1 = new MinesweeperProtocol(rooms, true, () -> { });
+        final MinesweeperProtocol player_2 = new MinesweeperProtocol(rooms, true, () -> { });
+
+        // The main room counts towards the limit.
+        assertEquals("- - - \n- - -", player_1.respond("create first 3 2"));
+        assertTrue(player_2.respond("join second").startsWith("- - - - - - - - - -"));
+        assertEquals(3, rooms.numRooms());
+
+        // Beyond the limit, new rooms are refused and the player stays where they are,
+        // but existing rooms can still be joined.
+        assertEquals(MinesweeperProtocol.MESSAGE_TOO_MANY_ROOMS,
+                player_1.respond("create third 3 2"));
+        assertEquals(MinesweeperProtocol.MESSAGE_TOO_MANY_ROOMS,
+                player_1.respond("join third"));
+        assertEquals("Room second already exists.", player_1.respond("create second 3 2"));
+        assertEquals("- - - \n- - -", player_1.respond("look"));
+        assertTrue(player_1.respond("join main").startsWith("- - - - - - -"));
+        assertEquals(3, rooms.numRooms());
+
+        // Once a room is forgotten, there's space for another.
+        assertTrue(player_1.respond("join second").startsWith("- - - - - - - - - -"));
+        assertEquals("- - \n- -", player_2.respond("create third 2 2"));
+        assertEquals(3, rooms.numRooms());
+    }
+
+    @Test
+    public void testStats() {
+        // Without mines, the first dig floods the whole board.
+        final BoardRegistry rooms = new BoardRegistry(new Board(5, 5, 6005, 0));
+        final ServerStats stats = new ServerStats(rooms);
+        final MinesweeperProtocol player_1 =
+                new MinesweeperProtocol(rooms, stats, true, () -> { });
+        final MinesweeperProtocol player_2 =
+                new MinesweeperProtocol(rooms, stats, true, () -> { });
+
+        player_1.respond("flag 1 1");
+        player_2.respond("deflag 1 1");
+        player_2.respond("flag 2 2");
+        player_1.respond("dig 0 0");
+        player_1.respond("nonsense");
+
+        final String report = player_2.respond("stats");
+        assertTrue(report, report.startsWith("STATS\nuptime_s "));
+        assertTrue(report, report.contains("\nrooms 1\n"));
+        assertTrue(report, report.contains("\nrequest flag count=2 "));
+        assertTrue(report, report.contains("\nrequest deflag count=1 "));
+        assertTrue(report, report.contains("\nrequest dig count=1 "));
+        assertTrue(report, report.contains("\nrequest invalid count=1 "));
+        assertFalse(report, report.contains("\nrequest look "));
+        // The flagged square isn't dug, so 24 squares are revealed. Percentiles are
+        // reported as the top of their bucket, which holds 24 and 25.
+        assertTrue(report, report.endsWith(
+                "\nflood_fill count=1 mean=24 p50=25 p90=25 p99=25 max=25"));
+        assertEquals(1, stats.latencies(Request.Kind.STATS).count());
+    }
+}
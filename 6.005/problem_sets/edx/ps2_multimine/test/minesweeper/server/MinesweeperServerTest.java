@@ -42,11 +42,13 @@ public class MinesweeperServerTest {
      * @return thread running the server
      * @throws IOException if the board file cannot be found
      */
-    private static Thread startMinesweeperServer(int port) throws IOException {
-        final String[] args = new String[] {
-                "--debug",
-                "--port", Integer.toString(port)
-        };
+    private static Thread startMinesweeperServer(int port, String... extra_args)
+            throws IOException {
+        final String[] args = new String[2 + 1 + extra_args.length];
+        args[0] = "--debug";
+        args[1] = "--port";
+        args[2] = Integer.toString(port);
+        System.arraycopy(extra_args, 0, args, 3, extra_args.length);
         Thread serverThread = new Thread(() -> MinesweeperServer.main(args));
         serverThread.start();
         return serverThread;
@@ -154,4 +156,118 @@ public class MinesweeperServerTest {
         socket_2.close();
     }
 
+    @Test(timeout = 10000)
+    public void testConcurrentPlayers() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startMinesweeperServer(port);
+
+        // The first player stays connected while the second one plays.
+        Socket socket_1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in_1 = new BufferedReader(new InputStreamReader(socket_1.getInputStream()));
+        PrintWriter out_1 = new PrintWriter(socket_1.getOutputStream(), true);
+        assertTrue(in_1.readLine().contains("Players: 1 "));
+
+        Socket socket_2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in_2 = new BufferedReader(new InputStreamReader(socket_2.getInputStream()));
+        PrintWriter out_2 = new PrintWriter(socket_2.getOutputStream(), true);
+        assertTrue(in_2.readLine().contains("Players: 2 "));
+        out_2.println("help");
+        assertEquals(MESSAGE_HELP, in_2.readLine());
+
+        // The first player can keep playing after the second one leaves.
+        out_2.println("bye");
+        assertEquals(null, in_2.readLine());
+        socket_2.close();
+
+        out_1.println("help");
+        assertEquals(MESSAGE_HELP, in_1.readLine());
+
+        out_1.println("bye");
+        socket_1.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testMaxConnections() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startMinesweeperServer(port,
+                "--workers", "platform", "--max-connections", "1");
+
+        Socket socket_1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in_1 = new BufferedReader(new InputStreamReader(socket_1.getInputStream()));
+        assertTrue(in_1.readLine().startsWith("Welcome to Minesweeper"));
+
+        // The server is full, so the second player is turned away.
+        Socket socket_2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in_2 = new BufferedReader(new InputStreamReader(socket_2.getInputStream()));
+        assertTrue(in_2.readLine().startsWith("Server full"));
+        assertEquals(null, in_2.readLine());
+
+        socket_1.close();
+        socket_2.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testWatchPushesChanges() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startMinesweeperServer(port);
+
+        Socket socket_1 = connectToMinesweeperServer(thread, port);
+        BufferedReader in_1 = new BufferedReader(new InputStreamReader(socket_1.getInputStream()));
+        PrintWriter out_1 = new PrintWriter(socket_1.getOutputStream(), true);
+        assertTrue(in_1.readLine().startsWith("Welcome to Minesweeper"));
+        out_1.println("watch");
+        assertTrue(in_1.readLine().startsWith("BOARD "));
+        for (int row = 0; row < 10; row++) {
+            in_1.readLine();
+        }
+
+        Socket socket_2 = connectToMinesweeperServer(thread, port);
+        BufferedReader in_2 = new BufferedReader(new InputStreamReader(socket_2.getInputStream()));
+        PrintWriter out_2 = new PrintWriter(socket_2.getOutputStream(), true);
+        assertTrue(in_2.readLine().startsWith("Welcome to Minesweeper"));
+
+        // The second player's move is pushed to the watching first player.
+        out_2.println("flag 3 4");
+        assertEquals("CHANGED 1", in_1.readLine());
+        assertEquals("3 4 F", in_1.readLine());
+
+        out_1.println("bye");
+        out_2.println("bye");
+        socket_1.close();
+        socket_2.close();
+    }
+
+    @Test(timeout = 10000)
+    public void testPipelinedRequests() throws IOException {
+        final int port = 4000 + new Random().nextInt(1 << 15);
+        Thread thread = startMinesweeperServer(port);
+        Socket socket = connectToMinesweeperServer(thread, port);
+
+        BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        OutputStream out = socket.getOutputStream();
+        assertTrue(in.readLine().startsWith("Welcome to Minesweeper"));
+
+        // A burst of requests in a single write is answered in order, one board each.
+        final StringBuilder burst = new StringBuilder();
+        for (int y = 0; y < 5; y++) {
+            for (int x = 0; x < 10; x++) {
+                burst.append("flag ").append(x).append(' ').append(y).append('\n');
+            }
+        }
+        burst.append("look\nbye\n");
+        out.write(burst.toString().getBytes("US-ASCII"));
+        out.flush();
+        for (int line = 0; line < 50 * 10; line++) {
+            in.readLine();
+        }
+        for (int row = 0; row < 5; row++) {
+            assertEquals("F F F F F F F F F F ", in.readLine());
+        }
+        for (int row = 5; row < 10; row++) {
+            assertTrue(in.readLine().startsWith("- - - - - - - - - -"));
+        }
+        assertEquals(null, in.readLine());
+        socket.close();
+    }
+
 }
@@ -0,0 +1,124 @@
+package minesweeper.server;
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Tests parsing request lines.
+ */
+public class RequestTest {
+
+    /* Testing strategy
+     * ====================
+     * Requests: every kind, with and without arguments, with extra or missing text
+     * Coordinates: positive, negative, zero, too large for an int
+     * Lines: hand picked, random strings close to valid requests
+     */
+
+    // The grammar the protocol accepted before requests had a parser of their own, and
+    // the requests added since.
+    private static final String REGEX = "(look)|(help)|(bye)|(look since \\d{1,18})|"
+            + "(look -?\\d+ -?\\d+ \\d{1,4} \\d{1,4})|"
+            + "(diff (on|off))|(compress (on|off))|(watch)|(unwatch)|(stats)|(spectate)|"
+            + "(join [\\w-]{1,32})|(create [\\w-]{1,32} \\d{1,4} \\d{1,4})|"
+            + "(create [\\w-]{1,32} \\d{1,7} \\d{1,7} tiled)|"
+            + "(dig -?\\d+ -?\\d+)|(flag -?\\d+ -?\\d+)|(deflag -?\\d+ -?\\d+)";
+
+    @Test
+    public void testArguments() {
+        final Request request = new Request();
+        assertEquals(Request.Kind.DIG, request.parse("dig 3 -12"));
+        assertEquals(3, request.getX());
+        assertEquals(-12, request.getY());
+        assertEquals(Request.Kind.DEFLAG, request.parse("deflag 99999999999 -99999999999"));
+        assertEquals(Integer.MAX_VALUE, request.getX());
+        assertEquals(Integer.MIN_VALUE, request.getY());
+        assertEquals(Request.Kind.LOOK_SINCE, request.parse("look since 123456789012345678"));
+        assertEquals(123456789012345678L, request.getVersion());
+        assertEquals(Request.Kind.CREATE, request.parse("create big_room-2 1000 7"));
+        assertEquals("big_room-2", request.getRoom());
+        assertEquals(1000, request.getX());
+        assertEquals(7, request.getY());
+        assertEquals(Request.Kind.CREATE_TILED, request.parse("create huge 1000000 99 tiled"));
+        assertEquals("huge", request.getRoom());
+        assertEquals(1000000, request.getX());
+        assertEquals(99, request.getY());
+        assertEquals(Request.Kind.LOOK_WINDOW, request.parse("look -2 30 40 9999"));
+        assertEquals(-2, request.getX());
+        assertEquals(30, request.getY());
+        assertEquals(40, request.getWidth());
+        assertEquals(9999, request.getHeight());
+        assertEquals(Request.Kind.DIFF_OFF, request.parse("diff off"));
+        assertEquals(Request.Kind.INVALID, request.parse("diff of"));
+    }
+
+    @Test
+    public void testSameLinesAsRegex() {
+        final String[] lines = {
+            "", "look", "look ", "looks", "look since", "look since ", "look since 0",
+            "look since 1234567890123456789", "look since -1", "help", "hel", "bye",
+            "byebye", "watch", "unwatch", "diff on", "diff off", "diff", "diff onn",
+            "dig 0 0", "dig -0 -0", "dig 1", "dig 1 2 3", "dig  1 2", "dig a b", "dig - 1",
+            "dig 1 -", "flag 12 34", "flag -1 -1", "deflag 5 6", "defla 5 6", "dib 1 2",
+            "join main", "join", "join ", "join a b", "join a.b",
+            "join abcdefghijklmnopqrstuvwxyz012345", "join abcdefghijklmnopqrstuvwxyz0123456",
+            "create r 1 1", "create r 12345 1", "create r 1", "create  1 1", "create r 0 0",
+            "create r 1 1 tiled", "create r 1234567 1 tiled", "create r 12345678 1 tiled",
+            "create r 1 1 tile", "create r 1 1 tiled ", "create r 1 1tiled",
+            "create r 1 tiled",
+            "LOOK", "\tlook", "look\r", "dig 1 2\r", "stats", "stat", "statss",
+            "look 0 0 1 1", "look -1 -1 0 0", "look 1 2 3", "look 1 2 3 4 5", "look 1 2 -3 4",
+            "look 1 2 3 12345", "look 1 2 3 4 ", "look  1 2 3 4", "look s",
+            "compress on", "compress off", "compress", "compress of", "co", "c",
+            "spectate", "spectat", "spectates", "s", "sp",
+        };
+        final Request request = new Request();
+        for (String line : lines) {
+            assertEquals(line, line.matches(REGEX),
+                    request.parse(line) != Request.Kind.INVALID);
+        }
+    }
+
+    @Test
+    public void testRandomLinesSameAsRegex() {
+        // Random mutations of valid requests reach most of the ways a line can be
+        // almost right.
+        final String[] seeds = {
+            "look since 42", "diff on", "diff off", "join room_1", "create r-2 10 20",
+            "dig -3 4", "flag 5 -6", "deflag 7 8", "watch", "unwatch", "help", "bye",
+            "stats", "look 10 -20 30 40", "compress on", "compress off",
+            "spectate", "create r-2 10 20 tiled",
+        };
+        final String alphabet = "0123456789- abcdefghijklmnopqrstuvwxyz_";
+        final Random random = new Random(6005);
+        final Request request = new Request();
+        for (int i = 0; i < 20000; i++) {
+            final StringBuilder line = new StringBuilder(seeds[random.nextInt(seeds.length)]);
+            for (int edits = random.nextInt(3); edits > 0; edits--) {
+                final int position = random.nextInt(line.length() + 1);
+                final char c = alphabet.charAt(random.nextInt(alphabet.length()));
+                switch (random.nextInt(3)) {
+                    case 0:
+                        line.insert(position, c);
+                        break;
+                    case 1:
+                        if (position < line.length()) {
+                            line.deleteCharAt(position);
+                        }
+                        break;
+                    default:
+                        if (position < line.length()) {
+                            line.setCharAt(position, c);
+                        }
+                        break;
+                }
+            }
+            final String text = line.toString();
+            assertEquals(text, text.matches(REGEX),
+                    request.parse(text) != Request.Kind.INVALID);
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package minesweeper.server;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tests the histograms server statistics are kept in.
+ */
+public class ServerStatsTest {
+
+    /* Testing strategy
+     * ====================
+     * Values: 0, small enough for a bucket each, large, Long.MAX_VALUE
+     * Histograms: empty, one value, many values
+     * Percentiles: 0, 50, 100
+     */
+
+    @Test
+    public void testBuckets() {
+        // Every value belongs in the bucket whose range it falls in, and buckets are
+        // never wider than an eighth of their values.
+        final long[] values = {0, 1, 15, 16, 17, 31, 32, 1000, 123456789, Long.MAX_VALUE};
+        for (long value : values) {
+            final int bucket = ServerStats.Histogram.bucketOf(value);
+            final long highest = ServerStats.Histogram.highestValueIn(bucket);
+            assertTrue(value + " in " + highest, value <= highest);
+            assertTrue(value + " in " + highest, highest - value <= value / 8);
+            if (bucket > 0) {
+                assertTrue(ServerStats.Histogram.highestValueIn(bucket - 1) < value);
+            }
+        }
+    }
+
+    @Test
+    public void testPercentiles() {
+        final ServerStats.Histogram histogram = new ServerStats.Histogram();
+        assertEquals(0, histogram.count());
+        assertEquals(0, histogram.percentile(50));
+        assertEquals(0, histogram.max());
+
+        histogram.record(7);
+        assertEquals(7, histogram.percentile(0));
+        assertEquals(7, histogram.percentile(100));
+
+        for (long value = 1; value <= 1000; value++) {
+            histogram.record(value * 1000);
+        }
+        assertEquals(1001, histogram.count());
+        final long median = histogram.percentile(50);
+        assertTrue(Long.toString(median), median >= 500000 && median <= 500000 * 9 / 8);
+        final long max = histogram.max();
+        assertTrue(Long.toString(max), max >= 1000000 && max <= 1000000 * 9 / 8);
+        assertEquals(max, histogram.percentile(100));
+        assertEquals(7, histogram.percentile(0));
+    }
+}
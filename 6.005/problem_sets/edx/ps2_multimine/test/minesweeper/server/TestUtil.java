@@ -105,6 +105,28 @@ public class TestUtil {
     static String regsp(String s) {
         return s == null ? s : s.replaceAll("\\s+", " ");
     }
+
+    /**
+     * Decode a run-length encoded board, as sent after 'compress on', into the board
+     * as 'look' shows it.
+     * @see minesweeper.Board#toCompressedString(int, int, int, int)
+     */
+    static String decompress(String compressed) {
+        final StringBuilder board = new StringBuilder();
+        for (String row : compressed.split("\n", -1)) {
+            for (String run : row.split(" ")) {
+                final char symbol = run.charAt(run.length() - 1);
+                final int length = (run.length() == 1) ? 1
+                        : Integer.parseInt(run.substring(0, run.length() - 1));
+                for (int i = 0; i < length; i++) {
+                    board.append(symbol == '.' ? ' ' : symbol).append(' ');
+                }
+            }
+            board.append('\n');
+        }
+        // The last row has no trailing space and no final newline.
+        return board.substring(0, board.length() - 2);
+    }
 }
 
 /** A thread and possibly the error that terminated it. */